@@ -0,0 +1,85 @@
+package se.wallinder.heos;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.wallinder.heos.simulator.HEOSSimulator;
+import se.wallinder.heos.util.ServletConstants;
+
+/**
+ * The status page (createHeosInfoResponse) of a servlet connected to a simulated CLI in process: rendered from the snapshot, answered with 304
+ * Not Modified, and with the snapshot refreshed from the HEOS system. The simulator listens on the HEOS port.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HEOSStatusPageBenchmark {
+
+   private final static Map<String, String> NONE = Collections.emptyMap();
+
+   @Param({ "10", "100" })
+   private int entries;
+
+   private HEOSSimulator simulator;
+   private HEOSServlet servlet;
+   private String eTag;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      simulator = new HEOSSimulator(ServletConstants.HEOS_PORT, entries, entries, entries);
+      simulator.start();
+      servlet = new HEOSServlet();
+      servlet.init(ServletStubs.config("heos.host=127.0.0.1\nheos.user=user@mail.com\nheos.password=password\nfibaro.host=127.0.0.1:1\n"));
+      Map<String, String> headers = new HashMap<>();
+      servlet.doGet(ServletStubs.request("/", NONE, NONE), ServletStubs.response(headers));
+      eTag = headers.get("ETag");
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      servlet.destroy();
+      simulator.close();
+   }
+
+   @Benchmark
+   public Map<String, String> render() throws Exception {
+      Map<String, String> headers = new HashMap<>();
+      servlet.doGet(ServletStubs.request("/", NONE, NONE), ServletStubs.response(headers));
+      return headers;
+   }
+
+   @Benchmark
+   public Map<String, String> notModified() throws Exception {
+      Map<String, String> headers = new HashMap<>();
+      servlet.doGet(ServletStubs.request("/", NONE, Collections.singletonMap("If-None-Match", eTag)), ServletStubs.response(headers));
+      return headers;
+   }
+
+   @Benchmark
+   public Map<String, String> refresh() throws Exception {
+      Map<String, String> headers = new HashMap<>();
+      servlet.doGet(ServletStubs.request("/", Collections.singletonMap(ServletConstants.REQUEST_PARAM_REFRESH, ""), NONE),
+            ServletStubs.response(headers));
+      return headers;
+   }
+
+}
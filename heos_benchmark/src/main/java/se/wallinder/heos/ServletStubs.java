@@ -0,0 +1,169 @@
+package se.wallinder.heos;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Just enough of a servlet container to call the servlet directly: a config with the settings file, GET requests and responses writing to
+ * nowhere. Methods not used by the servlet answer null, zero or false.
+ */
+public class ServletStubs {
+
+   private ServletStubs() {
+      // Private constructor
+   }
+
+   /**
+    * @param settings The content of WEB-INF/settings.properties
+    * @return A servlet config, without a scenes file
+    */
+   public static ServletConfig config(final String settings) {
+      final ServletContext context = stub(ServletContext.class, new InvocationHandler() {
+         @Override
+         public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+            if (method.getName().equals("getResourceAsStream") && "/WEB-INF/settings.properties".equals(args[0])) {
+               return new ByteArrayInputStream(settings.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            if (method.getName().equals("getResource")) {
+               return new File("WebContent" + args[0]).toURI().toURL();
+            }
+            return defaultValue(method);
+         }
+      });
+      return stub(ServletConfig.class, new InvocationHandler() {
+         @Override
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getServletContext")) {
+               return context;
+            }
+            if (method.getName().equals("getInitParameterNames")) {
+               return Collections.emptyEnumeration();
+            }
+            return defaultValue(method);
+         }
+      });
+   }
+
+   /**
+    * @param servletPath The servlet path (e.g. / or /state)
+    * @param parameters The parameters
+    * @param headers The headers
+    * @return A GET request
+    */
+   public static HttpServletRequest request(final String servletPath, final Map<String, String> parameters, final Map<String, String> headers) {
+      final Map<String, String[]> parameterMap = new HashMap<>();
+      for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+         parameterMap.put(parameter.getKey(), new String[] { parameter.getValue() });
+      }
+      return stub(HttpServletRequest.class, new InvocationHandler() {
+         @Override
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "getMethod":
+               return "GET";
+            case "getServletPath":
+               return servletPath;
+            case "getContextPath":
+               return "/heos";
+            case "getServerName":
+               return "localhost";
+            case "getServerPort":
+               return 8080;
+            case "getParameterMap":
+               return parameterMap;
+            case "getParameter":
+               return parameters.get(args[0]);
+            case "getHeader":
+               return headers.get(args[0]);
+            case "getDateHeader":
+               return -1L;
+            default:
+               return defaultValue(method);
+            }
+         }
+      });
+   }
+
+   /**
+    * @param responseHeaders Receives the headers set by the servlet
+    * @return A response, the body is thrown away
+    */
+   public static HttpServletResponse response(final Map<String, String> responseHeaders) {
+      final PrintWriter writer = new PrintWriter(new NullWriter());
+      return stub(HttpServletResponse.class, new InvocationHandler() {
+         @Override
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "getWriter":
+               return writer;
+            case "setHeader":
+               responseHeaders.put((String) args[0], (String) args[1]);
+               return null;
+            case "setStatus":
+               responseHeaders.put("Status", String.valueOf(args[0]));
+               return null;
+            default:
+               return defaultValue(method);
+            }
+         }
+      });
+   }
+
+   private static <T> T stub(Class<T> type, InvocationHandler handler) {
+      return type.cast(Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class<?>[] { type }, handler));
+   }
+
+   private static Object defaultValue(Method method) {
+      Class<?> type = method.getReturnType();
+      if (type == boolean.class) {
+         return false;
+      }
+      if (type == long.class) {
+         return 0L;
+      }
+      if (type == int.class) {
+         return 0;
+      }
+      if (type == String.class && method.getName().equals("toString")) {
+         return "stub";
+      }
+      return null;
+   }
+
+   /**
+    * A writer throwing everything away
+    */
+   private static class NullWriter extends Writer {
+
+      @Override
+      public void write(char[] buffer, int offset, int length) {
+         // Thrown away
+      }
+
+      @Override
+      public void flush() {
+         // Nothing to flush
+      }
+
+      @Override
+      public void close() {
+         // Nothing to close
+      }
+   }
+
+}
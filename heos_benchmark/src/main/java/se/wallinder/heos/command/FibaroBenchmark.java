@@ -0,0 +1,79 @@
+package se.wallinder.heos.command;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.wallinder.heos.connector.FibaroConnector;
+import se.wallinder.heos.connector.FibaroHttpClient;
+import se.wallinder.heos.simulator.FibaroSimulator;
+
+/**
+ * Updates of a Fibaro virtual device: encoding the label text, building and queueing the request, and a request round trip against a
+ * controller stand-in answering 202 Accepted
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FibaroBenchmark {
+
+   private final static String LABEL_TEXT = "Sveriges Radio P2 - Klassisk morgon & nyheter (\u00d6)";
+
+   private FibaroSimulator controller;
+   private FibaroConnector fibaroConnector;
+   private FibaroHttpClient httpClient;
+   private int volume = 0;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      controller = new FibaroSimulator(0);
+      String host = controller.getHost();
+      fibaroConnector = new FibaroConnector(host, "admin", "admin");
+      httpClient = new FibaroHttpClient(host, "Basic YWRtaW46YWRtaW4=", 1, 5000);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      fibaroConnector.close();
+      httpClient.close();
+      controller.close();
+   }
+
+   @Benchmark
+   public String encodeLabel() {
+      return HEOSCommandRunner.encode(LABEL_TEXT);
+   }
+
+   @Benchmark
+   public boolean setTextLabel() {
+      // Updates of the same label replace each other while queued, so the queue never grows
+      return fibaroConnector.setTextLabel("123", "label", HEOSCommandRunner.encode(LABEL_TEXT));
+   }
+
+   @Benchmark
+   public boolean setVolumeSlider() {
+      return fibaroConnector.setVolumeSlider("123", "slider", volume++ & 0x3f);
+   }
+
+   @Benchmark
+   @OutputTimeUnit(TimeUnit.MICROSECONDS)
+   public int request() throws IOException, InterruptedException {
+      return httpClient.get("/api/callAction?deviceID=123&name=setProperty&arg1=ui.label.value&arg2=" + HEOSCommandRunner.encode(LABEL_TEXT));
+   }
+
+}
@@ -0,0 +1,65 @@
+package se.wallinder.heos.connector;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.wallinder.heos.simulator.HEOSSimulator;
+
+/**
+ * Round trips on one multiplexed HEOS channel against a simulated CLI in process, from one thread and from several sharing the channel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HEOSChannelBenchmark {
+
+   private HEOSSimulator simulator;
+   private HEOSChannel channel;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      simulator = new HEOSSimulator(0, 10, 10, 10);
+      simulator.start();
+      channel = new HEOSChannel("127.0.0.1", simulator.getPort(), 5000);
+      channel.connect();
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      channel.close();
+      simulator.close();
+   }
+
+   @Benchmark
+   public HEOSMessage heartBeat() throws Exception {
+      return channel.send("system/heart_beat", "").get();
+   }
+
+   @Benchmark
+   @Threads(8)
+   public HEOSMessage heartBeatShared() throws Exception {
+      return channel.send("system/heart_beat", "").get();
+   }
+
+   @Benchmark
+   public HEOSMessage getPlayers() throws Exception {
+      return channel.send("player/get_players", "").get();
+   }
+
+}
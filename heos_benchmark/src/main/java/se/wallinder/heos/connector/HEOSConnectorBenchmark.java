@@ -0,0 +1,84 @@
+package se.wallinder.heos.connector;
+
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.wallinder.heos.simulator.HEOSSimulator;
+import se.wallinder.heos.util.ServletConstants;
+
+/**
+ * The HEOS connector against a simulated CLI in process: a command round trip (sendCommand), fetching and parsing the players, and sorting
+ * them by name for the status page. The simulator listens on the HEOS port, so nothing else may use it on the loopback interface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HEOSConnectorBenchmark {
+
+   @Param({ "10", "100", "1000" })
+   private int players;
+
+   private HEOSSimulator simulator;
+   private HEOSConnector connector;
+   private Map<String, String> playerNames;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Exception {
+      simulator = new HEOSSimulator(ServletConstants.HEOS_PORT, players, 10, 10);
+      simulator.start();
+      connector = new HEOSConnector("127.0.0.1", "user@mail.com", "password");
+      playerNames = connector.getPlayers();
+      if (playerNames.size() != players) {
+         throw new IllegalStateException("Expected " + players + " players, got " + playerNames.size());
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      connector.close();
+      simulator.close();
+   }
+
+   @Benchmark
+   public boolean sendCommand() {
+      // A system/heart_beat round trip
+      return connector.heartbeat();
+   }
+
+   @Benchmark
+   @OutputTimeUnit(TimeUnit.NANOSECONDS)
+   public boolean isConnected() {
+      // From the connection state, nothing sent
+      return connector.isConnected();
+   }
+
+   @Benchmark
+   public Map<String, String> updatePlayers() {
+      connector.updatePlayers();
+      return connector.getPlayers();
+   }
+
+   @Benchmark
+   public SortedSet<Map.Entry<String, String>> entriesSortedByValues() {
+      return connector.entriesSortedByValues(playerNames);
+   }
+
+}
@@ -0,0 +1,96 @@
+package se.wallinder.heos.connector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.wallinder.heos.simulator.HEOSSimulator;
+
+/**
+ * Parsing of get_players and browse responses, the way the connector does it (decode, then visit only the fields needed) and with
+ * json-simple (a full parse) for comparison
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HEOSMessageBenchmark {
+
+   private final static String[] FIELDS_PLAYER = { "pid", "name" };
+   private final static String[] FIELDS_STATION = { "type", "mid", "name" };
+
+   @Param({ "10", "100", "1000" })
+   private int entries;
+
+   @Param({ "players", "browse" })
+   private String payload;
+
+   private byte[] response;
+   private String responseText;
+   private String[] fields;
+
+   @Setup
+   public void setUp() {
+      HEOSSimulator simulator = new HEOSSimulator(0, "players".equals(payload) ? entries : 0, "browse".equals(payload) ? entries : 0, 0);
+      String command = "players".equals(payload) ? "heos://player/get_players?SEQUENCE=1" : "heos://browse/browse?sid=1028&SEQUENCE=1";
+      // Answer as if signed in
+      simulator.answer("heos://system/sign_in?un=user&pw=password");
+      responseText = simulator.answer(command);
+      response = responseText.getBytes(StandardCharsets.UTF_8);
+      fields = "players".equals(payload) ? FIELDS_PLAYER : FIELDS_STATION;
+   }
+
+   @Benchmark
+   public void decode(final Blackhole blackhole) {
+      HEOSMessage message = HEOSMessage.decode(response, 0, response.length);
+      blackhole.consume(message.isSuccess());
+      blackhole.consume(message.getSequence());
+   }
+
+   @Benchmark
+   public void decodeAndVisit(final Blackhole blackhole) {
+      HEOSMessage message = HEOSMessage.decode(response, 0, response.length);
+      blackhole.consume(message.isSuccess());
+      message.visitPayload(fields, new HEOSPayloadVisitor() {
+         @Override
+         public void value(int depth, int field, String value) {
+            blackhole.consume(value);
+         }
+
+         @Override
+         public void endObject(int depth) {
+            blackhole.consume(depth);
+         }
+      });
+   }
+
+   @Benchmark
+   public void jsonSimple(Blackhole blackhole) throws ParseException {
+      JSONObject message = (JSONObject) new JSONParser().parse(responseText);
+      blackhole.consume(((JSONObject) message.get("heos")).get("result"));
+      for (Object item : (JSONArray) message.get("payload")) {
+         for (String field : fields) {
+            blackhole.consume(((JSONObject) item).get(field));
+         }
+      }
+   }
+
+}
@@ -0,0 +1,95 @@
+package se.wallinder.heos.load;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import se.wallinder.heos.HEOSServlet;
+
+/**
+ * The servlet in an embedded servlet container, with a settings file of its own, for load tests without deploying to Tomcat
+ */
+public class EmbeddedServlet implements Closeable {
+
+   private final Server server;
+   private final File webContent;
+
+   /**
+    * Constructor, starts the servlet
+    *
+    * @param port The HTTP port, 0 for any free port
+    * @param settings The settings (heos.host, fibaro.host...)
+    * @throws Exception If the servlet could not be started
+    */
+   public EmbeddedServlet(int port, Map<String, String> settings) throws Exception {
+      this(port, settings, null);
+   }
+
+   /**
+    * Constructor, starts the servlet
+    *
+    * @param port The HTTP port, 0 for any free port
+    * @param settings The settings (heos.host, fibaro.host...)
+    * @param scenesFile The scenes file, null for no scenes
+    * @throws Exception If the servlet could not be started
+    */
+   public EmbeddedServlet(int port, Map<String, String> settings, File scenesFile) throws Exception {
+      webContent = File.createTempFile("heos", "");
+      webContent.delete();
+      File webInf = new File(webContent, "WEB-INF");
+      webInf.mkdirs();
+      Properties properties = new Properties();
+      properties.putAll(settings);
+      try (OutputStream settingsFile = new FileOutputStream(new File(webInf, "settings.properties"))) {
+         properties.store(settingsFile, "Embedded servlet");
+      }
+      if (scenesFile != null) {
+         Files.copy(scenesFile.toPath(), new File(webInf, "scenes.properties").toPath());
+      }
+
+      server = new Server();
+      ServerConnector connector = new ServerConnector(server);
+      connector.setHost("127.0.0.1");
+      connector.setPort(port);
+      server.addConnector(connector);
+      ServletContextHandler context = new ServletContextHandler();
+      context.setContextPath("/heos");
+      context.setResourceBase(webContent.getAbsolutePath());
+      ServletHolder holder = new ServletHolder(new HEOSServlet());
+      holder.setAsyncSupported(true);
+      context.addServlet(holder, "/");
+      server.setHandler(context);
+      server.start();
+   }
+
+   /**
+    * @return The URL of the servlet
+    */
+   public String getURL() {
+      return "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/heos/";
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         server.stop();
+      } catch (Exception e) {
+         throw new IOException("Could not stop the servlet", e);
+      }
+      new File(webContent, "WEB-INF/settings.properties").delete();
+      new File(webContent, "WEB-INF/scenes.properties").delete();
+      new File(webContent, "WEB-INF").delete();
+      webContent.delete();
+   }
+
+}
@@ -0,0 +1,363 @@
+package se.wallinder.heos.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import se.wallinder.heos.simulator.FibaroSimulator;
+import se.wallinder.heos.simulator.HEOSSimulator;
+
+/**
+ * Sends a mix of servlet commands at a steady rate or in bursts, and reports throughput and latency. Requests are sent when planned whether
+ * or not earlier requests have been answered, and latency is measured from when a request should have been sent, so a saturated servlet
+ * shows up as latency rather than as a lower request rate.
+ *
+ * <pre>
+ * java -cp benchmarks.jar se.wallinder.heos.load.HEOSLoadDriver --url http://localhost:8080/heos/ --rate 50 --duration 60
+ * java -cp benchmarks.jar se.wallinder.heos.load.HEOSLoadDriver --burst 40 --interval 5 --latency lognormal:20,250 --drop 0.001
+ * </pre>
+ *
+ * The players, stations and playlists default to the ones of the HEOS simulator. Without --url the servlet is started in process, against a
+ * HEOS simulator taking the fault options of {@link HEOSSimulator#configure(String, String)} and a Fibaro stand-in.
+ */
+public class HEOSLoadDriver {
+
+   private final static String DEFAULT_MIX = "volume=4,station=2,play=1,stop=1,playlist=1";
+   private final String url;
+   private final List<String> mix = new ArrayList<>();
+   private final int players;
+   private final int stations;
+   private final int playlists;
+   private final String virtualDevice;
+   private final ExecutorService senders;
+   private final LatencyReport report = new LatencyReport();
+
+   /**
+    * Constructor
+    *
+    * @param url The URL of the servlet
+    * @param mix The commands and their weights (e.g. volume=4,stop=1)
+    * @param players The number of simulated players
+    * @param stations The number of simulated stations
+    * @param playlists The number of simulated playlists
+    * @param virtualDevice The Fibaro virtual device to update, null for none
+    * @param concurrency The maximum number of requests waiting for an answer
+    */
+   public HEOSLoadDriver(String url, String mix, int players, int stations, int playlists, String virtualDevice, int concurrency) {
+      this.url = url;
+      for (String weighted : mix.split(",")) {
+         String[] commandWeight = weighted.split("=");
+         int weight = commandWeight.length > 1 ? Integer.parseInt(commandWeight[1].trim()) : 1;
+         for (int i = 0; i < weight; i++) {
+            this.mix.add(commandWeight[0].trim());
+         }
+      }
+      this.players = players;
+      this.stations = stations;
+      this.playlists = playlists;
+      this.virtualDevice = virtualDevice;
+      this.senders = Executors.newFixedThreadPool(concurrency);
+   }
+
+   /**
+    * Sends requests at a steady rate
+    *
+    * @param rate The requests per second
+    * @param durationInMs The time to send requests during
+    */
+   public void steady(double rate, long durationInMs) {
+      long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+      long start = System.nanoTime();
+      long end = start + TimeUnit.MILLISECONDS.toNanos(durationInMs);
+      for (long planned = start; planned - end < 0; planned += interval) {
+         sendAt(planned);
+      }
+   }
+
+   /**
+    * Sends bursts of requests, all requests of a burst at the same time
+    *
+    * @param burstSize The requests per burst
+    * @param intervalInMs The time between bursts
+    * @param durationInMs The time to send requests during
+    */
+   public void bursty(int burstSize, long intervalInMs, long durationInMs) {
+      long interval = TimeUnit.MILLISECONDS.toNanos(intervalInMs);
+      long start = System.nanoTime();
+      long end = start + TimeUnit.MILLISECONDS.toNanos(durationInMs);
+      for (long planned = start; planned - end < 0; planned += interval) {
+         for (int i = 0; i < burstSize; i++) {
+            sendAt(planned);
+         }
+      }
+   }
+
+   /**
+    * Waits for the answers of all requests sent
+    *
+    * @param timeoutInMs The longest time to wait
+    * @return The report
+    * @throws InterruptedException If interrupted while waiting
+    */
+   public LatencyReport finish(long timeoutInMs) throws InterruptedException {
+      senders.shutdown();
+      if (!senders.awaitTermination(timeoutInMs, TimeUnit.MILLISECONDS)) {
+         System.out.println("Requests still unanswered after " + timeoutInMs + " ms, not reported");
+         senders.shutdownNow();
+      }
+      return report;
+   }
+
+   /**
+    * Sends a request when planned
+    */
+   private void sendAt(final long planned) {
+      long wait = planned - System.nanoTime();
+      if (wait > 0) {
+         LockSupport.parkNanos(wait);
+      }
+      Random random = ThreadLocalRandom.current();
+      final String command = mix.get(random.nextInt(mix.size()));
+      final String query = query(command, random);
+      senders.execute(new Runnable() {
+         @Override
+         public void run() {
+            report.record(command, get(url + query), System.nanoTime() - planned);
+         }
+      });
+   }
+
+   /**
+    * @return The query of a command request
+    */
+   private String query(String command, Random random) {
+      StringBuilder query = new StringBuilder("?player=").append(100001 + random.nextInt(players)).append("&command=").append(command);
+      switch (command) {
+      case "volume":
+         query.append("&volume=").append(10 + random.nextInt(50));
+         break;
+      case "station":
+         int station = 1 + random.nextInt(stations);
+         query.append("&station=s").append(10000 + station).append("&labeltext=").append(encode("Station " + station));
+         break;
+      case "playlist":
+         int playlist = 1 + random.nextInt(playlists);
+         query.append("&playlist=").append(20000 + playlist).append("&labeltext=").append(encode("Playlist " + playlist));
+         break;
+      case "alarm":
+      case "trigger":
+         query.append("&station=s").append(10001 + random.nextInt(stations)).append("&volume=").append(10 + random.nextInt(50));
+         break;
+      default:
+         break;
+      }
+      if (virtualDevice != null) {
+         query.append("&vd=").append(virtualDevice);
+      }
+      return query.toString();
+   }
+
+   /**
+    * Sends a GET request
+    *
+    * @return The result: SUCCESS, FAILED, http_[status] or error
+    */
+   static String get(String requestURL) {
+      return send("GET", requestURL, null);
+   }
+
+   /**
+    * Sends a request
+    *
+    * @param method The HTTP method
+    * @param requestURL The URL
+    * @param body The JSON body, null if none
+    * @return The result: SUCCESS, FAILED (the text or the result of a JSON answer), http_[status] or error
+    */
+   static String send(String method, String requestURL, String body) {
+      try {
+         HttpURLConnection connection = (HttpURLConnection) new URL(requestURL).openConnection();
+         connection.setConnectTimeout(10000);
+         connection.setReadTimeout(120000);
+         connection.setRequestMethod(method);
+         if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json;charset=UTF-8");
+            try (OutputStream out = connection.getOutputStream()) {
+               out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+         }
+         int status = connection.getResponseCode();
+         InputStream answer = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+         String text = answer != null ? read(answer).trim() : "";
+         if (status != HttpURLConnection.HTTP_OK) {
+            return "http_" + status;
+         }
+         if (text.startsWith("{")) {
+            try {
+               Object result = ((JSONObject) new JSONParser().parse(text)).get("result");
+               return result != null ? String.valueOf(result) : "http_200";
+            } catch (ParseException | ClassCastException e) {
+               return "invalid";
+            }
+         }
+         return text.isEmpty() ? "http_200" : text.length() > 64 ? text.substring(0, 64) : text;
+      } catch (IOException e) {
+         return "error";
+      }
+   }
+
+   /**
+    * Reads a body to the end, so the connection can be reused
+    */
+   private static String read(InputStream body) throws IOException {
+      try {
+         ByteArrayOutputStream text = new ByteArrayOutputStream();
+         byte[] buffer = new byte[4096];
+         int read;
+         while ((read = body.read(buffer)) > 0) {
+            text.write(buffer, 0, read);
+         }
+         return new String(text.toByteArray(), StandardCharsets.UTF_8);
+      } finally {
+         body.close();
+      }
+   }
+
+   private static String encode(String text) {
+      try {
+         return URLEncoder.encode(text, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Runs the load driver
+    *
+    * @param args --url, --rate or --burst and --interval, --duration (s), --concurrency, --mix, --players, --stations, --playlists, --vd,
+    *           and for a servlet started in process --virtual and the fault options of the HEOS simulator
+    * @throws Exception If the servlet could not be started or interrupted
+    */
+   public static void main(String[] args) throws Exception {
+      String url = null;
+      double rate = 10;
+      int burst = 0;
+      long intervalInMs = 10000;
+      long durationInMs = 60000;
+      int concurrency = 64;
+      String mix = DEFAULT_MIX;
+      int players = 10;
+      int stations = 20;
+      int playlists = 5;
+      String virtualDevice = null;
+      boolean virtualThreads = false;
+      List<String[]> faults = new ArrayList<>();
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         switch (args[i]) {
+         case "--url":
+            url = args[i + 1];
+            break;
+         case "--rate":
+            rate = Double.parseDouble(args[i + 1]);
+            break;
+         case "--burst":
+            burst = Integer.parseInt(args[i + 1]);
+            break;
+         case "--interval":
+            intervalInMs = (long) (Double.parseDouble(args[i + 1]) * 1000);
+            break;
+         case "--duration":
+            durationInMs = (long) (Double.parseDouble(args[i + 1]) * 1000);
+            break;
+         case "--concurrency":
+            concurrency = Integer.parseInt(args[i + 1]);
+            break;
+         case "--mix":
+            mix = args[i + 1];
+            break;
+         case "--players":
+            players = Integer.parseInt(args[i + 1]);
+            break;
+         case "--stations":
+            stations = Integer.parseInt(args[i + 1]);
+            break;
+         case "--playlists":
+            playlists = Integer.parseInt(args[i + 1]);
+            break;
+         case "--vd":
+            virtualDevice = args[i + 1];
+            break;
+         case "--virtual":
+            virtualThreads = Boolean.parseBoolean(args[i + 1]);
+            break;
+         default:
+            faults.add(new String[] { args[i], args[i + 1] });
+            break;
+         }
+      }
+
+      // Without a servlet to test, start one against simulated HEOS and Fibaro systems
+      HEOSSimulator simulator = null;
+      FibaroSimulator fibaro = null;
+      EmbeddedServlet servlet = null;
+      if (url == null) {
+         simulator = new HEOSSimulator(0, players, stations, playlists);
+         for (String[] fault : faults) {
+            if (!simulator.configure(fault[0], fault[1])) {
+               throw new IllegalArgumentException("Unknown option: " + fault[0]);
+            }
+         }
+         simulator.start();
+         fibaro = new FibaroSimulator(0);
+         Map<String, String> settings = new HashMap<>();
+         settings.put("heos.host", "127.0.0.1:" + simulator.getPort());
+         settings.put("fibaro.host", fibaro.getHost());
+         settings.put("threads.virtual", String.valueOf(virtualThreads));
+         servlet = new EmbeddedServlet(0, settings);
+         url = servlet.getURL();
+      } else if (!faults.isEmpty()) {
+         throw new IllegalArgumentException("Unknown option: " + faults.get(0)[0]);
+      }
+
+      HEOSLoadDriver driver = new HEOSLoadDriver(url, mix, players, stations, playlists, virtualDevice, concurrency);
+      long start = System.nanoTime();
+      if (burst > 0) {
+         System.out.println("Sending bursts of " + burst + " requests every " + intervalInMs + " ms for " + durationInMs + " ms to " + url);
+         driver.bursty(burst, intervalInMs, durationInMs);
+      } else {
+         System.out.println("Sending " + rate + " requests/s for " + durationInMs + " ms to " + url);
+         driver.steady(rate, durationInMs);
+      }
+      long elapsed = System.nanoTime() - start;
+      driver.finish(120000).print(System.out, elapsed);
+      if (servlet != null) {
+         System.out.println(simulator);
+         System.out.println("Fibaro stand-in: " + fibaro.getRequests() + " requests");
+         servlet.close();
+         fibaro.close();
+         simulator.close();
+      }
+   }
+
+}
@@ -0,0 +1,260 @@
+package se.wallinder.heos.load;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import se.wallinder.heos.simulator.FibaroSimulator;
+import se.wallinder.heos.simulator.HEOSLatency;
+import se.wallinder.heos.simulator.HEOSSimulator;
+
+/**
+ * Replays a trace recorded by the servlet (the record.file setting), sending the recorded requests with the recorded spacing, or faster,
+ * and reports the latencies next to the recorded ones. Requests are sent when planned whether or not earlier requests have been answered,
+ * and latency is measured from when a request should have been sent.
+ *
+ * <pre>
+ * java -cp benchmarks.jar se.wallinder.heos.load.HEOSReplay --trace trace.tsv --from "2024-01-15 06:25" --to "2024-01-15 06:40" --speed 10
+ * </pre>
+ *
+ * Without --url the servlet is started in process against a HEOS simulator with the players, stations and playlists of the trace (and of the
+ * scenes file, --scenes), answering each command with the latencies recorded for it unless --latency is given, and a Fibaro stand-in.
+ */
+public class HEOSReplay {
+
+   private final List<HEOSTrace.Request> requests;
+   private final ExecutorService senders;
+   private final LatencyReport report = new LatencyReport();
+
+   /**
+    * Constructor
+    *
+    * @param trace The trace to replay
+    * @param concurrency The maximum number of requests waiting for an answer
+    */
+   public HEOSReplay(HEOSTrace trace, int concurrency) {
+      this.requests = trace.getRequests();
+      this.senders = Executors.newFixedThreadPool(concurrency);
+   }
+
+   /**
+    * Sends the requests, spaced as recorded
+    *
+    * @param url The URL of the servlet
+    * @param speed The speed up, e.g. 10 to send the requests ten times as fast as recorded
+    * @param maxGapInMs The longest time between two requests as recorded, longer idle times are shortened to this
+    */
+   public void replay(final String url, double speed, long maxGapInMs) {
+      if (requests.isEmpty()) {
+         return;
+      }
+      long start = System.nanoTime();
+      long previous = requests.get(0).getTime();
+      long offsetInMs = 0;
+      for (final HEOSTrace.Request request : requests) {
+         offsetInMs += Math.min(maxGapInMs, request.getTime() - previous);
+         previous = request.getTime();
+         final long planned = start + (long) (TimeUnit.MILLISECONDS.toNanos(offsetInMs) / speed);
+         long wait = planned - System.nanoTime();
+         if (wait > 0) {
+            LockSupport.parkNanos(wait);
+         }
+         senders.execute(new Runnable() {
+            @Override
+            public void run() {
+               String result = HEOSLoadDriver.send(request.getMethod(), request.getURL(url), request.getBody());
+               report.record(request.getCommand(), result, System.nanoTime() - planned);
+            }
+         });
+      }
+   }
+
+   /**
+    * Waits for the answers of all requests sent
+    *
+    * @param timeoutInMs The longest time to wait
+    * @return The report
+    * @throws InterruptedException If interrupted while waiting
+    */
+   public LatencyReport finish(long timeoutInMs) throws InterruptedException {
+      senders.shutdown();
+      if (!senders.awaitTermination(timeoutInMs, TimeUnit.MILLISECONDS)) {
+         System.out.println("Requests still unanswered after " + timeoutInMs + " ms, not reported");
+         senders.shutdownNow();
+      }
+      return report;
+   }
+
+   /**
+    * @return The recorded answers of the requests
+    */
+   public LatencyReport recorded() {
+      LatencyReport recorded = new LatencyReport();
+      for (HEOSTrace.Request request : requests) {
+         if (request.isAnswered()) {
+            recorded.record(request.getCommand(), request.getResult(), TimeUnit.MICROSECONDS.toNanos(request.getDurationInMicros()));
+         }
+      }
+      return recorded;
+   }
+
+   /**
+    * Creates a HEOS simulator with the players, stations and playlists of a trace
+    *
+    * @param trace The trace
+    * @param recordedLatencies True to answer each command with the latencies recorded for it
+    * @return The simulator, not started
+    */
+   static HEOSSimulator createSimulator(HEOSTrace trace, boolean recordedLatencies) {
+      HEOSSimulator simulator = new HEOSSimulator(0, 0, 0, 0);
+      for (String player : trace.getPlayers()) {
+         simulator.addPlayer(player, "Player " + player);
+      }
+      for (String station : trace.getStations()) {
+         simulator.addStation(station, "Station " + station);
+      }
+      for (String playlist : trace.getPlaylists()) {
+         simulator.addPlaylist(playlist, "Playlist " + playlist);
+      }
+      if (!recordedLatencies) {
+         return simulator;
+      }
+      for (Map.Entry<String, List<Long>> exchange : trace.getExchanges().entrySet()) {
+         long[] samples = new long[exchange.getValue().size()];
+         for (int i = 0; i < samples.length; i++) {
+            samples[i] = TimeUnit.MICROSECONDS.toNanos(exchange.getValue().get(i));
+         }
+         simulator.setLatency(exchange.getKey(), HEOSLatency.empirical(samples));
+      }
+      return simulator;
+   }
+
+   /**
+    * @return The time in ms since 1970
+    */
+   private static long parseTime(String time) throws ParseException {
+      return new SimpleDateFormat(time.length() > 16 ? "yyyy-MM-dd HH:mm:ss" : "yyyy-MM-dd HH:mm").parse(time).getTime();
+   }
+
+   /**
+    * Runs the replay
+    *
+    * @param args --trace, --from and --to (yyyy-MM-dd HH:mm[:ss]), --speed, --max-gap (s), --concurrency, --url, and for a servlet started in
+    *           process --scenes, --virtual and the fault options of the HEOS simulator
+    * @throws Exception If the trace could not be read, the servlet could not be started or interrupted
+    */
+   public static void main(String[] args) throws Exception {
+      File traceFile = null;
+      long from = Long.MIN_VALUE;
+      long to = Long.MAX_VALUE;
+      double speed = 1;
+      long maxGapInMs = Long.MAX_VALUE;
+      int concurrency = 64;
+      String url = null;
+      File scenesFile = null;
+      boolean virtualThreads = false;
+      List<String[]> faults = new ArrayList<>();
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         switch (args[i]) {
+         case "--trace":
+            traceFile = new File(args[i + 1]);
+            break;
+         case "--from":
+            from = parseTime(args[i + 1]);
+            break;
+         case "--to":
+            to = parseTime(args[i + 1]);
+            break;
+         case "--speed":
+            speed = Double.parseDouble(args[i + 1]);
+            break;
+         case "--max-gap":
+            maxGapInMs = (long) (Double.parseDouble(args[i + 1]) * 1000);
+            break;
+         case "--concurrency":
+            concurrency = Integer.parseInt(args[i + 1]);
+            break;
+         case "--url":
+            url = args[i + 1];
+            break;
+         case "--scenes":
+            scenesFile = new File(args[i + 1]);
+            break;
+         case "--virtual":
+            virtualThreads = Boolean.parseBoolean(args[i + 1]);
+            break;
+         default:
+            faults.add(new String[] { args[i], args[i + 1] });
+            break;
+         }
+      }
+      if (traceFile == null) {
+         throw new IllegalArgumentException("Missing option: --trace");
+      }
+      HEOSTrace trace = HEOSTrace.read(traceFile, from, to);
+      if (scenesFile != null) {
+         trace.addScenes(scenesFile);
+      }
+      List<HEOSTrace.Request> requests = trace.getRequests();
+      if (requests.isEmpty()) {
+         System.out.println("No requests recorded in " + traceFile + " within the time given");
+         return;
+      }
+
+      // Without a servlet to test, start one against simulated HEOS and Fibaro systems
+      HEOSSimulator simulator = null;
+      FibaroSimulator fibaro = null;
+      EmbeddedServlet servlet = null;
+      if (url == null) {
+         // Latencies given replace the recorded ones
+         boolean recordedLatencies = true;
+         for (String[] fault : faults) {
+            recordedLatencies &= !"--latency".equals(fault[0]);
+         }
+         simulator = createSimulator(trace, recordedLatencies);
+         for (String[] fault : faults) {
+            if (!simulator.configure(fault[0], fault[1])) {
+               throw new IllegalArgumentException("Unknown option: " + fault[0]);
+            }
+         }
+         simulator.start();
+         fibaro = new FibaroSimulator(0);
+         Map<String, String> settings = new HashMap<>();
+         settings.put("heos.host", "127.0.0.1:" + simulator.getPort());
+         settings.put("fibaro.host", fibaro.getHost());
+         settings.put("threads.virtual", String.valueOf(virtualThreads));
+         servlet = new EmbeddedServlet(0, settings, scenesFile);
+         url = servlet.getURL();
+      } else if (!faults.isEmpty()) {
+         throw new IllegalArgumentException("Unknown option: " + faults.get(0)[0]);
+      }
+
+      HEOSReplay replay = new HEOSReplay(trace, concurrency);
+      long recordedElapsed = TimeUnit.MILLISECONDS.toNanos(requests.get(requests.size() - 1).getTime() - requests.get(0).getTime());
+      System.out.println("Recorded, " + requests.size() + " requests");
+      replay.recorded().print(System.out, recordedElapsed);
+      System.out.println("HEOS commands: " + trace.getExchangeResults());
+      System.out.println();
+      System.out.println("Replaying " + requests.size() + " requests at " + speed + "x to " + url);
+      long start = System.nanoTime();
+      replay.replay(url, speed, maxGapInMs);
+      long elapsed = System.nanoTime() - start;
+      replay.finish(120000).print(System.out, elapsed);
+      if (servlet != null) {
+         System.out.println(simulator);
+         System.out.println("Fibaro stand-in: " + fibaro.getRequests() + " requests");
+         servlet.close();
+         fibaro.close();
+         simulator.close();
+      }
+   }
+
+}
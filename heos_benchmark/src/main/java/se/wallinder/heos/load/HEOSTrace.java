@@ -0,0 +1,338 @@
+package se.wallinder.heos.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * A trace recorded by the servlet (the record.file setting), read for replay: the command requests with their recorded answers, the
+ * latencies of the HEOS commands they caused, and the players, stations and playlists the requests use
+ */
+public class HEOSTrace {
+
+   private final List<Request> requests = new ArrayList<>();
+   private final Map<String, List<Long>> exchanges = new TreeMap<>();
+   private final Map<String, Long> exchangeResults = new TreeMap<>();
+   private final Set<String> players = new TreeSet<>();
+   private final Set<String> stations = new TreeSet<>();
+   private final Set<String> playlists = new TreeSet<>();
+
+   /**
+    * A recorded command request
+    */
+   public static class Request {
+
+      private final long time;
+      private final String method;
+      private final String path;
+      private final String query;
+      private final String command;
+      private int status = -1;
+      private String result;
+      private long durationInMicros = -1;
+
+      Request(long time, String method, String path, String query, String command) {
+         this.time = time;
+         this.method = method;
+         this.path = path;
+         this.query = query;
+         this.command = command;
+      }
+
+      /**
+       * @return The time the request was received, ms since 1970
+       */
+      public long getTime() {
+         return time;
+      }
+
+      /**
+       * @return The HTTP method
+       */
+      public String getMethod() {
+         return method;
+      }
+
+      /**
+       * @return The command, or scene or batch
+       */
+      public String getCommand() {
+         return command;
+      }
+
+      /**
+       * @param baseURL The URL of the servlet, ending with /
+       * @return The URL of the request
+       */
+      public String getURL(String baseURL) {
+         String url = baseURL + (path.startsWith("/") ? path.substring(1) : path);
+         return getBody() == null && !query.isEmpty() ? url + "?" + query : url;
+      }
+
+      /**
+       * @return The body of the request, null if none
+       */
+      public String getBody() {
+         return "POST".equals(method) ? query : null;
+      }
+
+      /**
+       * @return True if the answer was recorded
+       */
+      public boolean isAnswered() {
+         return status >= 0;
+      }
+
+      /**
+       * @return The recorded result, in the form of {@link HEOSLoadDriver#send(String, String, String)}
+       */
+      public String getResult() {
+         return status == 200 ? result : "http_" + status;
+      }
+
+      /**
+       * @return The recorded time from receiving the request to answering it
+       */
+      public long getDurationInMicros() {
+         return durationInMicros;
+      }
+   }
+
+   /**
+    * Reads the requests received within a time window, and the HEOS commands sent within it
+    *
+    * @param file The trace file
+    * @param from The start of the window, ms since 1970
+    * @param to The end of the window, ms since 1970
+    * @return The trace
+    * @throws IOException If the file could not be read
+    */
+   public static HEOSTrace read(File file, long from, long to) throws IOException {
+      HEOSTrace trace = new HEOSTrace();
+      Map<String, Request> recorded = new HashMap<>();
+      int session = 0;
+      long sessionStart = 0;
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            try {
+               switch (fields[0]) {
+               case "S":
+                  session++;
+                  sessionStart = Long.parseLong(fields[1]);
+                  break;
+               case "R":
+                  long time = sessionStart + Long.parseLong(fields[1]);
+                  if (time >= from && time < to && fields.length >= 6) {
+                     Request request = trace.addRequest(time, fields[3], fields[4], fields[5]);
+                     recorded.put(session + "#" + fields[2], request);
+                  }
+                  break;
+               case "A":
+                  Request answered = recorded.get(session + "#" + fields[2]);
+                  if (answered != null) {
+                     answered.status = Integer.parseInt(fields[3]);
+                     answered.result = fields[4];
+                     answered.durationInMicros = Long.parseLong(fields[5]);
+                  }
+                  break;
+               case "H":
+                  long sent = sessionStart + Long.parseLong(fields[1]);
+                  if (sent >= from && sent < to) {
+                     trace.addExchange(fields[3], fields[4], Long.parseLong(fields[5]));
+                  }
+                  break;
+               default:
+                  break;
+               }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+               // A line cut short, e.g. when the servlet was stopped
+            }
+         }
+      }
+      Collections.sort(trace.requests, new Comparator<Request>() {
+         @Override
+         public int compare(Request request1, Request request2) {
+            return Long.compare(request1.time, request2.time);
+         }
+      });
+      return trace;
+   }
+
+   /**
+    * Adds the players, stations and playlists of the scenes the trace may run
+    *
+    * @param scenesFile The scenes file of the servlet
+    * @throws IOException If the file could not be read
+    */
+   public void addScenes(File scenesFile) throws IOException {
+      Properties scenes = new Properties();
+      try (InputStream in = new FileInputStream(scenesFile)) {
+         scenes.load(in);
+      }
+      for (String key : scenes.stringPropertyNames()) {
+         int separator = key.indexOf('.');
+         if (separator <= 0 || key.endsWith(".name")) {
+            continue;
+         }
+         players.add(key.substring(separator + 1));
+         for (String step : scenes.getProperty(key).split(";")) {
+            int question = step.indexOf('?');
+            if (question >= 0) {
+               addInventory(parseQuery(step.substring(question + 1)));
+            }
+         }
+      }
+   }
+
+   /**
+    * @return The requests, in the order received
+    */
+   public List<Request> getRequests() {
+      return requests;
+   }
+
+   /**
+    * @return The durations of the answered HEOS commands in us, per command
+    */
+   public Map<String, List<Long>> getExchanges() {
+      return exchanges;
+   }
+
+   /**
+    * @return The number of HEOS commands per command and result (e.g. player/set_volume timeout)
+    */
+   public Map<String, Long> getExchangeResults() {
+      return exchangeResults;
+   }
+
+   /**
+    * @return The players used by the requests
+    */
+   public Set<String> getPlayers() {
+      return players;
+   }
+
+   /**
+    * @return The stations used by the requests
+    */
+   public Set<String> getStations() {
+      return stations;
+   }
+
+   /**
+    * @return The playlists used by the requests
+    */
+   public Set<String> getPlaylists() {
+      return playlists;
+   }
+
+   private Request addRequest(long time, String method, String path, String query) {
+      String command;
+      if (path.endsWith("/scene")) {
+         command = "scene";
+      } else if ("POST".equals(method)) {
+         command = "batch";
+         query = decode(query);
+         try {
+            Object operations = new JSONParser().parse(query);
+            if (operations instanceof JSONArray) {
+               for (Object operation : (JSONArray) operations) {
+                  if (operation instanceof JSONObject) {
+                     Map<String, String> parameters = new HashMap<>();
+                     for (Object entry : ((JSONObject) operation).entrySet()) {
+                        Map.Entry<?, ?> parameter = (Map.Entry<?, ?>) entry;
+                        parameters.put(String.valueOf(parameter.getKey()), String.valueOf(parameter.getValue()));
+                     }
+                     addInventory(parameters);
+                  }
+               }
+            }
+         } catch (ParseException pe) {
+            // Replayed as recorded, rejected the same way
+         }
+      } else {
+         Map<String, String> parameters = parseQuery(query);
+         command = parameters.containsKey("command") ? parameters.get("command").toLowerCase() : "unknown";
+         addInventory(parameters);
+      }
+      Request request = new Request(time, method, path, query, command);
+      requests.add(request);
+      return request;
+   }
+
+   private void addExchange(String command, String result, long durationInMicros) {
+      String key = command + " " + result;
+      Long count = exchangeResults.get(key);
+      exchangeResults.put(key, count != null ? count + 1 : 1);
+      // Only answers tell how long the HEOS system takes
+      if ("success".equals(result) || "fail".equals(result)) {
+         List<Long> durations = exchanges.get(command);
+         if (durations == null) {
+            durations = new ArrayList<>();
+            exchanges.put(command, durations);
+         }
+         durations.add(durationInMicros);
+      }
+   }
+
+   private void addInventory(Map<String, String> parameters) {
+      add(players, parameters.get("player"));
+      add(players, parameters.get("inputplayer"));
+      if (parameters.containsKey("members")) {
+         for (String member : parameters.get("members").split(",")) {
+            add(players, member);
+         }
+      }
+      add(stations, parameters.get("station"));
+      add(playlists, parameters.get("playlist"));
+   }
+
+   private static void add(Set<String> values, String value) {
+      if (value != null && !value.trim().isEmpty() && !"null".equals(value)) {
+         values.add(value.trim());
+      }
+   }
+
+   private static Map<String, String> parseQuery(String query) {
+      Map<String, String> parameters = new HashMap<>();
+      for (String parameter : query.split("&")) {
+         int equals = parameter.indexOf('=');
+         if (equals > 0) {
+            parameters.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+         }
+      }
+      return parameters;
+   }
+
+   private static String decode(String value) {
+      try {
+         return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+         return value;
+      }
+   }
+
+}
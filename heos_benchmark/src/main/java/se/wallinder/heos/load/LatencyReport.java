@@ -0,0 +1,95 @@
+package se.wallinder.heos.load;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies and results of requests sent to the servlet, reported as throughput, counts per result and latency percentiles per command
+ */
+public class LatencyReport {
+
+   private final static double[] PERCENTILES = { 50, 90, 99, 99.9 };
+   private final Map<String, Latencies> latencies = new TreeMap<>();
+   private final Map<String, Long> results = new TreeMap<>();
+
+   /**
+    * Records a request
+    *
+    * @param command The command of the request
+    * @param result The result (e.g. SUCCESS, FAILED, http_503, error)
+    * @param latencyInNanos The time from when the request should have been sent to the answer
+    */
+   public synchronized void record(String command, String result, long latencyInNanos) {
+      latency(command).add(latencyInNanos);
+      latency("all").add(latencyInNanos);
+      Long count = results.get(result);
+      results.put(result, count != null ? count + 1 : 1);
+   }
+
+   /**
+    * @return The number of requests recorded
+    */
+   public synchronized int getCount() {
+      Latencies all = latencies.get("all");
+      return all != null ? all.size : 0;
+   }
+
+   /**
+    * Prints the report
+    *
+    * @param out The stream to print to
+    * @param elapsedInNanos The time the requests were sent during
+    */
+   public synchronized void print(PrintStream out, long elapsedInNanos) {
+      double seconds = elapsedInNanos / 1e9;
+      out.println(String.format("Requests: %d in %.1f s, %.1f requests/s", getCount(), seconds, getCount() / Math.max(seconds, 1e-9)));
+      out.println("Results:  " + results);
+      StringBuilder header = new StringBuilder(String.format("%-12s %8s", "Command", "Count"));
+      for (double percentile : PERCENTILES) {
+         header.append(String.format(" %9s", "p" + (percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : percentile)));
+      }
+      out.println(header.append(String.format(" %9s", "max")).append("  (ms)"));
+      for (Map.Entry<String, Latencies> command : latencies.entrySet()) {
+         long[] sorted = Arrays.copyOf(command.getValue().values, command.getValue().size);
+         Arrays.sort(sorted);
+         StringBuilder line = new StringBuilder(String.format("%-12s %8d", command.getKey(), sorted.length));
+         for (double percentile : PERCENTILES) {
+            line.append(String.format(" %9.1f", millis(sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile / 100 * sorted.length) - 1)])));
+         }
+         out.println(line.append(String.format(" %9.1f", millis(sorted[sorted.length - 1]))));
+      }
+   }
+
+   private Latencies latency(String command) {
+      Latencies commandLatencies = latencies.get(command);
+      if (commandLatencies == null) {
+         commandLatencies = new Latencies();
+         latencies.put(command, commandLatencies);
+      }
+      return commandLatencies;
+   }
+
+   private static double millis(long nanos) {
+      return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+   }
+
+   /**
+    * A growing array of latencies
+    */
+   private static class Latencies {
+
+      private long[] values = new long[1024];
+      private int size = 0;
+
+      void add(long value) {
+         if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+         }
+         values[size++] = value;
+      }
+   }
+
+}
@@ -0,0 +1,82 @@
+package se.wallinder.heos.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A Fibaro controller stand-in, accepting every virtual device update with 202 Accepted after an optional latency
+ */
+public class FibaroSimulator implements Closeable {
+
+   private final HttpServer server;
+   private final ExecutorService executor = Executors.newCachedThreadPool();
+   private final AtomicLong requests = new AtomicLong();
+   private volatile HEOSLatency latency = HEOSLatency.none();
+
+   /**
+    * Constructor, starts listening on the loopback interface
+    *
+    * @param port The port to listen on, 0 for any free port
+    * @throws IOException If the port could not be bound
+    */
+   public FibaroSimulator(int port) throws IOException {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 50);
+      server.createContext("/", new HttpHandler() {
+         @Override
+         public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            long delay = latency.sampleInNanos(ThreadLocalRandom.current());
+            if (delay > 0) {
+               try {
+                  TimeUnit.NANOSECONDS.sleep(delay);
+               } catch (InterruptedException ie) {
+                  Thread.currentThread().interrupt();
+               }
+            }
+            exchange.sendResponseHeaders(202, -1);
+            exchange.close();
+         }
+      });
+      server.setExecutor(executor);
+      server.start();
+   }
+
+   /**
+    * @param latency The latency of every request
+    */
+   public void setLatency(HEOSLatency latency) {
+      this.latency = latency;
+   }
+
+   /**
+    * @return The host and port to set as fibaro.host
+    */
+   public String getHost() {
+      return "127.0.0.1:" + server.getAddress().getPort();
+   }
+
+   /**
+    * @return The number of requests received
+    */
+   public long getRequests() {
+      return requests.get();
+   }
+
+   @Override
+   public void close() {
+      server.stop(0);
+      executor.shutdownNow();
+   }
+
+}
@@ -0,0 +1,161 @@
+package se.wallinder.heos.simulator;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of the time the simulated HEOS system takes to answer a command
+ */
+public abstract class HEOSLatency {
+
+   // The number of standard deviations to the 99th percentile of a normal distribution
+   private final static double Z_99 = 2.326;
+
+   /**
+    * @param random The random generator
+    * @return A latency in nanoseconds
+    */
+   public abstract long sampleInNanos(Random random);
+
+   /**
+    * @return No latency
+    */
+   public static HEOSLatency none() {
+      return fixed(0);
+   }
+
+   /**
+    * @param ms The latency
+    * @return Always the same latency
+    */
+   public static HEOSLatency fixed(final double ms) {
+      final long nanos = toNanos(ms);
+      return new HEOSLatency() {
+         @Override
+         public long sampleInNanos(Random random) {
+            return nanos;
+         }
+
+         @Override
+         public String toString() {
+            return "fixed:" + ms;
+         }
+      };
+   }
+
+   /**
+    * @param minMs The lowest latency
+    * @param maxMs The highest latency
+    * @return Latencies evenly spread between the lowest and the highest
+    */
+   public static HEOSLatency uniform(final double minMs, final double maxMs) {
+      return new HEOSLatency() {
+         @Override
+         public long sampleInNanos(Random random) {
+            return toNanos(minMs + random.nextDouble() * (maxMs - minMs));
+         }
+
+         @Override
+         public String toString() {
+            return "uniform:" + minMs + "-" + maxMs;
+         }
+      };
+   }
+
+   /**
+    * @param meanMs The mean latency
+    * @return Exponentially distributed latencies, mostly short with a long tail
+    */
+   public static HEOSLatency exponential(final double meanMs) {
+      return new HEOSLatency() {
+         @Override
+         public long sampleInNanos(Random random) {
+            return toNanos(-meanMs * Math.log(1 - random.nextDouble()));
+         }
+
+         @Override
+         public String toString() {
+            return "exp:" + meanMs;
+         }
+      };
+   }
+
+   /**
+    * @param medianMs The median latency
+    * @param p99Ms The 99th percentile latency
+    * @return Log-normally distributed latencies, the shape of most measured network latencies
+    */
+   public static HEOSLatency logNormal(final double medianMs, final double p99Ms) {
+      final double mu = Math.log(medianMs);
+      final double sigma = Math.log(p99Ms / medianMs) / Z_99;
+      return new HEOSLatency() {
+         @Override
+         public long sampleInNanos(Random random) {
+            return toNanos(Math.exp(mu + sigma * random.nextGaussian()));
+         }
+
+         @Override
+         public String toString() {
+            return "lognormal:" + medianMs + "," + p99Ms;
+         }
+      };
+   }
+
+   /**
+    * @param samplesInNanos Measured latencies, e.g. recorded in production
+    * @return The measured latencies, drawn at random
+    */
+   public static HEOSLatency empirical(final long[] samplesInNanos) {
+      if (samplesInNanos.length == 0) {
+         return none();
+      }
+      return new HEOSLatency() {
+         @Override
+         public long sampleInNanos(Random random) {
+            return samplesInNanos[random.nextInt(samplesInNanos.length)];
+         }
+
+         @Override
+         public String toString() {
+            return "empirical:" + samplesInNanos.length;
+         }
+      };
+   }
+
+   /**
+    * Parses a latency distribution: 0, fixed:20, uniform:10-80, exp:30 or lognormal:20,200 (median and 99th percentile), all in ms
+    *
+    * @param spec The distribution
+    * @return The latency distribution
+    * @throws IllegalArgumentException If not a valid distribution
+    */
+   public static HEOSLatency parse(String spec) {
+      try {
+         int colon = spec.indexOf(':');
+         if (colon < 0) {
+            return fixed(Double.parseDouble(spec));
+         }
+         String type = spec.substring(0, colon);
+         String[] values = spec.substring(colon + 1).split("[-,]");
+         switch (type) {
+         case "fixed":
+            return fixed(Double.parseDouble(values[0]));
+         case "uniform":
+            return uniform(Double.parseDouble(values[0]), Double.parseDouble(values[1]));
+         case "exp":
+            return exponential(Double.parseDouble(values[0]));
+         case "lognormal":
+            return logNormal(Double.parseDouble(values[0]), Double.parseDouble(values[1]));
+         default:
+            throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+         }
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+         throw new IllegalArgumentException("Invalid latency distribution: " + spec);
+      }
+   }
+
+   private static long toNanos(double ms) {
+      return Math.max(0, (long) (ms * TimeUnit.MILLISECONDS.toNanos(1)));
+   }
+
+}
@@ -0,0 +1,732 @@
+package se.wallinder.heos.simulator;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A HEOS CLI, answering the commands the HEOS connector uses from a made up system of players, favorite stations and playlists. Every
+ * connection is served by a thread of its own, change events are sent to the connections registered for them.
+ * <p>
+ * Faults of real devices can be injected: latency per command, "command under process" before browse responses, connections dropped
+ * instead of answering, and responses held back until after the next one. Run on its own for load tests:
+ *
+ * <pre>
+ * java -cp benchmarks.jar se.wallinder.heos.simulator.HEOSSimulator --port 1255 --players 10 --latency lognormal:20,250
+ *    --latency browse/=uniform:100-600 --under-process 0.3 --drop 0.001 --reorder 0.05
+ * </pre>
+ */
+public class HEOSSimulator implements Closeable {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSSimulator.class.getName());
+   private final static String PREFIX = "heos://";
+   private final static String FAVORITES_ID = "1028";
+   private final static String PLAYLISTS_ID = "1025";
+   private final static String UNDER_PROCESS = "command under process";
+   private final static long REORDER_HOLD_IN_MS = 200;
+   private final int port;
+   private final JSONArray players = new JSONArray();
+   private final JSONArray stations = new JSONArray();
+   private final JSONArray playlists = new JSONArray();
+   private final Map<String, String> playStates = new ConcurrentHashMap<>();
+   private final Map<String, String> volumes = new ConcurrentHashMap<>();
+   private final Map<String, List<String>> groups = new ConcurrentHashMap<>();
+   private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+   private volatile boolean signedIn = false;
+   private volatile String user = "";
+   private final Map<String, HEOSLatency> commandLatencies = new ConcurrentHashMap<>();
+   private volatile HEOSLatency latency = HEOSLatency.none();
+   private volatile double underProcessRate = 0;
+   private volatile double dropRate = 0;
+   private volatile double reorderRate = 0;
+   private final AtomicLong commands = new AtomicLong();
+   private final AtomicLong underProcess = new AtomicLong();
+   private final AtomicLong dropped = new AtomicLong();
+   private final AtomicLong reordered = new AtomicLong();
+   private ServerSocket serverSocket;
+   private ScheduledExecutorService responder;
+
+   /**
+    * Constructor
+    *
+    * @param port The port to listen on, 0 for any free port
+    * @param playerCount The number of players
+    * @param stationCount The number of favorite stations
+    * @param playlistCount The number of playlists
+    */
+   public HEOSSimulator(int port, int playerCount, int stationCount, int playlistCount) {
+      LOGGER.setLevel(Level.WARNING);
+      this.port = port;
+      for (int i = 1; i <= playerCount; i++) {
+         addPlayer(String.valueOf(100000 + i), "Player " + i);
+      }
+      for (int i = 1; i <= stationCount; i++) {
+         addStation("s" + (10000 + i), "Station " + i);
+      }
+      for (int i = 1; i <= playlistCount; i++) {
+         addPlaylist(String.valueOf(20000 + i), "Playlist " + i);
+      }
+   }
+
+   /**
+    * Adds a player, before starting (e.g. one seen in a recorded trace)
+    *
+    * @param pid The player ID
+    * @param name The name of the player
+    */
+   @SuppressWarnings("unchecked")
+   public final void addPlayer(String pid, String name) {
+      JSONObject player = new JSONObject();
+      player.put("name", name);
+      player.put("pid", pid.matches("-?\\d+") ? (Object) Long.valueOf(pid) : pid);
+      player.put("model", "HEOS 1");
+      player.put("version", "1.430.160");
+      players.add(player);
+   }
+
+   /**
+    * Adds a favorite station, before starting
+    *
+    * @param mid The media ID of the station
+    * @param name The name of the station
+    */
+   @SuppressWarnings("unchecked")
+   public final void addStation(String mid, String name) {
+      JSONObject station = new JSONObject();
+      station.put("container", "no");
+      station.put("mid", mid);
+      station.put("type", "station");
+      station.put("playable", "yes");
+      station.put("name", name);
+      stations.add(station);
+   }
+
+   /**
+    * Adds a playlist, before starting
+    *
+    * @param cid The container ID of the playlist
+    * @param name The name of the playlist
+    */
+   @SuppressWarnings("unchecked")
+   public final void addPlaylist(String cid, String name) {
+      JSONObject playlist = new JSONObject();
+      playlist.put("container", "yes");
+      playlist.put("cid", cid);
+      playlist.put("type", "playlist");
+      playlist.put("playable", "yes");
+      playlist.put("name", name);
+      playlists.add(playlist);
+   }
+
+   /**
+    * Starts listening on the loopback interface
+    *
+    * @throws IOException If the port could not be bound
+    */
+   public void start() throws IOException {
+      start(InetAddress.getLoopbackAddress());
+   }
+
+   /**
+    * Starts listening
+    *
+    * @param address The address to listen on
+    * @throws IOException If the port could not be bound
+    */
+   public void start(InetAddress address) throws IOException {
+      // Delayed responses are written by one thread, in the order their delays pass
+      responder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HEOS-simulator-responder");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      serverSocket = new ServerSocket();
+      serverSocket.setReuseAddress(true);
+      serverSocket.bind(new InetSocketAddress(address, port));
+      Thread acceptor = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            accept();
+         }
+      }, "HEOS-simulator");
+      acceptor.setDaemon(true);
+      acceptor.start();
+   }
+
+   /**
+    * @return The port listened on
+    */
+   public int getPort() {
+      return serverSocket.getLocalPort();
+   }
+
+   /**
+    * Sets the latency of all commands without a latency of their own
+    *
+    * @param latency The latency distribution
+    */
+   public void setLatency(HEOSLatency latency) {
+      this.latency = latency;
+   }
+
+   /**
+    * Sets the latency of some commands
+    *
+    * @param commandPrefix The start of the commands (e.g. browse/ or player/get_players), the longest matching prefix is used
+    * @param latency The latency distribution
+    */
+   public void setLatency(String commandPrefix, HEOSLatency latency) {
+      commandLatencies.put(commandPrefix, latency);
+   }
+
+   /**
+    * @param underProcessRate The share of browse commands answered with "command under process" before the response, 0 to 1
+    */
+   public void setUnderProcessRate(double underProcessRate) {
+      this.underProcessRate = underProcessRate;
+   }
+
+   /**
+    * @param dropRate The share of commands where the connection is closed instead of answered, 0 to 1
+    */
+   public void setDropRate(double dropRate) {
+      this.dropRate = dropRate;
+   }
+
+   /**
+    * @param reorderRate The share of responses held back until after the next response on the connection, 0 to 1
+    */
+   public void setReorderRate(double reorderRate) {
+      this.reorderRate = reorderRate;
+   }
+
+   /**
+    * Configures a fault from a command line option
+    *
+    * @param option --latency ([prefix=]distribution, see {@link HEOSLatency#parse(String)}), --under-process, --drop or --reorder
+    * @param value The value of the option
+    * @return True if a fault option, false if not
+    */
+   public boolean configure(String option, String value) {
+      switch (option) {
+      case "--latency":
+         int equals = value.indexOf('=');
+         if (equals > 0) {
+            setLatency(value.substring(0, equals), HEOSLatency.parse(value.substring(equals + 1)));
+         } else {
+            setLatency(HEOSLatency.parse(value));
+         }
+         return true;
+      case "--under-process":
+         setUnderProcessRate(Double.parseDouble(value));
+         return true;
+      case "--drop":
+         setDropRate(Double.parseDouble(value));
+         return true;
+      case "--reorder":
+         setReorderRate(Double.parseDouble(value));
+         return true;
+      default:
+         return false;
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "HEOS simulator: " + commands.get() + " commands, " + underProcess.get() + " under process, " + dropped.get() + " dropped, "
+            + reordered.get() + " reordered, " + connections.size() + " connections";
+   }
+
+   @Override
+   public void close() {
+      if (responder != null) {
+         responder.shutdownNow();
+      }
+      try {
+         serverSocket.close();
+      } catch (IOException e) {
+         LOGGER.warning("Could not close the simulator: " + e.getMessage());
+      }
+      for (Connection connection : connections) {
+         connection.close();
+      }
+   }
+
+   /**
+    * Accepts connections until closed
+    */
+   private void accept() {
+      while (!serverSocket.isClosed()) {
+         try {
+            final Connection connection = new Connection(serverSocket.accept());
+            connections.add(connection);
+            Thread reader = new Thread(new Runnable() {
+               @Override
+               public void run() {
+                  connection.serve();
+               }
+            }, "HEOS-simulator-connection");
+            reader.setDaemon(true);
+            reader.start();
+         } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+               LOGGER.warning("Could not accept connection: " + e.getMessage());
+            }
+         }
+      }
+   }
+
+   /**
+    * Answers a command as if received on a connection not registered for change events
+    *
+    * @param line The command (heos://command?arguments)
+    * @return The response
+    */
+   public String answer(String line) {
+      return answer(null, line);
+   }
+
+   /**
+    * Answers a command
+    *
+    * @param connection The connection the command was received on, null if none
+    * @param line The command (heos://command?arguments)
+    * @return The response
+    */
+   String answer(Connection connection, String line) {
+      String request = line.startsWith(PREFIX) ? line.substring(PREFIX.length()) : line;
+      int question = request.indexOf('?');
+      String command = question < 0 ? request : request.substring(0, question);
+      String query = question < 0 ? "" : request.substring(question + 1);
+      Map<String, String> arguments = parseQuery(query);
+      String pid = arguments.get("pid");
+      switch (command) {
+      case "system/heart_beat":
+         return response(command, "success", query, null);
+      case "system/register_for_change_events":
+         if (connection != null) {
+            connection.events = "on".equals(arguments.get("enable"));
+         }
+         return response(command, "success", query, null);
+      case "system/check_account":
+         return response(command, "success", (signedIn ? "signed_in&un=" + user : "signed_out") + "&" + query, null);
+      case "system/sign_in":
+         signedIn = true;
+         user = arguments.containsKey("un") ? arguments.get("un") : "";
+         broadcast(response("event/user_changed", null, "signed_in&un=" + user, null));
+         return response(command, "success", "signed_in&" + query, null);
+      case "player/get_players":
+         return response(command, "success", query, players);
+      case "player/get_play_state":
+         return response(command, "success", "pid=" + pid + "&state=" + value(playStates, pid, "stop") + "&" + query, null);
+      case "player/set_play_state":
+         put(playStates, pid, arguments.get("state"));
+         broadcast(response("event/player_state_changed", null, "pid=" + pid + "&state=" + arguments.get("state"), null));
+         return response(command, "success", query, null);
+      case "player/get_volume":
+         return response(command, "success", "pid=" + pid + "&level=" + value(volumes, pid, "10") + "&" + query, null);
+      case "player/set_volume":
+         put(volumes, pid, arguments.get("level"));
+         broadcast(response("event/player_volume_changed", null, "pid=" + pid + "&level=" + arguments.get("level") + "&mute=off", null));
+         return response(command, "success", query, null);
+      case "player/get_mute":
+         return response(command, "success", "pid=" + pid + "&state=off&" + query, null);
+      case "player/get_now_playing_media":
+         return response(command, "success", query, nowPlaying(pid));
+      case "group/get_groups":
+         return response(command, "success", query, groups());
+      case "group/set_group":
+         setGroup(arguments.get("pid"));
+         broadcast(response("event/groups_changed", null, "", null));
+         return response(command, "success", query, null);
+      case "group/set_volume":
+         return response(command, "success", query, null);
+      case "browse/browse":
+         if (!signedIn) {
+            return response(command, "fail", "eid=8&text=User not logged In&" + query, null);
+         }
+         if (FAVORITES_ID.equals(arguments.get("sid"))) {
+            return response(command, "success", query, stations);
+         }
+         if (PLAYLISTS_ID.equals(arguments.get("sid"))) {
+            return response(command, "success", query, playlists);
+         }
+         return response(command, "success", query, new JSONArray());
+      case "browse/play_stream":
+      case "browse/add_to_queue":
+      case "browse/play_input":
+         if (!signedIn && !"browse/play_input".equals(command)) {
+            return response(command, "fail", "eid=8&text=User not logged In&" + query, null);
+         }
+         put(playStates, pid, "play");
+         broadcast(response("event/player_state_changed", null, "pid=" + pid + "&state=play", null));
+         broadcast(response("event/player_now_playing_changed", null, "pid=" + pid, null));
+         return response(command, "success", query, null);
+      default:
+         return response(command, "fail", "eid=1&text=Unrecognized Command&" + query, null);
+      }
+   }
+
+   /**
+    * Sends an event to the connections registered for change events
+    */
+   void broadcast(String event) {
+      for (Connection connection : connections) {
+         if (connection.events) {
+            connection.write(event);
+         }
+      }
+   }
+
+   /**
+    * Creates a response
+    */
+   @SuppressWarnings("unchecked")
+   static String response(String command, String result, String message, Object payload) {
+      JSONObject heos = new JSONObject();
+      heos.put("command", command);
+      if (result != null) {
+         heos.put("result", result);
+      }
+      heos.put("message", message);
+      JSONObject response = new JSONObject();
+      response.put("heos", heos);
+      if (payload != null) {
+         response.put("payload", payload);
+      }
+      return response.toJSONString();
+   }
+
+   /**
+    * Parses the arguments of a command
+    */
+   static Map<String, String> parseQuery(String query) {
+      Map<String, String> arguments = new HashMap<>();
+      for (String argument : query.split("&")) {
+         int equals = argument.indexOf('=');
+         if (equals > 0) {
+            arguments.put(argument.substring(0, equals), decode(argument.substring(equals + 1)));
+         }
+      }
+      return arguments;
+   }
+
+   private static String decode(String value) {
+      try {
+         return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+         return value;
+      }
+   }
+
+   private static void put(Map<String, String> values, String key, String value) {
+      if (key != null && value != null) {
+         values.put(key, value);
+      }
+   }
+
+   private static String value(Map<String, String> values, String key, String defaultValue) {
+      String value = key != null ? values.get(key) : null;
+      return value != null ? value : defaultValue;
+   }
+
+   /**
+    * @return The latency of a command, from the longest matching prefix
+    */
+   private HEOSLatency latencyOf(String command) {
+      HEOSLatency match = latency;
+      int matchLength = -1;
+      for (Map.Entry<String, HEOSLatency> commandLatency : commandLatencies.entrySet()) {
+         if (command.startsWith(commandLatency.getKey()) && commandLatency.getKey().length() > matchLength) {
+            match = commandLatency.getValue();
+            matchLength = commandLatency.getKey().length();
+         }
+      }
+      return match;
+   }
+
+   @SuppressWarnings("unchecked")
+   private JSONObject nowPlaying(String pid) {
+      boolean playing = "play".equals(playStates.get(pid));
+      JSONObject media = new JSONObject();
+      media.put("type", "station");
+      media.put("song", playing ? "Song" : "");
+      media.put("album", "");
+      media.put("artist", playing ? "Artist" : "");
+      media.put("station", playing && !stations.isEmpty() ? ((JSONObject) stations.get(0)).get("name") : "");
+      media.put("mid", "s10001");
+      media.put("sid", 1028);
+      return media;
+   }
+
+   /**
+    * Groups players, the first is the leader, a single player is ungrouped
+    */
+   private void setGroup(String pids) {
+      if (pids == null) {
+         return;
+      }
+      List<String> members = new ArrayList<>();
+      for (String pid : pids.split(",")) {
+         members.add(pid.trim());
+      }
+      // A player is only in one group
+      for (Map.Entry<String, List<String>> group : new LinkedHashMap<>(groups).entrySet()) {
+         if (!Collections.disjoint(group.getValue(), members)) {
+            groups.remove(group.getKey());
+         }
+      }
+      if (members.size() > 1) {
+         groups.put(members.get(0), members);
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private JSONArray groups() {
+      JSONArray result = new JSONArray();
+      for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+         JSONArray members = new JSONArray();
+         for (String pid : group.getValue()) {
+            JSONObject member = new JSONObject();
+            member.put("name", "Player " + pid);
+            member.put("pid", pid);
+            member.put("role", pid.equals(group.getKey()) ? "leader" : "member");
+            members.add(member);
+         }
+         JSONObject entry = new JSONObject();
+         entry.put("name", "Group " + group.getKey());
+         entry.put("gid", group.getKey());
+         entry.put("players", members);
+         result.add(entry);
+      }
+      return result;
+   }
+
+   /**
+    * A connection from a client
+    */
+   class Connection {
+
+      private final Socket socket;
+      private final OutputStream output;
+      private volatile boolean events = false;
+      private String held = null;
+
+      Connection(Socket socket) throws IOException {
+         this.socket = socket;
+         this.socket.setTcpNoDelay(true);
+         this.output = socket.getOutputStream();
+      }
+
+      /**
+       * Answers commands until the connection is closed
+       */
+      void serve() {
+         try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               line = line.trim();
+               if (!line.isEmpty() && !respond(line)) {
+                  break;
+               }
+            }
+         } catch (IOException e) {
+            // Closed by either side
+         } finally {
+            close();
+         }
+      }
+
+      /**
+       * Answers a command, with the faults injected
+       *
+       * @return False if the connection was dropped
+       */
+      private boolean respond(String line) {
+         Random random = ThreadLocalRandom.current();
+         commands.incrementAndGet();
+         if (random.nextDouble() < dropRate) {
+            dropped.incrementAndGet();
+            close();
+            return false;
+         }
+         String request = line.startsWith(PREFIX) ? line.substring(PREFIX.length()) : line;
+         int question = request.indexOf('?');
+         String command = question < 0 ? request : request.substring(0, question);
+         final String response = answer(this, line);
+         if (command.startsWith("browse/") && random.nextDouble() < underProcessRate) {
+            underProcess.incrementAndGet();
+            write(response(command, "success", UNDER_PROCESS + (question < 0 ? "" : "&" + request.substring(question + 1)), null));
+         }
+         long delay = latencyOf(command).sampleInNanos(random);
+         if (delay <= 0) {
+            send(response);
+            return true;
+         }
+         try {
+            responder.schedule(new Runnable() {
+               @Override
+               public void run() {
+                  send(response);
+               }
+            }, delay, TimeUnit.NANOSECONDS);
+         } catch (RejectedExecutionException ree) {
+            // Closed
+         }
+         return true;
+      }
+
+      /**
+       * Sends a response, or holds it back until after the next response
+       */
+      private void send(String response) {
+         String release;
+         synchronized (this) {
+            if (held == null && ThreadLocalRandom.current().nextDouble() < reorderRate) {
+               reordered.incrementAndGet();
+               held = response;
+               scheduleRelease();
+               return;
+            }
+            release = held;
+            held = null;
+         }
+         write(response);
+         if (release != null) {
+            write(release);
+         }
+      }
+
+      /**
+       * Sends a held back response if no other response came in time
+       */
+      private void scheduleRelease() {
+         try {
+            responder.schedule(new Runnable() {
+               @Override
+               public void run() {
+                  String release;
+                  synchronized (Connection.this) {
+                     release = held;
+                     held = null;
+                  }
+                  if (release != null) {
+                     write(release);
+                  }
+               }
+            }, REORDER_HOLD_IN_MS, TimeUnit.MILLISECONDS);
+         } catch (RejectedExecutionException ree) {
+            // Closed
+         }
+      }
+
+      /**
+       * Writes a message, responses and events are never interleaved
+       */
+      void write(String message) {
+         byte[] bytes = (message + "\r\n").getBytes(StandardCharsets.UTF_8);
+         synchronized (output) {
+            try {
+               output.write(bytes);
+               output.flush();
+            } catch (IOException e) {
+               close();
+            }
+         }
+      }
+
+      void close() {
+         connections.remove(this);
+         try {
+            socket.close();
+         } catch (IOException e) {
+            // Already closed
+         }
+      }
+   }
+
+   /**
+    * Runs the simulator until stopped
+    *
+    * @param args --port, --bind, --players, --stations, --playlists, --latency [prefix=]distribution (repeatable), --under-process, --drop
+    *           and --reorder
+    * @throws Exception If the simulator could not be started
+    */
+   public static void main(String[] args) throws Exception {
+      int port = 1255;
+      String bind = null;
+      int players = 10;
+      int stations = 20;
+      int playlists = 5;
+      List<String[]> faults = new ArrayList<>();
+      for (int i = 0; i + 1 < args.length; i += 2) {
+         switch (args[i]) {
+         case "--port":
+            port = Integer.parseInt(args[i + 1]);
+            break;
+         case "--bind":
+            bind = args[i + 1];
+            break;
+         case "--players":
+            players = Integer.parseInt(args[i + 1]);
+            break;
+         case "--stations":
+            stations = Integer.parseInt(args[i + 1]);
+            break;
+         case "--playlists":
+            playlists = Integer.parseInt(args[i + 1]);
+            break;
+         default:
+            faults.add(new String[] { args[i], args[i + 1] });
+            break;
+         }
+      }
+      final HEOSSimulator simulator = new HEOSSimulator(port, players, stations, playlists);
+      for (String[] fault : faults) {
+         if (!simulator.configure(fault[0], fault[1])) {
+            throw new IllegalArgumentException("Unknown option: " + fault[0]);
+         }
+      }
+      simulator.start(bind != null ? InetAddress.getByName(bind) : InetAddress.getLoopbackAddress());
+      System.out.println("HEOS simulator listening on " + simulator.serverSocket.getLocalSocketAddress() + ", players " + 100001 + " to "
+            + (100000 + players));
+      while (true) {
+         Thread.sleep(10000);
+         System.out.println(simulator);
+      }
+   }
+
+}
@@ -0,0 +1,191 @@
+package se.wallinder.heos.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The states of the circuit breaker: opening on failed and slow calls, the shared probe, and the window of the latest calls
+ */
+public class CircuitBreakerTest {
+
+   private final static long SLOW_CALL_IN_MS = 10;
+   private final static long OPEN_IN_MS = 50;
+   private final static long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+   private final static long SLOW = TimeUnit.MILLISECONDS.toNanos(20);
+
+   /**
+    * @return A breaker opening at 50% failed or 80% slow of the latest 10 calls, at least 5 calls
+    */
+   private static CircuitBreaker breaker() {
+      return new CircuitBreaker("test", 10, 5, 50, SLOW_CALL_IN_MS, 80, OPEN_IN_MS);
+   }
+
+   /**
+    * Opens the breaker with failed calls
+    */
+   private static void open(CircuitBreaker breaker) {
+      for (int i = 0; i < 5; i++) {
+         assertTrue(breaker.tryAcquire());
+         breaker.onFailure();
+      }
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+   }
+
+   /**
+    * Waits until the probe is let through
+    */
+   private static void waitForProbe() throws InterruptedException {
+      Thread.sleep(OPEN_IN_MS + 10);
+   }
+
+   @Test
+   public void staysClosedBelowMinimumCalls() {
+      CircuitBreaker breaker = breaker();
+      for (int i = 0; i < 4; i++) {
+         assertTrue(breaker.tryAcquire());
+         breaker.onFailure();
+      }
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+      assertEquals(0, breaker.getRetryAfterInSeconds());
+   }
+
+   @Test
+   public void opensOnFailedCalls() {
+      CircuitBreaker breaker = breaker();
+      open(breaker);
+      assertFalse(breaker.isCallPermitted());
+      assertFalse(breaker.tryAcquire());
+      assertTrue(breaker.getRetryAfterInSeconds() >= 1);
+      assertEquals(1, breaker.getTransitionCount());
+   }
+
+   @Test
+   public void opensOnSlowCalls() {
+      CircuitBreaker breaker = breaker();
+      for (int i = 0; i < 5; i++) {
+         assertTrue(breaker.tryAcquire());
+         breaker.onSuccess(SLOW);
+      }
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertEquals("100% of 5 calls slow", breaker.getTransitions().get(0).getReason());
+   }
+
+   @Test
+   public void staysClosedOnFastCalls() {
+      CircuitBreaker breaker = breaker();
+      for (int i = 0; i < 20; i++) {
+         assertTrue(breaker.tryAcquire());
+         breaker.onSuccess(FAST);
+      }
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+      assertEquals("closed, 0% failed and 0% slow of 10 calls", breaker.toString());
+   }
+
+   @Test
+   public void letsOneProbeThroughAndClosesWhenItSucceeds() throws InterruptedException {
+      CircuitBreaker breaker = breaker();
+      open(breaker);
+      waitForProbe();
+      assertTrue(breaker.isCallPermitted());
+      assertTrue(breaker.tryAcquire());
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+      // The probe is shared, other callers are rejected until it is answered
+      assertFalse(breaker.isCallPermitted());
+      assertFalse(breaker.tryAcquire());
+      breaker.onSuccess(FAST);
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+      assertTrue(breaker.tryAcquire());
+
+      List<CircuitBreaker.Transition> transitions = breaker.getTransitions();
+      assertEquals(3, transitions.size());
+      assertEquals("closed to open (100% of 5 calls failed)", transitions.get(0).toString());
+      assertEquals("open to half open (probing)", transitions.get(1).toString());
+      assertEquals("half open to closed (probe succeeded)", transitions.get(2).toString());
+   }
+
+   @Test
+   public void opensAgainWhenTheProbeFails() throws InterruptedException {
+      CircuitBreaker breaker = breaker();
+      open(breaker);
+      waitForProbe();
+      assertTrue(breaker.tryAcquire());
+      breaker.onFailure();
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertFalse(breaker.tryAcquire());
+      assertEquals("probe failed", breaker.getTransitions().get(2).getReason());
+   }
+
+   @Test
+   public void opensAgainWhenTheProbeIsSlow() throws InterruptedException {
+      CircuitBreaker breaker = breaker();
+      open(breaker);
+      waitForProbe();
+      assertTrue(breaker.tryAcquire());
+      breaker.onSuccess(SLOW);
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertEquals("probe slow", breaker.getTransitions().get(2).getReason());
+   }
+
+   @Test
+   public void letsAnotherProbeThroughWhenTheProbeIsNotAnswered() throws InterruptedException {
+      CircuitBreaker breaker = breaker();
+      open(breaker);
+      waitForProbe();
+      assertTrue(breaker.tryAcquire());
+      assertFalse(breaker.tryAcquire());
+      waitForProbe();
+      assertTrue(breaker.tryAcquire());
+      assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+   }
+
+   @Test
+   public void ignoresCallsAnsweredAfterOpening() {
+      CircuitBreaker breaker = breaker();
+      open(breaker);
+      breaker.onSuccess(FAST);
+      breaker.onFailure();
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertEquals(1, breaker.getTransitionCount());
+   }
+
+   @Test
+   public void forgetsCallsLeavingTheWindow() {
+      CircuitBreaker breaker = new CircuitBreaker("test", 4, 4, 50, SLOW_CALL_IN_MS, 80, OPEN_IN_MS);
+      breaker.onSuccess(FAST);
+      breaker.onFailure();
+      breaker.onSuccess(FAST);
+      breaker.onSuccess(FAST);
+      assertEquals("closed, 25% failed and 0% slow of 4 calls", breaker.toString());
+      // The two oldest calls leave the window, the failure with them
+      breaker.onSuccess(FAST);
+      breaker.onSuccess(FAST);
+      assertEquals("closed, 0% failed and 0% slow of 4 calls", breaker.toString());
+      // So two new failures are needed to open
+      breaker.onFailure();
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+      breaker.onFailure();
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertEquals("50% of 4 calls failed", breaker.getTransitions().get(0).getReason());
+   }
+
+   @Test
+   public void startsWithAnEmptyWindowWhenClosed() throws InterruptedException {
+      CircuitBreaker breaker = breaker();
+      open(breaker);
+      waitForProbe();
+      assertTrue(breaker.tryAcquire());
+      breaker.onSuccess(FAST);
+      assertEquals("closed, 0% failed and 0% slow of 0 calls", breaker.toString());
+      // The failures before opening are forgotten, the minimum number of calls is needed again
+      for (int i = 0; i < 4; i++) {
+         breaker.onFailure();
+      }
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+   }
+}
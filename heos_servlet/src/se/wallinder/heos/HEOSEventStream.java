@@ -0,0 +1,473 @@
+package se.wallinder.heos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.json.simple.JSONObject;
+
+import se.wallinder.heos.connector.HEOSConnector;
+import se.wallinder.heos.connector.HEOSStateListener;
+import se.wallinder.heos.connector.HEOSStateModel;
+import se.wallinder.heos.util.ServletThreads;
+
+/**
+ * Pushes the changes of the state model to subscribers, as server-sent events or as answers to long-polls. All subscribers are served from
+ * the change events of the HEOS connector, the changes are computed once per version and only filtered per subscriber. No thread is held
+ * while a subscriber waits, and no thread waits for a subscriber reading slowly.
+ */
+class HEOSEventStream implements HEOSStateListener {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSEventStream.class.getName());
+   private final HEOSConnector heosConnector;
+   private final Set<Subscriber> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+   private final ScheduledExecutorService dispatcher;
+   private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+   private final long pollTimeoutInMs;
+   private final int maxSubscribers;
+   private final int maxBufferedBytes;
+
+   /**
+    * Constructor, subscribes to the changes of the HEOS connector
+    *
+    * @param heosConnector The HEOS connector
+    * @param pollTimeoutInMs The time a long-poll waits for changes
+    * @param heartbeatIntervalInMs The time between heartbeats to event streams, also how quickly closed streams are found
+    * @param maxSubscribers The maximum number of subscribers
+    * @param maxBufferedBytes The maximum number of bytes not yet written to a subscriber, a subscriber with more is dropped
+    */
+   HEOSEventStream(HEOSConnector heosConnector, long pollTimeoutInMs, long heartbeatIntervalInMs, int maxSubscribers, int maxBufferedBytes) {
+      LOGGER.setLevel(Level.WARNING);
+      this.heosConnector = heosConnector;
+      this.pollTimeoutInMs = pollTimeoutInMs;
+      this.maxSubscribers = maxSubscribers;
+      this.maxBufferedBytes = maxBufferedBytes;
+      // Everything sent to subscribers is sent on one thread, in order, never waiting for a slow client
+      this.dispatcher = Executors.newSingleThreadScheduledExecutor(ServletThreads.named("HEOS-events"));
+      dispatcher.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            heartbeat();
+         }
+      }, heartbeatIntervalInMs, heartbeatIntervalInMs, TimeUnit.MILLISECONDS);
+      heosConnector.addStateListener(this);
+   }
+
+   /**
+    * Creates the JSON document of changes
+    *
+    * @param changes The changes
+    * @param players The players to include, null for everything
+    * @return The document, null if there is nothing to tell about the players
+    */
+   @SuppressWarnings("unchecked")
+   static JSONObject createDocument(HEOSStateModel.Changes changes, Set<String> players) {
+      JSONObject document = new JSONObject();
+      document.put("version", changes.getVersion());
+      document.put("full", changes.isFull());
+      if (players == null) {
+         document.putAll(changes.getValues());
+         if (!changes.getRemoved().isEmpty()) {
+            document.put("removed", changes.getRemoved());
+         }
+         return document;
+      }
+
+      // Only the players asked for
+      Map<String, Map<String, Object>> playerValues = changes.getValues().get(HEOSStateModel.PLAYERS);
+      Map<String, Map<String, Object>> filteredValues = new HashMap<>();
+      if (playerValues != null) {
+         filteredValues.putAll(playerValues);
+         filteredValues.keySet().retainAll(players);
+      }
+      List<String> removedPlayers = changes.getRemoved().get(HEOSStateModel.PLAYERS);
+      boolean removed = removedPlayers != null && !Collections.disjoint(removedPlayers, players);
+      if (filteredValues.isEmpty() && !removed && !changes.isFull()) {
+         return null;
+      }
+      document.put(HEOSStateModel.PLAYERS, filteredValues);
+      if (removed) {
+         JSONObject removedDocument = new JSONObject();
+         removedDocument.put(HEOSStateModel.PLAYERS, removedPlayers);
+         document.put("removed", removedDocument);
+      }
+      return document;
+   }
+
+   /**
+    * Adds a subscriber, the request must have been started asynchronously
+    *
+    * @param context The async context of the request
+    * @param players The players to follow, null for everything
+    * @param sinceVersion The version the subscriber has, 0 for everything
+    * @param stream True for server-sent events, false for a long-poll
+    * @return True if added, false if too many subscribers
+    */
+   boolean subscribe(AsyncContext context, Set<String> players, long sinceVersion, boolean stream) {
+      if (subscribers.size() >= maxSubscribers) {
+         LOGGER.warning("Too many subscribers, " + subscribers.size());
+         return false;
+      }
+      final Subscriber subscriber = new Subscriber(context, players, sinceVersion, stream, maxBufferedBytes);
+      context.setTimeout(stream ? 0 : pollTimeoutInMs);
+      context.addListener(new AsyncListener() {
+         @Override
+         public void onComplete(AsyncEvent event) {
+            subscribers.remove(subscriber);
+         }
+
+         @Override
+         public void onTimeout(AsyncEvent event) {
+            subscribers.remove(subscriber);
+            subscriber.timeout();
+         }
+
+         @Override
+         public void onError(AsyncEvent event) {
+            subscribers.remove(subscriber);
+            subscriber.close();
+         }
+
+         @Override
+         public void onStartAsync(AsyncEvent event) {
+            // Not used
+         }
+      });
+      subscribers.add(subscriber);
+      if (!subscriber.open()) {
+         // The client is gone, the request already completed
+         subscribers.remove(subscriber);
+         return true;
+      }
+      // Something may already have changed since the version of the subscriber
+      scheduleDispatch();
+      return true;
+   }
+
+   @Override
+   public void stateChanged(long version) {
+      scheduleDispatch();
+   }
+
+   /**
+    * @return The number of subscribers
+    */
+   int getSubscriberCount() {
+      return subscribers.size();
+   }
+
+   /**
+    * Stops pushing changes and closes all subscribers
+    */
+   void close() {
+      heosConnector.removeStateListener(this);
+      dispatcher.shutdownNow();
+      for (Subscriber subscriber : subscribers) {
+         subscriber.close();
+      }
+      subscribers.clear();
+   }
+
+   /**
+    * Schedules sending the changes to the subscribers, changes arriving before the dispatch are sent together
+    */
+   private void scheduleDispatch() {
+      if (!dispatchScheduled.compareAndSet(false, true)) {
+         return;
+      }
+      try {
+         dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+               dispatchScheduled.set(false);
+               dispatch();
+            }
+         });
+      } catch (RejectedExecutionException ree) {
+         dispatchScheduled.set(false);
+      }
+   }
+
+   /**
+    * Sends the changes to all subscribers, computed once per version the subscribers have
+    */
+   private void dispatch() {
+      Map<Long, HEOSStateModel.Changes> changesBySince = new HashMap<>();
+      for (Subscriber subscriber : subscribers) {
+         long since = subscriber.getVersion();
+         HEOSStateModel.Changes changes = changesBySince.get(since);
+         if (changes == null) {
+            changes = heosConnector.getState(since);
+            changesBySince.put(since, changes);
+         }
+         if (changes.isEmpty()) {
+            continue;
+         }
+         if (!subscriber.send(changes)) {
+            subscribers.remove(subscriber);
+         }
+      }
+   }
+
+   /**
+    * Keeps the event streams open and finds the ones closed by the client
+    */
+   private void heartbeat() {
+      for (Subscriber subscriber : subscribers) {
+         if (!subscriber.heartbeat()) {
+            subscribers.remove(subscriber);
+         }
+      }
+   }
+
+   /**
+    * A client waiting for changes. Nothing is written blocking: text is added to a buffer of the subscriber and written when the client is
+    * ready for it, a subscriber not reading fast enough to keep the buffer from filling up is dropped.
+    */
+   private static class Subscriber implements WriteListener {
+
+      private final AsyncContext context;
+      private final Set<String> players;
+      private final boolean stream;
+      private final int maxBufferedBytes;
+      private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      private ServletOutputStream output;
+      private long version;
+      private boolean completed = false;
+      // Complete when the buffer has been written, e.g. an answered long-poll
+      private boolean completing = false;
+      // A lock instead of the monitor, so a virtual thread never pins its carrier
+      private final ReentrantLock lock = new ReentrantLock();
+
+      /**
+       * Constructor
+       */
+      Subscriber(AsyncContext context, Set<String> players, long version, boolean stream, int maxBufferedBytes) {
+         this.context = context;
+         this.players = players;
+         this.version = version;
+         this.stream = stream;
+         this.maxBufferedBytes = maxBufferedBytes;
+      }
+
+      /**
+       * @return The version the subscriber has
+       */
+      long getVersion() {
+         lock.lock();
+         try {
+            return version;
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      /**
+       * Starts writing without blocking, an event stream is told it is connected
+       *
+       * @return False if the client is gone
+       */
+      boolean open() {
+         lock.lock();
+         try {
+            output = context.getResponse().getOutputStream();
+            output.setWriteListener(this);
+            return !stream || write(": connected\n\n");
+         } catch (IOException | IllegalStateException e) {
+            complete();
+            return false;
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      /**
+       * Sends changes, a long-poll is answered and completed
+       *
+       * @param changes The changes since the version of the subscriber
+       * @return False if the subscriber is done
+       */
+      boolean send(HEOSStateModel.Changes changes) {
+         lock.lock();
+         try {
+            if (completed || completing) {
+               return false;
+            }
+            version = changes.getVersion();
+            JSONObject document = createDocument(changes, players);
+            if (document == null) {
+               return true;
+            }
+            if (!stream) {
+               write(document.toJSONString());
+               completeWhenWritten();
+               return false;
+            }
+            return write("id: " + changes.getVersion() + "\nevent: state\ndata: " + document.toJSONString() + "\n\n");
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      /**
+       * Sends a comment to an event stream
+       *
+       * @return False if the subscriber is done
+       */
+      boolean heartbeat() {
+         lock.lock();
+         try {
+            if (completed || completing) {
+               return false;
+            }
+            return !stream || write(": heartbeat\n\n");
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      /**
+       * Answers a long-poll which got no changes in time
+       */
+      @SuppressWarnings("unchecked")
+      void timeout() {
+         lock.lock();
+         try {
+            if (completed || completing) {
+               return;
+            }
+            if (!stream) {
+               JSONObject document = new JSONObject();
+               document.put("version", version);
+               document.put("full", false);
+               write(document.toJSONString());
+            }
+            completeWhenWritten();
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      /**
+       * Closes the subscriber
+       */
+      void close() {
+         lock.lock();
+         try {
+            complete();
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      /**
+       * Called by the container when the client is ready for more
+       */
+      @Override
+      public void onWritePossible() {
+         lock.lock();
+         try {
+            flush();
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+         close();
+      }
+
+      /**
+       * Adds text to the buffer and writes as much as the client is ready for, only called holding the lock
+       *
+       * @return False if the client is gone or too slow
+       */
+      private boolean write(String text) {
+         if (completed) {
+            return false;
+         }
+         byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+         if (buffer.size() + bytes.length > maxBufferedBytes) {
+            LOGGER.warning("Subscriber not reading, dropped with " + buffer.size() + " bytes not written");
+            complete();
+            return false;
+         }
+         buffer.write(bytes, 0, bytes.length);
+         return flush();
+      }
+
+      /**
+       * Writes the buffer while the client is ready, completes when written if asked to, only called holding the lock
+       *
+       * @return False if the client is gone
+       */
+      private boolean flush() {
+         if (completed || output == null) {
+            return !completed;
+         }
+         try {
+            while (buffer.size() > 0 && output.isReady()) {
+               byte[] bytes = buffer.toByteArray();
+               buffer.reset();
+               output.write(bytes);
+               if (output.isReady()) {
+                  output.flush();
+               }
+            }
+            if (buffer.size() == 0 && completing) {
+               complete();
+            }
+            return true;
+         } catch (IOException | IllegalStateException e) {
+            complete();
+            return false;
+         }
+      }
+
+      /**
+       * Completes the request when the buffer has been written, only called holding the lock
+       */
+      private void completeWhenWritten() {
+         completing = true;
+         flush();
+      }
+
+      /**
+       * Completes the request, only called holding the lock
+       */
+      private void complete() {
+         if (completed) {
+            return;
+         }
+         completed = true;
+         buffer.reset();
+         try {
+            context.complete();
+         } catch (IllegalStateException ise) {
+            // Already completed by the container
+         }
+      }
+   }
+
+}
@@ -1,462 +1,944 @@
-package se.wallinder.heos;
-
-import static se.wallinder.heos.util.ServletConstants.FIBARO_VD_LABEL_ID;
-import static se.wallinder.heos.util.ServletConstants.FIBARO_VD_SLIDER_ID;
-import static se.wallinder.heos.util.ServletConstants.HEOS_DEFAULT_VOLUME;
-import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_COMMAND;
-import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_INPUT_NAME;
-import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_INPUT_PLAYER;
-import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_LABEL_TEXT;
-import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_PLAYER;
-import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_PLAYLIST;
-import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_STATION;
-import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_VIRTUAL_DEVICE;
-import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_VOLUME;
-import static se.wallinder.heos.util.ServletConstants.SERVLET_VERSION;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintWriter;
-import java.net.URLEncoder;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.SortedSet;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import javax.servlet.ServletConfig;
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
-import se.wallinder.heos.connector.FibaroConnector;
-import se.wallinder.heos.connector.HEOSConnector;
-import se.wallinder.heos.util.ServletConstants.HEOSCommands;
-import se.wallinder.heos.util.ServletProperties;
-
-/**
- * Servlet implementation class HEOS
- */
-public class HEOSServlet extends HttpServlet {
-
-   private final static long serialVersionUID = 1L;
-   private final static Logger LOGGER = Logger.getLogger(HEOSServlet.class.getName());
-   private final static long EVERY_HOUR_MS = 60 * 60 * 1000;
-   private final Timer timer;
-   private Date lastConnection;
-   private ServletProperties properties;
-   private HEOSConnector heosConnector;
-   private FibaroConnector fibaroConnector;
-
-   /**
-    * Constructor
-    */
-   public HEOSServlet() {
-      LOGGER.setLevel(Level.WARNING);
-      timer = new Timer();
-   }
-
-   /**
-    * Send heartbeat requests to the HEOS-system to keep the connection alive
-    */
-   class HeartbeatTimer extends TimerTask {
-      @Override
-      public void run() {
-         // Check if connected
-         boolean connected = heosConnector.isConnected();
-         if (!connected) {
-            heosConnector.connect();
-            // Try again
-            connected = heosConnector.isConnected();
-            if (!connected) {
-               LOGGER.warning("HEOS-system did not respond");
-            }
-         }
-         lastConnection = connected ? new Date(System.currentTimeMillis()) : lastConnection;
-      }
-   }
-
-   @Override
-   public void init(ServletConfig config) throws ServletException {
-      super.init(config);
-      InputStream propertiesFile = getServletContext().getResourceAsStream("/WEB-INF/settings.properties");
-      properties = new ServletProperties(propertiesFile);
-      heosConnector = new HEOSConnector(properties.getHeosHost(), properties.getHeosUser(), properties.getHeosPassword());
-      fibaroConnector = new FibaroConnector(properties.getFibaroHost(), properties.getFibaroUser(), properties.getFibaroPassword());
-      timer.schedule(new HeartbeatTimer(), EVERY_HOUR_MS, EVERY_HOUR_MS);
-   }
-
-   @Override
-   public void destroy() {
-      timer.cancel();
-      super.destroy();
-   }
-
-   /**
-    * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
-    */
-   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-      try {
-
-         // If no arguments - list players, stations and settings
-         if (request.getParameterMap().keySet().isEmpty()) {
-            createHeosInfoResponse(request, response);
-            return;
-         }
-
-         // Get request parameters
-         String player = request.getParameter(REQUEST_PARAM_PLAYER);
-         String command = request.getParameter(REQUEST_PARAM_COMMAND);
-         if (player == null || player.isEmpty() || command == null || command.isEmpty()) {
-            LOGGER.warning("Invalid request, missing paramenters for player and command");
-            response.getWriter().print("FAILED");
-            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-            return;
-         }
-
-         // Verify player
-         if (!heosConnector.getPlayers().containsKey(player)) {
-            LOGGER.warning("Invalid request, invalid player: " + player);
-            response.getWriter().print("FAILED");
-            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-            return;
-         }
-
-         // Find out which command
-         HEOSCommands heosCommand;
-         try {
-            heosCommand = HEOSCommands.valueOf(command.toUpperCase());
-         } catch (IllegalArgumentException iae) {
-            LOGGER.warning("Invalid request, invalid command: " + command);
-            response.getWriter().print("FAILED");
-            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-            return;
-         }
-
-         // Command okay, check if connected
-         if (!heosConnector.isConnected()) {
-            heosConnector.connect();
-            // Check again
-            if (!heosConnector.isConnected()) {
-               LOGGER.severe("Not connected to the HEOS system");
-               response.getWriter().print("FAILED");
-               response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-               return;
-            }
-         }
-
-         boolean result = false;
-         switch (heosCommand) {
-
-         /********
-          * PLAY *
-          ********/
-         case PLAY:
-            if (result = heosConnector.play(player)) {
-               String fibaroVD = request.getParameter(REQUEST_PARAM_VIRTUAL_DEVICE);
-               if (fibaroVD != null && !fibaroVD.isEmpty()) {
-                  fibaroConnector.setTextLabel(fibaroVD, "label", URLEncoder.encode(heosConnector.getNowPlaying(player), "UTF-8"));
-               }
-            }
-            break;
-
-         /********
-          * STOP *
-          ********/
-         case STOP:
-            if (result = heosConnector.stop(player)) {
-               String fibaroVD = request.getParameter(REQUEST_PARAM_VIRTUAL_DEVICE);
-               if (fibaroVD != null && !fibaroVD.isEmpty()) {
-                  fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, "");
-               }
-            }
-            break;
-
-         /***********
-          * STATION *
-          ***********/
-         case STATION:
-            // Find out which station to play
-            String station = request.getParameter(REQUEST_PARAM_STATION) != null ? request.getParameter(REQUEST_PARAM_STATION) : "";
-            if (!heosConnector.getStations().containsKey(station)) {
-               LOGGER.warning("Invalid request, invalid station: " + station);
-               response.getWriter().print("FAILED");
-               response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-               return;
-            }
-            if (result = heosConnector.station(player, station)) {
-               String fibaroVD = request.getParameter(REQUEST_PARAM_VIRTUAL_DEVICE);
-               String labelText = request.getParameter(REQUEST_PARAM_LABEL_TEXT);
-               if (fibaroVD != null && !fibaroVD.isEmpty() && labelText != null && !labelText.isEmpty()) {
-                  fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, URLEncoder.encode(labelText, "UTF-8"));
-               }
-            }
-            break;
-
-         /************
-          * PLAYLIST *
-          ************/
-         case PLAYLIST:
-            // Find out which playlist to play
-            String playlist = request.getParameter(REQUEST_PARAM_PLAYLIST) != null ? request.getParameter(REQUEST_PARAM_PLAYLIST) : "";
-            if (!heosConnector.getPlaylists().containsKey(playlist)) {
-               LOGGER.severe("Invalid request, invalid playlist: " + playlist);
-               response.getWriter().print("FAILED");
-               response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-               return;
-            }
-            if (result = heosConnector.playlist(player, playlist)) {
-               String fibaroVD = request.getParameter(REQUEST_PARAM_VIRTUAL_DEVICE);
-               if (fibaroVD != null && !fibaroVD.isEmpty()) {
-                  String playlistName = heosConnector.getPlaylists().get(playlist);
-                  fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, URLEncoder.encode(playlistName, "UTF-8"));
-               }
-            }
-            break;
-
-         /************
-          * INPUT *
-          ************/
-         case INPUT:
-            // Find out source player/input to play
-            String inputPlayer = request.getParameter(REQUEST_PARAM_INPUT_PLAYER) != null ? request.getParameter(REQUEST_PARAM_INPUT_PLAYER) : "";
-            String inputName = request.getParameter(REQUEST_PARAM_INPUT_NAME) != null ? request.getParameter(REQUEST_PARAM_INPUT_NAME) : "";
-            if (!heosConnector.getPlayers().containsKey(inputPlayer)) {
-               LOGGER.severe("Invalid request, invalid input player: " + inputPlayer);
-               response.getWriter().print("FAILED");
-               response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-               return;
-            }
-            if (result = heosConnector.input(player, inputPlayer, inputName)) {
-               String fibaroVD = request.getParameter(REQUEST_PARAM_VIRTUAL_DEVICE);
-               String labelText = request.getParameter(REQUEST_PARAM_LABEL_TEXT);
-               if (fibaroVD != null && !fibaroVD.isEmpty() && labelText != null && !labelText.isEmpty()) {
-                  fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, URLEncoder.encode(labelText, "UTF-8"));
-               }
-            }
-            break;
-
-         /***********
-          * VOLUME *
-          ***********/
-         case VOLUME:
-            // Find out volume
-            try {
-               String volumeValue = request.getParameter(REQUEST_PARAM_VOLUME) != null ? request.getParameter(REQUEST_PARAM_VOLUME) : "";
-               int volume = Integer.parseInt(volumeValue);
-               if (volume < 0 || volume > 100) {
-                  LOGGER.warning("Invalid request, invalid volume: " + volume);
-                  response.getWriter().print("FAILED");
-                  response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                  return;
-               }
-               result = heosConnector.volume(player, volume);
-            } catch (NumberFormatException nfe) {
-               LOGGER.warning("Invalid request, invalid volume");
-               response.getWriter().print("FAILED");
-               response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-               return;
-            }
-            break;
-
-         /*******************
-          * ALARM & TRIGGER *
-          *******************/
-         case ALARM:
-         case TRIGGER:
-            // If TRIGGER and already playing - return
-            if ((heosCommand == HEOSCommands.TRIGGER) && heosConnector.isPlaying(player)) {
-               response.getWriter().print("SUCCESS");
-               response.setStatus(HttpServletResponse.SC_OK);
-               lastConnection = new Date(System.currentTimeMillis());
-               return;
-            }
-            // Find out which station to play
-            station = request.getParameter(REQUEST_PARAM_STATION) != null ? request.getParameter(REQUEST_PARAM_STATION) : "";
-            if (!heosConnector.getStations().containsKey(station)) {
-               LOGGER.severe("Invalid request, invalid station: " + station);
-               response.getWriter().print("FAILED");
-               response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-               return;
-            }
-            // Find out volume
-            int volume = HEOS_DEFAULT_VOLUME;
-            try {
-               String volumeValue = request.getParameter(REQUEST_PARAM_VOLUME) != null ? request.getParameter(REQUEST_PARAM_VOLUME) : "";
-               volume = Integer.parseInt(volumeValue);
-               if (volume < 0 || volume > 100) {
-                  LOGGER.severe("Invalid request, invalid volume: " + volume);
-                  response.getWriter().print("FAILED");
-                  response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                  return;
-               }
-            } catch (NumberFormatException nfe) {
-               LOGGER.severe("Invalid request, invalid volume");
-               response.getWriter().print("FAILED");
-               response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-               return;
-            }
-
-            // First set volume, then play station
-            if (result = (heosConnector.volume(player, volume) && heosConnector.station(player, station))) {
-               // Update label
-               String fibaroVD = request.getParameter(REQUEST_PARAM_VIRTUAL_DEVICE);
-               String labelText = request.getParameter(REQUEST_PARAM_LABEL_TEXT);
-               if (fibaroVD != null && !fibaroVD.isEmpty() && labelText != null && !labelText.isEmpty()) {
-                  fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, URLEncoder.encode(labelText, "UTF-8"));
-               }
-               // Update slider - will result in another volume call
-               if (fibaroVD != null && !fibaroVD.isEmpty()) {
-                  fibaroConnector.setVolumeSlider(fibaroVD, FIBARO_VD_SLIDER_ID, volume);
-               }
-            }
-            break;
-
-         default:
-            break;
-         }
-
-         // End of the road
-         LOGGER.info(heosCommand.name() + " requested on player " + heosConnector.getPlayers().get(player) + ", result: " + (result ? "SUCCESS" : "FAILED"));
-         response.getWriter().print(result ? "SUCCESS" : "FAILED");
-         lastConnection = result ? new Date(System.currentTimeMillis()) : lastConnection;
-         response.setStatus(HttpServletResponse.SC_OK);
-
-      } catch (Exception e) {
-         LOGGER.severe("Error while processing request: " + e.getMessage());
-      }
-   }
-
-   /**
-    * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse * response)
-    */
-   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-      // Post is not used!
-      response.setStatus(HttpServletResponse.SC_OK);
-   }
-
-   /**
-    * Creates a response with information about players, stations and settings
-    * 
-    * @param response The response which will be updated
-    * @throws IOException
-    */
-   private void createHeosInfoResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
-      response.setContentType("text/html;charset=UTF-8");
-      PrintWriter writer = response.getWriter();
-      writer.println("<html>");
-      writer.println("<head><title>HEOS Servlet</title></head>");
-      writer.println("<body style='background-color:#E0F2F7;color:#2E2E2E;font-family:monospace;font-size:12px;'>");
-
-      // Heading
-      writer.println("<h1 style='font-family:sans-serif;font-size:30px;color:#426d6e;margin-bottom: 5px;'>Denon HEOS Servlet</h1>");
-      writer.println("<div>" + getValue("Servlet version") + SERVLET_VERSION + "</div>");
-
-      // List settings
-      writer.println("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>Settings</h1>");
-      writer.println("<div>" + getValue("Settings file") + getServletContext().getResource("/WEB-INF/settings.properties").getPath() + "</div>");
-      boolean isConnected = heosConnector.isConnected();
-      lastConnection = isConnected ? new Date(System.currentTimeMillis()) : lastConnection;
-      writer.println("<div>" + getValue("HEOS host") + properties.getHeosHost() + (isConnected ? " (connected)" : " (disconnected)") + "</div>");
-      writer.println("<div>" + getValue("HEOS user") + properties.getHeosUser()
-            + (heosConnector.isUserSignedIn(properties.getHeosUser()) ? " (signed in)" : " (signed out)") + "</div>");
-      writer.println("<div>" + getValue("HEOS connection") + (lastConnection != null ? new SimpleDateFormat("yyyy-MM-dd HH:mm").format(lastConnection) : "-")
-            + "</div>");
-      writer.println("<div>" + getValue("Fibaro host") + properties.getFibaroHost() + "</div>");
-      writer.println("<br><div>To change settings, update settings file and reload Servlet</div>");
-
-      // List players
-      writer.println("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>HEOS players</h1>");
-      heosConnector.updatePlayers();
-      Map<String, String> players = heosConnector.getPlayers();
-      SortedSet<Entry<String, String>> sortedKeys = heosConnector.entriesSortedByValues(players);
-      for (Entry<String, String> entry : sortedKeys) {
-         String key = entry.getKey();
-         String value = entry.getValue();
-         writer.println("<div>" + getValue(key) + getValue(value) + heosConnector.getNowPlaying(key) + "</div>");
-      }
-
-      // List favorites
-      writer.println("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>Favorite stations</h1>");
-      heosConnector.updateStations();
-      Map<String, String> stations = heosConnector.getStations();
-      sortedKeys = heosConnector.entriesSortedByValues(stations);
-      for (Entry<String, String> entry : sortedKeys) {
-         String key = entry.getKey();
-         String value = entry.getValue();
-         writer.println("<div>" + getValue(key) + value + "</div>");
-      }
-
-      // List playlists
-      writer.println("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>Playlists</h1>");
-      heosConnector.updatePlaylists();
-      Map<String, String> playlists = heosConnector.getPlaylists();
-      sortedKeys = heosConnector.entriesSortedByValues(playlists);
-      for (Entry<String, String> entry : sortedKeys) {
-         String key = entry.getKey();
-         String value = entry.getValue();
-         writer.println("<div>" + getValue(key) + value + "</div>");
-      }
-
-      // API
-      String playCommand = getBaseURL(request) + "?player=12345&command=play&vd=123";
-      String stopCommand = getBaseURL(request) + "?player=12345&command=stop&vd=123";
-      String volumeCommand = getBaseURL(request) + "?player=12345&command=volume&volume=50&vd=123";
-      String stationCommand = getBaseURL(request) + "?player=12345&command=station&station=s12345&vd=123&labeltext=Example%20Station";
-      String playlistCommand = getBaseURL(request) + "?player=12345&command=playlist&playlist=12345&vd=123&labeltext=Example%20Playlist";
-      String inputCommand = getBaseURL(request) + "?player=12345&command=input&inputplayer=23456&inputname=inputs/optical_in_1&vd=123&labeltext=Input%20Aux";
-      String alarmCommand = getBaseURL(request) + "?player=12345&command=alarm&station=s12345&volume=50&vd=123&labeltext=Station%20ABC";
-      String triggerCommand = getBaseURL(request) + "?player=12345&command=trigger&station=s12345&volume=50&vd=123&labeltext=Station%20ABC";
-      writer.println("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>API</h1>");
-      writer.println("<div><b>" + getValue("Start playback") + "</b>" + playCommand + "</div>");
-      writer.println("<div><b>" + getValue("Stop playback") + "</b>" + stopCommand + "</div>");
-      writer.println("<div><b>" + getValue("Set volume") + "</b>" + volumeCommand + "</div>");
-      writer.println("<div><b>" + getValue("Play station") + "</b>" + stationCommand + "</div>");
-      writer.println("<div><b>" + getValue("Play playlist") + "</b>" + playlistCommand + "</div>");
-      writer.println("<div><b>" + getValue("Play input") + "</b>" + inputCommand + "</div>");
-      writer.println("<div><b>" + getValue("Alarm") + "</b>" + alarmCommand + "</div>");
-      writer.println("<div><b>" + getValue("Trigger") + "</b>" + triggerCommand + "</div>");
-      writer.println("<br><div>" + getValue("Parameters") + getValue("command") + "Command to run</div>");
-      writer.println("<div>" + getValue("") + getValue("player") + "HEOS player (id)</div>");
-      writer.println("<div>" + getValue("") + getValue("volume") + "Volume, 0 to 100 (value)</div>");
-      writer.println("<div>" + getValue("") + getValue("station") + "Favorite station (id)</div>");
-      writer.println("<div>" + getValue("") + getValue("playlist") + "Playlist (id)</div>");
-      writer.println("<div>" + getValue("") + getValue("inputplayer") + "HEOS player (id) with input source</div>");
-      writer.println("<div>" + getValue("") + getValue("inputname") + "Input source name</div>");
-      writer.println("<div>" + getValue("") + getValue("vd") + "Fibaro virtual device (optional) (id)</div>");
-      writer.println("<div>" + getValue("") + getValue("labeltext") + "Fibaro \"now playing\"-label text (optional) (string)</div>");
-      writer.println(
-            "<br><div>" + getValue("") + "\"Alarm\" always changes station and volume whereas \"Trigger\" doesn't if the player is already playing</div>");
-      writer.println("<div>" + getValue("")
-            + "Parameters \"vd\" (virtual device) and \"labeltext\" are used to update volume slider and labeltext in the Fibaro GUI</div>");
-      writer.println("<div>" + getValue("") + "The slider id must be set to \"slider\" and the label id to \"label\"</div>");
-
-      writer.println("</body>");
-      writer.println("</html>");
-      response.setStatus(HttpServletResponse.SC_OK);
-   }
-
-   /**
-    * @param request The HTTP request
-    * @return The base URL of this servlet
-    */
-   private String getBaseURL(HttpServletRequest request) {
-      return "http://" + request.getServerName() + ":" + request.getServerPort() + request.getContextPath();
-   }
-
-   /**
-    * Formats a value
-    * 
-    * @param value The value
-    * @return The formatted value string
-    */
-   private String getValue(String value) {
-      return String.format("%1$-20s", value).replace(" ", "&nbsp;");
-   }
-
-}
+package se.wallinder.heos;
+
+import static se.wallinder.heos.util.ServletConstants.COMMAND_DEADLINE_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.COMMAND_MAX_DEADLINE_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.COMMAND_QUEUE_SIZE;
+import static se.wallinder.heos.util.ServletConstants.COMMAND_THREADS;
+import static se.wallinder.heos.util.ServletConstants.COMMAND_VIRTUAL_THREADS;
+import static se.wallinder.heos.util.ServletConstants.EVENTS_HEARTBEAT_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.EVENTS_MAX_BUFFERED_BYTES;
+import static se.wallinder.heos.util.ServletConstants.EVENTS_MAX_SUBSCRIBERS;
+import static se.wallinder.heos.util.ServletConstants.EVENTS_MODE_STREAM;
+import static se.wallinder.heos.util.ServletConstants.EVENTS_POLL_TIMEOUT_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_BATCH_THREADS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_PORT;
+import static se.wallinder.heos.util.ServletConstants.RECORD_QUEUE_SIZE;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_COMMAND;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_DEADLINE;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_MODE;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_PLAYER;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_PLAYERS;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_REFRESH;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_SCENE;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_SINCE;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PATH_BATCH;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PATH_EVENTS;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PATH_METRICS;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PATH_SCENE;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PATH_STATE;
+import static se.wallinder.heos.util.ServletConstants.SERVLET_VERSION;
+import static se.wallinder.heos.util.ServletConstants.STATUS_REFRESH_IN_MS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import se.wallinder.heos.command.HEOSBatchRunner;
+import se.wallinder.heos.command.HEOSCommandQueue;
+import se.wallinder.heos.command.HEOSCommandRunner;
+import se.wallinder.heos.command.HEOSOperation;
+import se.wallinder.heos.command.HEOSOperationResult;
+import se.wallinder.heos.command.HEOSScene;
+import se.wallinder.heos.connector.FibaroConnector;
+import se.wallinder.heos.connector.HEOSConnector;
+import se.wallinder.heos.connector.HEOSStateModel;
+import se.wallinder.heos.util.CircuitBreaker;
+import se.wallinder.heos.util.ServletHost;
+import se.wallinder.heos.util.ServletMetrics;
+import se.wallinder.heos.util.ServletProperties;
+import se.wallinder.heos.util.ServletRecorder;
+import se.wallinder.heos.util.ServletThreads;
+
+/**
+ * Servlet implementation class HEOS
+ */
+public class HEOSServlet extends HttpServlet {
+
+   private final static long serialVersionUID = 1L;
+   private final static Logger LOGGER = Logger.getLogger(HEOSServlet.class.getName());
+   private final static ServletMetrics.Histogram REQUEST_DURATION = ServletMetrics.histogram("heos_servlet_request_duration_seconds",
+         "Time from receiving a command request to answering it, including the time queued", "command", "result");
+   private volatile Date lastConnection;
+   private ServletProperties properties;
+   private HEOSConnector heosConnector;
+   private FibaroConnector fibaroConnector;
+   private HEOSCommandRunner commandRunner;
+   private HEOSBatchRunner batchRunner;
+   private Map<String, HEOSScene> scenes;
+   private HEOSStatusPage statusPage;
+   private HEOSEventStream eventStream;
+   private HEOSCommandQueue commandQueue;
+
+   /**
+    * Constructor
+    */
+   public HEOSServlet() {
+      LOGGER.setLevel(Level.WARNING);
+   }
+
+   /**
+    * A request handled asynchronously on the command queue, answered once: by the command queue when run, or when the deadline has passed
+    *
+    * @param <R> The result of the queued work
+    */
+   private abstract class QueuedRequest<R> implements AsyncListener, HEOSCommandQueue.Callback<R> {
+
+      private final AsyncContext context;
+      private final long deadlineInMs;
+      private final AtomicBoolean answered = new AtomicBoolean();
+      final long start = System.nanoTime();
+      private final long recorded = ServletRecorder.current();
+      private volatile Future<?> future;
+
+      /**
+       * Constructor
+       * 
+       * @param context The async context of the request
+       * @param deadlineInMs The time the client waits for the answer
+       */
+      QueuedRequest(AsyncContext context, long deadlineInMs) {
+         this.context = context;
+         this.deadlineInMs = deadlineInMs;
+      }
+
+      /**
+       * Queues the work
+       *
+       * @param deadline The time (System.nanoTime) after which the work must not be started
+       * @return The future of the work
+       * @throws RejectedExecutionException If the queue is full
+       */
+      abstract Future<?> queue(long deadline);
+
+      /**
+       * Answers the request as failed
+       *
+       * @param status The HTTP status
+       * @param result The reason, as a metric label
+       * @param error The reason, as a text
+       */
+      abstract void failed(int status, String result, String error);
+
+      /**
+       * Queues the work, answers at once if the queue is full
+       */
+      void submit() {
+         context.setTimeout(deadlineInMs);
+         context.addListener(this);
+         try {
+            future = queue(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineInMs));
+         } catch (RejectedExecutionException ree) {
+            ((HttpServletResponse) context.getResponse()).setHeader("Retry-After", "1");
+            failed(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "rejected", "command queue full");
+         }
+      }
+
+      @Override
+      public void notConnected() {
+         failed(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "not_connected", "not connected to the HEOS system");
+      }
+
+      @Override
+      public void expired() {
+         failed(HttpServletResponse.SC_GATEWAY_TIMEOUT, "timeout", "deadline passed");
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) {
+         LOGGER.warning("Deadline passed, " + this);
+         // Not started yet - never start it, started - let it finish in the background
+         Future<?> queued = future;
+         if (queued != null) {
+            commandQueue.cancel(queued);
+         }
+         failed(HttpServletResponse.SC_GATEWAY_TIMEOUT, "timeout", "deadline passed");
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+         answered.set(true);
+         Future<?> queued = future;
+         if (queued != null) {
+            commandQueue.cancel(queued);
+         }
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) {
+         // Not used
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+         // Not used
+      }
+
+      /**
+       * Answers the request, unless already answered
+       *
+       * @param status The HTTP status
+       * @param body The body
+       * @param text The result recorded, SUCCESS or FAILED
+       * @return True if answered, false if already answered
+       */
+      boolean answer(int status, String body, String text) {
+         if (!answered.compareAndSet(false, true)) {
+            return false;
+         }
+         ServletRecorder.answer(recorded, status, text, start);
+         try {
+            ((HttpServletResponse) context.getResponse()).setStatus(status);
+            context.getResponse().getWriter().print(body);
+         } catch (IOException | IllegalStateException e) {
+            LOGGER.warning("Could not answer request, " + e.getMessage());
+         }
+         try {
+            context.complete();
+         } catch (IllegalStateException ise) {
+            // Already completed by the container
+         }
+         return true;
+      }
+   }
+
+   /**
+    * A command request
+    */
+   private class CommandRequest extends QueuedRequest<HEOSOperationResult> {
+
+      private final HEOSOperation operation;
+
+      /**
+       * Constructor
+       * 
+       * @param context The async context of the request
+       * @param operation The operation
+       * @param deadlineInMs The time the client waits for the answer
+       */
+      CommandRequest(AsyncContext context, HEOSOperation operation, long deadlineInMs) {
+         super(context, deadlineInMs);
+         this.operation = operation;
+      }
+
+      @Override
+      Future<?> queue(long deadline) {
+         return commandQueue.submit(operation, deadline, this);
+      }
+
+      @Override
+      public void completed(HEOSOperationResult result) {
+         lastConnection = result.isSuccess() ? new Date(System.currentTimeMillis()) : lastConnection;
+         String text = result.isSuccess() ? "SUCCESS" : "FAILED";
+         if (answer(HttpServletResponse.SC_OK, text, text)) {
+            REQUEST_DURATION.recordSince(start, operation.getCommand().name(), result.isSuccess() ? "success" : "failed");
+         }
+      }
+
+      @Override
+      void failed(int status, String result, String error) {
+         if (answer(status, "FAILED", "FAILED")) {
+            REQUEST_DURATION.recordSince(start, operation.getCommand().name(), result);
+         }
+      }
+
+      @Override
+      public String toString() {
+         return operation.toString();
+      }
+   }
+
+   /**
+    * A batch or scene request, answered with the result and duration of each operation
+    */
+   private class BatchRequest extends QueuedRequest<List<HEOSOperationResult>> {
+
+      private final List<HEOSOperation> operations;
+      private final JSONObject document;
+
+      /**
+       * Constructor
+       * 
+       * @param context The async context of the request
+       * @param operations The operations
+       * @param document The response document
+       * @param deadlineInMs The time the client waits for the answer
+       */
+      BatchRequest(AsyncContext context, List<HEOSOperation> operations, JSONObject document, long deadlineInMs) {
+         super(context, deadlineInMs);
+         this.operations = operations;
+         this.document = document;
+      }
+
+      @Override
+      Future<?> queue(long deadline) {
+         return commandQueue.submit(operations, deadline, this);
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public void completed(List<HEOSOperationResult> operationResults) {
+         boolean success = true;
+         JSONArray results = new JSONArray();
+         for (HEOSOperationResult operationResult : operationResults) {
+            HEOSOperation operation = operationResult.getOperation();
+            JSONObject result = new JSONObject();
+            result.put(REQUEST_PARAM_PLAYER, operation.getPlayer());
+            result.put(REQUEST_PARAM_COMMAND, operation.getCommand().name().toLowerCase());
+            result.put("result", operationResult.isSuccess() ? "SUCCESS" : "FAILED");
+            result.put("durationInMs", operationResult.getDurationInMs());
+            results.add(result);
+            success &= operationResult.isSuccess();
+         }
+         // A copy, the deadline may pass at the same time
+         JSONObject answer = new JSONObject(document);
+         answer.put("result", success ? "SUCCESS" : "FAILED");
+         answer.put("durationInMs", (System.nanoTime() - start) / 1000000);
+         answer.put("operations", results);
+         lastConnection = success ? new Date(System.currentTimeMillis()) : lastConnection;
+         answer(HttpServletResponse.SC_OK, answer.toJSONString(), success ? "SUCCESS" : "FAILED");
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      void failed(int status, String result, String error) {
+         JSONObject answer = new JSONObject(document);
+         answer.put("result", "FAILED");
+         answer.put("error", error);
+         answer(status, answer.toJSONString(), "FAILED");
+      }
+
+      @Override
+      public String toString() {
+         return "batch of " + operations.size() + " operations";
+      }
+   }
+
+   @Override
+   public void init(ServletConfig config) throws ServletException {
+      super.init(config);
+      InputStream propertiesFile = getServletContext().getResourceAsStream("/WEB-INF/settings.properties");
+      properties = new ServletProperties(propertiesFile);
+      // A setting not valid is a configuration error, found before anything is started
+      boolean virtualThreadsWanted;
+      int fibaroConcurrency;
+      try {
+         for (String heosHost : properties.getHeosHosts()) {
+            ServletHost.parse(heosHost, HEOS_PORT);
+         }
+         ServletHost.parse(properties.getFibaroHost(), 80);
+         virtualThreadsWanted = properties.isVirtualThreads();
+         fibaroConcurrency = properties.getFibaroConcurrency();
+      } catch (IllegalArgumentException iae) {
+         LOGGER.severe("Invalid settings, " + iae.getMessage());
+         throw new ServletException("Invalid settings in /WEB-INF/settings.properties, " + iae.getMessage(), iae);
+      }
+      // Before any thread is created
+      boolean virtualThreads = ServletThreads.setVirtual(virtualThreadsWanted);
+      // Before connecting, so the first HEOS commands are recorded too
+      if (properties.getRecordFile() != null) {
+         try {
+            ServletRecorder.start(properties.getRecordFile(), RECORD_QUEUE_SIZE);
+         } catch (IOException e) {
+            LOGGER.severe("Could not open the record file " + properties.getRecordFile() + ", not recording");
+         }
+      }
+      heosConnector = new HEOSConnector(properties.getHeosHosts(), properties.getHeosUser(), properties.getHeosPassword());
+      fibaroConnector = new FibaroConnector(properties.getFibaroHost(), properties.getFibaroUser(), properties.getFibaroPassword(),
+            fibaroConcurrency);
+      commandRunner = new HEOSCommandRunner(heosConnector, fibaroConnector);
+      batchRunner = new HEOSBatchRunner(commandRunner, HEOS_BATCH_THREADS);
+      // Waiting virtual threads are cheap, so more commands can wait for the HEOS system at the same time
+      commandQueue = new HEOSCommandQueue(commandRunner, batchRunner, virtualThreads ? COMMAND_VIRTUAL_THREADS : COMMAND_THREADS, COMMAND_QUEUE_SIZE);
+      scenes = HEOSScene.load(getServletContext().getResourceAsStream("/WEB-INF/scenes.properties"));
+      String settingsFile;
+      try {
+         settingsFile = getServletContext().getResource("/WEB-INF/settings.properties").getPath();
+      } catch (MalformedURLException e) {
+         settingsFile = "-";
+      }
+      statusPage = new HEOSStatusPage(heosConnector, properties, scenes, settingsFile, STATUS_REFRESH_IN_MS, HEOS_BATCH_THREADS);
+      eventStream = new HEOSEventStream(heosConnector, EVENTS_POLL_TIMEOUT_IN_MS, EVENTS_HEARTBEAT_IN_MS, EVENTS_MAX_SUBSCRIBERS,
+            EVENTS_MAX_BUFFERED_BYTES);
+   }
+
+   @Override
+   public void destroy() {
+      batchRunner.close();
+      commandQueue.close();
+      statusPage.close();
+      eventStream.close();
+      fibaroConnector.close();
+      heosConnector.close();
+      ServletRecorder.stop();
+      super.destroy();
+   }
+
+   /**
+    * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+    */
+   protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      try {
+
+         // Scenes
+         if (REQUEST_PATH_SCENE.equals(request.getServletPath())) {
+            long start = System.nanoTime();
+            long recorded = ServletRecorder.enter(request.getMethod(), request.getServletPath(), request.getQueryString());
+            String result = createSceneResponse(request, response);
+            if (result != null) {
+               ServletRecorder.answer(recorded, response.getStatus(), result, start);
+            }
+            return;
+         }
+
+         // State
+         if (REQUEST_PATH_STATE.equals(request.getServletPath())) {
+            createStateResponse(request, response);
+            return;
+         }
+
+         // Changes as they happen
+         if (REQUEST_PATH_EVENTS.equals(request.getServletPath())) {
+            createEventsResponse(request, response);
+            return;
+         }
+
+         // Metrics
+         if (REQUEST_PATH_METRICS.equals(request.getServletPath())) {
+            createMetricsResponse(response);
+            return;
+         }
+
+         // If no arguments (or only refresh) - list players, stations and settings
+         Set<String> parameterNames = request.getParameterMap().keySet();
+         if (parameterNames.isEmpty() || (parameterNames.size() == 1 && parameterNames.contains(REQUEST_PARAM_REFRESH))) {
+            createHeosInfoResponse(request, response);
+            return;
+         }
+
+         // Get and verify request parameters
+         long start = System.nanoTime();
+         long recorded = ServletRecorder.enter(request.getMethod(), request.getServletPath(), request.getQueryString());
+         HEOSOperation operation;
+         try {
+            operation = HEOSOperation.create(request.getParameter(REQUEST_PARAM_PLAYER), request.getParameter(REQUEST_PARAM_COMMAND),
+                  getParameters(request), heosConnector);
+         } catch (IllegalArgumentException iae) {
+            LOGGER.warning("Invalid request, " + iae.getMessage());
+            response.getWriter().print("FAILED");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            ServletRecorder.answer(recorded, HttpServletResponse.SC_BAD_REQUEST, "FAILED", start);
+            return;
+         }
+
+         // Command okay, run it on the command queue without holding the container thread
+         long deadlineInMs = COMMAND_DEADLINE_IN_MS;
+         String deadlineParameter = request.getParameter(REQUEST_PARAM_DEADLINE);
+         if (deadlineParameter != null && !deadlineParameter.isEmpty()) {
+            try {
+               deadlineInMs = Math.max(1, Math.min(COMMAND_MAX_DEADLINE_IN_MS, Long.parseLong(deadlineParameter)));
+            } catch (NumberFormatException nfe) {
+               LOGGER.warning("Invalid request, invalid deadline: " + deadlineParameter);
+               response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+               response.getWriter().print("FAILED");
+               ServletRecorder.answer(recorded, HttpServletResponse.SC_BAD_REQUEST, "FAILED", start);
+               return;
+            }
+         }
+
+         // While the circuit is open, answer at once instead of queueing a command bound to fail
+         CircuitBreaker circuitBreaker = heosConnector.getCircuitBreaker();
+         if (!circuitBreaker.isCallPermitted()) {
+            response.setHeader("Retry-After", String.valueOf(circuitBreaker.getRetryAfterInSeconds()));
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().print("FAILED");
+            REQUEST_DURATION.recordSince(start, operation.getCommand().name(), "circuit_open");
+            ServletRecorder.answer(recorded, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "FAILED", start);
+            return;
+         }
+         new CommandRequest(request.startAsync(), operation, deadlineInMs).submit();
+
+      } catch (Exception e) {
+         LOGGER.severe("Error while processing request: " + e.getMessage());
+      } finally {
+         ServletRecorder.exit();
+      }
+   }
+
+   /**
+    * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse * response)
+    */
+   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      if (REQUEST_PATH_BATCH.equals(request.getServletPath())) {
+         long start = System.nanoTime();
+         String body = readBody(request);
+         long recorded = ServletRecorder.enter(request.getMethod(), request.getServletPath(), URLEncoder.encode(body, "UTF-8"));
+         try {
+            String result = createBatchResponse(request, body, response);
+            if (result != null) {
+               ServletRecorder.answer(recorded, response.getStatus(), result, start);
+            }
+         } finally {
+            ServletRecorder.exit();
+         }
+         return;
+      }
+      // Post is not used!
+      response.setStatus(HttpServletResponse.SC_OK);
+   }
+
+   /**
+    * Runs a batch of operations, a JSON array of objects with the same parameters as a command request, and responds with the result of each
+    * operation. Nothing is run unless all operations are valid.
+    * 
+    * @param request The request
+    * @param body The body of the request
+    * @param response The response which will be updated
+    * @return The result, FAILED if answered at once, null if answered when run
+    * @throws IOException
+    */
+   @SuppressWarnings("unchecked")
+   private String createBatchResponse(HttpServletRequest request, String body, HttpServletResponse response) throws IOException {
+      response.setContentType("application/json;charset=UTF-8");
+      JSONObject document = new JSONObject();
+
+      // Parse and verify all operations first
+      List<HEOSOperation> operations = new ArrayList<>();
+      JSONArray results = new JSONArray();
+      boolean valid = true;
+      try {
+         Object array = new JSONParser().parse(body);
+         if (!(array instanceof JSONArray)) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+         }
+         for (Object element : (JSONArray) array) {
+            JSONObject result = new JSONObject();
+            Map<String, String> parameters = new HashMap<>();
+            if (element instanceof JSONObject) {
+               for (Object entry : ((JSONObject) element).entrySet()) {
+                  Entry<Object, Object> parameter = (Entry<Object, Object>) entry;
+                  parameters.put(String.valueOf(parameter.getKey()), parameter.getValue() != null ? String.valueOf(parameter.getValue()) : null);
+               }
+            }
+            result.put(REQUEST_PARAM_PLAYER, parameters.get(REQUEST_PARAM_PLAYER));
+            result.put(REQUEST_PARAM_COMMAND, parameters.get(REQUEST_PARAM_COMMAND));
+            try {
+               operations.add(HEOSOperation.create(parameters.get(REQUEST_PARAM_PLAYER), parameters.get(REQUEST_PARAM_COMMAND), parameters, heosConnector));
+            } catch (IllegalArgumentException iae) {
+               LOGGER.warning("Invalid batch request, " + iae.getMessage());
+               result.put("result", "FAILED");
+               result.put("error", iae.getMessage());
+               valid = false;
+            }
+            results.add(result);
+         }
+      } catch (ParseException pe) {
+         LOGGER.warning("Invalid batch request, not a JSON array");
+         document.put("result", "FAILED");
+         document.put("error", "not a JSON array");
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+         response.getWriter().print(document.toJSONString());
+         return "FAILED";
+      }
+      if (!valid) {
+         document.put("result", "FAILED");
+         document.put("operations", results);
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+         response.getWriter().print(document.toJSONString());
+         return "FAILED";
+      }
+
+      // All okay, run
+      return runOperations(request, operations, document, response);
+   }
+
+   /**
+    * Runs a scene, configured in the scenes file, and responds with the result of each step
+    * 
+    * @param request The request
+    * @param response The response which will be updated
+    * @return The result, FAILED if answered at once, null if answered when run
+    * @throws IOException
+    */
+   @SuppressWarnings("unchecked")
+   private String createSceneResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+      response.setContentType("application/json;charset=UTF-8");
+      JSONObject document = new JSONObject();
+      String sceneID = request.getParameter(REQUEST_PARAM_SCENE);
+      HEOSScene scene = sceneID != null ? scenes.get(sceneID) : null;
+      if (scene == null) {
+         LOGGER.warning("Invalid request, invalid scene: " + sceneID);
+         document.put("result", "FAILED");
+         document.put("error", "invalid scene: " + sceneID);
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+         response.getWriter().print(document.toJSONString());
+         return "FAILED";
+      }
+      document.put(REQUEST_PARAM_SCENE, scene.getId());
+
+      // Verify all steps first
+      List<HEOSOperation> operations;
+      try {
+         operations = scene.createOperations(heosConnector);
+      } catch (IllegalArgumentException iae) {
+         LOGGER.warning("Invalid " + iae.getMessage());
+         document.put("result", "FAILED");
+         document.put("error", iae.getMessage());
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+         response.getWriter().print(document.toJSONString());
+         return "FAILED";
+      }
+
+      // All okay, run
+      return runOperations(request, operations, document, response);
+   }
+
+   /**
+    * Responds with the metrics in the Prometheus text format
+    * 
+    * @param response The response which will be updated
+    * @throws IOException
+    */
+   private void createMetricsResponse(HttpServletResponse response) throws IOException {
+      response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+      response.setHeader("Cache-Control", "no-cache");
+      response.setStatus(HttpServletResponse.SC_OK);
+      ServletMetrics.write(response.getWriter());
+   }
+
+   /**
+    * Responds with the players, stations and playlists as JSON, everything or only the changes since the version the client has. Nothing is
+    * asked from the HEOS system, the state is what the servlet already knows.
+    * 
+    * @param request The request
+    * @param response The response which will be updated
+    * @throws IOException
+    */
+   @SuppressWarnings("unchecked")
+   private void createStateResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+      response.setContentType("application/json;charset=UTF-8");
+      JSONObject document = new JSONObject();
+      long since = 0;
+      String sinceParameter = request.getParameter(REQUEST_PARAM_SINCE);
+      if (sinceParameter != null && !sinceParameter.isEmpty()) {
+         try {
+            since = Long.parseLong(sinceParameter);
+         } catch (NumberFormatException nfe) {
+            LOGGER.warning("Invalid request, invalid version: " + sinceParameter);
+            document.put("result", "FAILED");
+            document.put("error", "invalid version: " + sinceParameter);
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().print(document.toJSONString());
+            return;
+         }
+      }
+      HEOSStateModel.Changes changes = heosConnector.getState(since);
+
+      // The answer depends on the version the client has too, the same version since an older one is other changes
+      String eTag = "\"" + since + "-" + changes.getVersion() + "\"";
+      response.setHeader("ETag", eTag);
+      response.setHeader("Cache-Control", "no-cache");
+      String ifNoneMatch = request.getHeader("If-None-Match");
+      if (ifNoneMatch != null && ifNoneMatch.contains(eTag)) {
+         response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+         return;
+      }
+      document = HEOSEventStream.createDocument(changes, null);
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.getWriter().print(document.toJSONString());
+   }
+
+   /**
+    * Subscribes to the changes of the players, stations and playlists, as server-sent events (text/event-stream) or as a long-poll answered
+    * when something has changed since the version the client has. Optionally only for some players.
+    * 
+    * @param request The request
+    * @param response The response which will be updated
+    * @throws IOException
+    */
+   @SuppressWarnings("unchecked")
+   private void createEventsResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+      String mode = request.getParameter(REQUEST_PARAM_MODE);
+      String accept = request.getHeader("Accept");
+      boolean stream = mode != null ? EVENTS_MODE_STREAM.equals(mode) : accept != null && accept.contains("text/event-stream");
+      String sinceParameter = request.getParameter(REQUEST_PARAM_SINCE);
+      if (sinceParameter == null) {
+         // Where a reconnecting event source left off
+         sinceParameter = request.getHeader("Last-Event-ID");
+      }
+      long since = 0;
+      try {
+         since = sinceParameter != null && !sinceParameter.isEmpty() ? Long.parseLong(sinceParameter.trim()) : 0;
+      } catch (NumberFormatException nfe) {
+         LOGGER.warning("Invalid request, invalid version: " + sinceParameter);
+         JSONObject document = new JSONObject();
+         document.put("result", "FAILED");
+         document.put("error", "invalid version: " + sinceParameter);
+         response.setContentType("application/json;charset=UTF-8");
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+         response.getWriter().print(document.toJSONString());
+         return;
+      }
+      Set<String> players = null;
+      String playersParameter = request.getParameter(REQUEST_PARAM_PLAYERS);
+      if (playersParameter != null && !playersParameter.trim().isEmpty()) {
+         players = new HashSet<>();
+         for (String player : playersParameter.split(",")) {
+            players.add(player.trim());
+         }
+      }
+
+      response.setContentType(stream ? "text/event-stream;charset=UTF-8" : "application/json;charset=UTF-8");
+      response.setHeader("Cache-Control", "no-cache");
+      response.setStatus(HttpServletResponse.SC_OK);
+      AsyncContext context = request.startAsync();
+      if (!eventStream.subscribe(context, players, since, stream)) {
+         response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+         context.complete();
+      }
+   }
+
+   /**
+    * Runs valid operations, players in parallel, on the command queue without holding the container thread, and responds with the result
+    * and duration of each operation
+    * 
+    * @param request The request
+    * @param operations The operations
+    * @param document The response document
+    * @param response The response which will be updated
+    * @return The result, FAILED if answered at once, null if answered when run
+    * @throws IOException
+    */
+   @SuppressWarnings("unchecked")
+   private String runOperations(HttpServletRequest request, List<HEOSOperation> operations, JSONObject document, HttpServletResponse response)
+         throws IOException {
+      if (operations.isEmpty()) {
+         document.put("result", "SUCCESS");
+         document.put("durationInMs", 0);
+         document.put("operations", new JSONArray());
+         response.setStatus(HttpServletResponse.SC_OK);
+         response.getWriter().print(document.toJSONString());
+         return "SUCCESS";
+      }
+      // While the circuit is open, answer at once instead of queueing operations bound to fail
+      CircuitBreaker circuitBreaker = heosConnector.getCircuitBreaker();
+      if (!circuitBreaker.isCallPermitted()) {
+         document.put("result", "FAILED");
+         document.put("error", "HEOS circuit open, retry in " + circuitBreaker.getRetryAfterInSeconds() + " s");
+         response.setHeader("Retry-After", String.valueOf(circuitBreaker.getRetryAfterInSeconds()));
+         response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+         response.getWriter().print(document.toJSONString());
+         return "FAILED";
+      }
+      new BatchRequest(request.startAsync(), operations, document, COMMAND_DEADLINE_IN_MS).submit();
+      return null;
+   }
+
+   /**
+    * @param request The HTTP request
+    * @return The body of the request
+    * @throws IOException
+    */
+   private String readBody(HttpServletRequest request) throws IOException {
+      StringBuilder body = new StringBuilder();
+      char[] buffer = new char[1024];
+      int read;
+      while ((read = request.getReader().read(buffer)) > 0) {
+         body.append(buffer, 0, read);
+      }
+      return body.toString();
+   }
+
+   /**
+    * @param request The HTTP request
+    * @return The parameters of the request
+    */
+   private Map<String, String> getParameters(HttpServletRequest request) {
+      Map<String, String> parameters = new HashMap<>();
+      for (String name : request.getParameterMap().keySet()) {
+         parameters.put(name, request.getParameter(name));
+      }
+      return parameters;
+   }
+
+   /**
+    * Creates a response with information about players, stations and settings, the HEOS part from the latest background refreshed snapshot
+    * 
+    * @param response The response which will be updated
+    * @throws IOException
+    */
+   private void createHeosInfoResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+      HEOSStatusPage.Snapshot snapshot = request.getParameter(REQUEST_PARAM_REFRESH) != null ? statusPage.refresh() : statusPage.getSnapshot();
+      if (snapshot.getConnectedAt() != null && (lastConnection == null || snapshot.getConnectedAt().after(lastConnection))) {
+         lastConnection = snapshot.getConnectedAt();
+      }
+      String connection = lastConnection != null ? new SimpleDateFormat("yyyy-MM-dd HH:mm").format(lastConnection) : "-";
+
+      // The live parts, rendered on every request
+      String devices = statusPage.getDevices() + statusPage.getPlans();
+      String circuits = getCircuit("HEOS circuit", heosConnector.getCircuitBreaker()) + getCircuit("Fibaro circuit", fibaroConnector.getCircuitBreaker());
+
+      // Unchanged since last time? Only by the ETag, the live parts have no time of change to compare with
+      String eTag = "\"" + snapshot.getVersion() + "-" + Integer.toHexString((getBaseURL(request) + connection + devices + circuits).hashCode()) + "\"";
+      response.setHeader("ETag", eTag);
+      response.setHeader("Cache-Control", "no-cache");
+      String ifNoneMatch = request.getHeader("If-None-Match");
+      if (ifNoneMatch != null && ifNoneMatch.contains(eTag)) {
+         response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+         return;
+      }
+
+      response.setContentType("text/html;charset=UTF-8");
+      PrintWriter writer = response.getWriter();
+      writer.println("<html>");
+      writer.println("<head><title>HEOS Servlet</title></head>");
+      writer.println("<body style='background-color:#E0F2F7;color:#2E2E2E;font-family:monospace;font-size:12px;'>");
+
+      // Heading
+      writer.println("<h1 style='font-family:sans-serif;font-size:30px;color:#426d6e;margin-bottom: 5px;'>Denon HEOS Servlet</h1>");
+      writer.println("<div>" + getValue("Servlet version") + SERVLET_VERSION + "</div>");
+
+      // List settings
+      writer.println("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>Settings</h1>");
+      writer.print(snapshot.getSettings());
+      writer.print(devices);
+      writer.println("<div>" + getValue("HEOS connection") + connection + "</div>");
+      writer.println("<div>" + getValue("Fibaro host") + properties.getFibaroHost() + "</div>");
+      writer.print(circuits);
+      writer.println("<br><div>To change settings, update settings file and reload Servlet</div>");
+
+      // List players, favorites, playlists and scenes
+      writer.print(snapshot.getCatalog());
+
+      // API
+      String playCommand = getBaseURL(request) + "?player=12345&command=play&vd=123";
+      String stopCommand = getBaseURL(request) + "?player=12345&command=stop&vd=123";
+      String volumeCommand = getBaseURL(request) + "?player=12345&command=volume&volume=50&vd=123";
+      String stationCommand = getBaseURL(request) + "?player=12345&command=station&station=s12345&vd=123&labeltext=Example%20Station";
+      String playlistCommand = getBaseURL(request) + "?player=12345&command=playlist&playlist=12345&vd=123&labeltext=Example%20Playlist";
+      String inputCommand = getBaseURL(request) + "?player=12345&command=input&inputplayer=23456&inputname=inputs/optical_in_1&vd=123&labeltext=Input%20Aux";
+      String alarmCommand = getBaseURL(request) + "?player=12345&command=alarm&station=s12345&volume=50&vd=123&labeltext=Station%20ABC";
+      String triggerCommand = getBaseURL(request) + "?player=12345&command=trigger&station=s12345&volume=50&vd=123&labeltext=Station%20ABC";
+      String groupCommand = getBaseURL(request) + "?player=12345&command=group&members=23456,34567&station=s12345&volume=30&vd=123&labeltext=Station%20ABC";
+      String batchCommand = "POST " + getBaseURL(request) + REQUEST_PATH_BATCH
+            + " [{\"player\":\"12345\",\"command\":\"stop\"},{\"player\":\"23456\",\"command\":\"volume\",\"volume\":\"20\"}]";
+      String sceneCommand = getBaseURL(request) + REQUEST_PATH_SCENE + "?scene=morning";
+      String stateCommand = getBaseURL(request) + REQUEST_PATH_STATE + "?since=1510000000000";
+      String eventsCommand = getBaseURL(request) + REQUEST_PATH_EVENTS + "?players=12345,23456&since=1510000000000";
+      String metricsCommand = getBaseURL(request) + REQUEST_PATH_METRICS;
+      String refreshCommand = getBaseURL(request) + "?" + REQUEST_PARAM_REFRESH;
+      writer.println("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>API</h1>");
+      writer.println("<div><b>" + getValue("Start playback") + "</b>" + playCommand + "</div>");
+      writer.println("<div><b>" + getValue("Stop playback") + "</b>" + stopCommand + "</div>");
+      writer.println("<div><b>" + getValue("Set volume") + "</b>" + volumeCommand + "</div>");
+      writer.println("<div><b>" + getValue("Play station") + "</b>" + stationCommand + "</div>");
+      writer.println("<div><b>" + getValue("Play playlist") + "</b>" + playlistCommand + "</div>");
+      writer.println("<div><b>" + getValue("Play input") + "</b>" + inputCommand + "</div>");
+      writer.println("<div><b>" + getValue("Alarm") + "</b>" + alarmCommand + "</div>");
+      writer.println("<div><b>" + getValue("Trigger") + "</b>" + triggerCommand + "</div>");
+      writer.println("<div><b>" + getValue("Group") + "</b>" + groupCommand + "</div>");
+      writer.println("<div><b>" + getValue("Batch") + "</b>" + batchCommand + "</div>");
+      writer.println("<div><b>" + getValue("Scene") + "</b>" + sceneCommand + "</div>");
+      writer.println("<div><b>" + getValue("State (JSON)") + "</b>" + stateCommand + "</div>");
+      writer.println("<div><b>" + getValue("Events") + "</b>" + eventsCommand + "</div>");
+      writer.println("<div><b>" + getValue("Metrics") + "</b>" + metricsCommand + "</div>");
+      writer.println("<div><b>" + getValue("Refresh status") + "</b>" + refreshCommand + "</div>");
+      writer.println("<br><div>" + getValue("Parameters") + getValue("command") + "Command to run</div>");
+      writer.println("<div>" + getValue("") + getValue("player") + "HEOS player (id)</div>");
+      writer.println("<div>" + getValue("") + getValue("volume") + "Volume, 0 to 100 (value)</div>");
+      writer.println("<div>" + getValue("") + getValue("station") + "Favorite station (id)</div>");
+      writer.println("<div>" + getValue("") + getValue("playlist") + "Playlist (id)</div>");
+      writer.println("<div>" + getValue("") + getValue("inputplayer") + "HEOS player (id) with input source</div>");
+      writer.println("<div>" + getValue("") + getValue("inputname") + "Input source name</div>");
+      writer.println("<div>" + getValue("") + getValue("members") + "HEOS players (id) grouped with the player, comma separated</div>");
+      writer.println("<div>" + getValue("") + getValue("vd") + "Fibaro virtual device (optional) (id)</div>");
+      writer.println("<div>" + getValue("") + getValue("labeltext") + "Fibaro \"now playing\"-label text (optional) (string)</div>");
+      writer.println("<div>" + getValue("") + getValue("deadline") + "Time to wait for the command (optional) (ms)</div>");
+      writer.println(
+            "<br><div>" + getValue("") + "\"Alarm\" always changes station and volume whereas \"Trigger\" doesn't if the player is already playing</div>");
+      writer.println("<div>" + getValue("")
+            + "Parameters \"vd\" (virtual device) and \"labeltext\" are used to update volume slider and labeltext in the Fibaro GUI</div>");
+      writer.println("<div>" + getValue("") + "The slider id must be set to \"slider\" and the label id to \"label\"</div>");
+      writer.println("<div>" + getValue("") + "\"Group\" plays the station in sync on the player and its members, as a HEOS group led by the player</div>");
+      writer.println("<div>" + getValue("")
+            + "\"Batch\" takes the same parameters as the commands, players are handled in parallel and a JSON result is returned</div>");
+      writer.println("<div>" + getValue("")
+            + "\"State\" returns everything without \"since\", otherwise only the changes since the returned \"version\" of an earlier call</div>");
+      writer.println("<div>" + getValue("")
+            + "\"Events\" waits for changes (long-poll) or streams them as server-sent events (Accept: text/event-stream or mode=stream)</div>");
+      writer.println("<div>" + getValue("")
+            + "\"Metrics\" returns latency histograms and counters in the Prometheus text format, percentiles with histogram_quantile</div>");
+      writer.println("<div>" + getValue("") + "\"Scene\" runs a scene of the scenes file (WEB-INF/scenes.properties) the same way</div>");
+      writer.println("<div>" + getValue("")
+            + "While the HEOS circuit is open, commands, batches and scenes are answered at once with 503 and Retry-After</div>");
+
+      writer.println("</body>");
+      writer.println("</html>");
+      response.setStatus(HttpServletResponse.SC_OK);
+   }
+
+   /**
+    * Gets the state of a circuit breaker and its latest state changes
+    * 
+    * @param name The name shown
+    * @param circuitBreaker The circuit breaker
+    * @return The circuit (HTML)
+    */
+   private String getCircuit(String name, CircuitBreaker circuitBreaker) {
+      StringBuilder circuit = new StringBuilder("<div>" + getValue(name) + circuitBreaker.getState().name().toLowerCase().replace('_', ' ') + "</div>\n");
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+      for (CircuitBreaker.Transition transition : circuitBreaker.getTransitions()) {
+         circuit.append("<div>" + getValue("") + format.format(new Date(transition.getTime())) + " " + transition + "</div>\n");
+      }
+      return circuit.toString();
+   }
+
+   /**
+    * @param request The HTTP request
+    * @return The base URL of this servlet
+    */
+   private String getBaseURL(HttpServletRequest request) {
+      return "http://" + request.getServerName() + ":" + request.getServerPort() + request.getContextPath();
+   }
+
+   /**
+    * Formats a value
+    * 
+    * @param value The value
+    * @return The formatted value string
+    */
+   static String getValue(String value) {
+      return String.format("%1$-20s", value).replace(" ", "&nbsp;");
+   }
+
+}
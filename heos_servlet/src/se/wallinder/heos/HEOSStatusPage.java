@@ -0,0 +1,311 @@
+package se.wallinder.heos;
+
+import static se.wallinder.heos.HEOSServlet.getValue;
+import static se.wallinder.heos.util.ServletConstants.HEOS_PLAN_INPUT;
+import static se.wallinder.heos.util.ServletConstants.HEOS_PLAN_PLAYLIST;
+import static se.wallinder.heos.util.ServletConstants.HEOS_PLAN_STATION;
+import static se.wallinder.heos.util.ServletConstants.HEOS_TIMEOUT_IN_MS;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.wallinder.heos.command.HEOSScene;
+import se.wallinder.heos.connector.HEOSChannel;
+import se.wallinder.heos.connector.HEOSConnector;
+import se.wallinder.heos.connector.HEOSEndpoint;
+import se.wallinder.heos.util.ServletMetrics;
+import se.wallinder.heos.util.ServletProperties;
+import se.wallinder.heos.util.ServletThreads;
+
+/**
+ * The HEOS part of the status page, refreshed in the background so showing the page never waits for the HEOS system. The players, stations
+ * and playlists are refreshed at the same time, the now playing of the players in parallel.
+ */
+class HEOSStatusPage {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSStatusPage.class.getName());
+   private final HEOSConnector heosConnector;
+   private final ServletProperties properties;
+   private final Map<String, HEOSScene> scenes;
+   private final String settingsFile;
+   private final ScheduledExecutorService scheduler;
+   private final ExecutorService fetchExecutor;
+   private volatile Snapshot snapshot = null;
+   // A lock instead of the monitor, so a virtual thread waiting for the HEOS system never pins its carrier
+   private final ReentrantLock refreshLock = new ReentrantLock();
+
+   /**
+    * Constructor, starts the background refresh
+    *
+    * @param heosConnector The HEOS connector
+    * @param properties The servlet properties
+    * @param scenes The scenes
+    * @param settingsFile The path of the settings file
+    * @param refreshIntervalInMs The time between refreshes
+    * @param fetchThreads The number of players fetched in parallel, with platform threads (with virtual threads all players are)
+    */
+   HEOSStatusPage(HEOSConnector heosConnector, ServletProperties properties, Map<String, HEOSScene> scenes, String settingsFile, long refreshIntervalInMs,
+         int fetchThreads) {
+      LOGGER.setLevel(Level.WARNING);
+      this.heosConnector = heosConnector;
+      this.properties = properties;
+      this.scenes = scenes;
+      this.settingsFile = settingsFile;
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(ServletThreads.named("HEOS-status"));
+      this.fetchExecutor = ServletThreads.pool("HEOS-status", fetchThreads);
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               refresh();
+            } catch (RuntimeException e) {
+               LOGGER.severe("Error while refreshing status: " + e.getMessage());
+            }
+         }
+      }, 0, refreshIntervalInMs, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * @return The latest snapshot, refreshed now if there is none yet
+    */
+   Snapshot getSnapshot() {
+      Snapshot current = snapshot;
+      return current != null ? current : refresh();
+   }
+
+   /**
+    * Refreshes the snapshot now
+    *
+    * @return The new snapshot
+    */
+   Snapshot refresh() {
+      refreshLock.lock();
+      try {
+         return refreshNow();
+      } finally {
+         refreshLock.unlock();
+      }
+   }
+
+   /**
+    * Refreshes the snapshot, only called holding the refresh lock
+    */
+   private Snapshot refreshNow() {
+      long start = System.nanoTime();
+      boolean connected = heosConnector.isConnected();
+
+      // Settings
+      StringBuilder settings = new StringBuilder();
+      settings.append("<div>" + getValue("Settings file") + settingsFile + "</div>\n");
+      settings.append("<div>" + getValue("HEOS host") + properties.getHeosHost() + (connected ? " (connected)" : " (disconnected)") + "</div>\n");
+      settings.append("<div>" + getValue("Threads") + (ServletThreads.isVirtual() ? "virtual" : "platform") + "</div>\n");
+      settings.append("<div>" + getValue("HEOS user") + properties.getHeosUser()
+            + (heosConnector.isUserSignedIn(properties.getHeosUser()) ? " (signed in)" : " (signed out)") + "</div>\n");
+
+      // Players, with now playing fetched in parallel
+      StringBuilder catalog = new StringBuilder();
+      catalog.append("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>HEOS players</h1>\n");
+      heosConnector.updatePlayers();
+      Map<String, String> players = heosConnector.getPlayers();
+      Map<String, String> nowPlaying = fetchNowPlaying(players);
+      if (players != null) {
+         for (Entry<String, String> entry : heosConnector.entriesSortedByValues(players)) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            catalog.append("<div>" + getValue(key) + getValue(value) + nowPlaying.get(key) + "</div>\n");
+         }
+      }
+
+      // Favorites
+      catalog.append("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>Favorite stations</h1>\n");
+      heosConnector.updateStations();
+      appendSorted(catalog, heosConnector.getStations());
+
+      // Playlists
+      catalog.append("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>Playlists</h1>\n");
+      heosConnector.updatePlaylists();
+      appendSorted(catalog, heosConnector.getPlaylists());
+
+      // Scenes
+      catalog.append("<h2 style='font-family:sans-serif;font-size:20px;color:#426d6e;margin-bottom: 5px;'>Scenes</h1>\n");
+      for (HEOSScene scene : scenes.values()) {
+         catalog.append("<div>" + getValue(scene.getId()) + scene.getName() + " (" + scene.getSize() + " steps)</div>\n");
+      }
+
+      // Only a changed page is a new version
+      Snapshot previous = snapshot;
+      String settingsHTML = settings.toString();
+      String catalogHTML = catalog.toString();
+      long now = System.currentTimeMillis();
+      // Keep the time of a lasting connection, so it doesn't change the page
+      Date connectedAt = connected ? (previous != null && previous.connectedAt != null ? previous.connectedAt : new Date(now)) : null;
+      Snapshot refreshed;
+      if (previous != null && previous.settings.equals(settingsHTML) && previous.catalog.equals(catalogHTML)) {
+         refreshed = new Snapshot(previous.version, settingsHTML, catalogHTML, connectedAt);
+      } else {
+         refreshed = new Snapshot(previous != null ? previous.version + 1 : 1, settingsHTML, catalogHTML, connectedAt);
+      }
+      snapshot = refreshed;
+      LOGGER.info("Status refreshed in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, version " + refreshed.version);
+      return refreshed;
+   }
+
+   /**
+    * Renders the HEOS devices with their health, latency and activity, when asked for. The figures change with almost every command, so they
+    * are not part of the snapshot, which would otherwise get a new version on every refresh.
+    *
+    * @return The devices (HTML)
+    */
+   String getDevices() {
+      StringBuilder devices = new StringBuilder();
+      for (HEOSEndpoint endpoint : heosConnector.getEndpoints()) {
+         HEOSChannel channel = endpoint.getChannel();
+         String activity = channel.isOpen() ? "last read " + TimeUnit.NANOSECONDS.toSeconds(channel.getIdleInNanos()) + " s ago" : "reconnecting, "
+               + endpoint.getReconnectAttempts() + " attempts";
+         devices.append("<div>" + getValue(devices.length() == 0 ? "HEOS devices" : "") + endpoint.getHost()
+               + (endpoint.isHealthy() ? " (healthy, " : " (unhealthy, ") + endpoint.getLatencyInMs() + " ms, " + endpoint.getFailures() + " failures, "
+               + activity + ")</div>\n");
+      }
+      return devices.toString();
+   }
+
+   /**
+    * Gets the latency of the command plans, not a part of the snapshot since it changes with every plan run
+    *
+    * @return The command plans (HTML)
+    */
+   String getPlans() {
+      StringBuilder plans = new StringBuilder();
+      ServletMetrics.Histogram durations = heosConnector.getPlanDurations();
+      for (String plan : new String[] { HEOS_PLAN_STATION, HEOS_PLAN_PLAYLIST, HEOS_PLAN_INPUT }) {
+         plans.append("<div>" + getValue(plans.length() == 0 ? "HEOS plans" : "") + plan + ": " + durations.getCount(plan) + " runs, "
+               + TimeUnit.NANOSECONDS.toMillis(durations.getMeanInNanos(plan)) + " ms mean, "
+               + TimeUnit.NANOSECONDS.toMillis(durations.getMaxInNanos(plan)) + " ms max</div>\n");
+      }
+      return plans.toString();
+   }
+
+   /**
+    * Stops the background refresh
+    */
+   void close() {
+      scheduler.shutdownNow();
+      fetchExecutor.shutdownNow();
+   }
+
+   /**
+    * Gets now playing of all players in parallel
+    *
+    * @param players The players
+    * @return The now playing by player, empty string if not known
+    */
+   private Map<String, String> fetchNowPlaying(Map<String, String> players) {
+      Map<String, String> nowPlaying = new HashMap<>();
+      if (players == null) {
+         return nowPlaying;
+      }
+      List<String> playerIDs = new ArrayList<>(players.keySet());
+      List<Callable<String>> fetches = new ArrayList<>();
+      for (final String playerID : playerIDs) {
+         nowPlaying.put(playerID, "");
+         fetches.add(new Callable<String>() {
+            @Override
+            public String call() {
+               return heosConnector.getNowPlaying(playerID);
+            }
+         });
+      }
+      try {
+         List<Future<String>> results = fetchExecutor.invokeAll(fetches, HEOS_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+         for (int i = 0; i < results.size(); i++) {
+            try {
+               nowPlaying.put(playerIDs.get(i), results.get(i).get());
+            } catch (ExecutionException | CancellationException e) {
+               LOGGER.warning("Could not get now playing of player " + playerIDs.get(i));
+            }
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      }
+      return nowPlaying;
+   }
+
+   /**
+    * Appends ID:s and names sorted by name
+    */
+   private void appendSorted(StringBuilder html, Map<String, String> values) {
+      if (values == null) {
+         return;
+      }
+      SortedSet<Entry<String, String>> sortedKeys = heosConnector.entriesSortedByValues(values);
+      for (Entry<String, String> entry : sortedKeys) {
+         html.append("<div>" + getValue(entry.getKey()) + entry.getValue() + "</div>\n");
+      }
+   }
+
+   /**
+    * A rendered snapshot of the HEOS part of the status page
+    */
+   static class Snapshot {
+
+      private final long version;
+      private final String settings;
+      private final String catalog;
+      private final Date connectedAt;
+
+      /**
+       * Constructor
+       */
+      Snapshot(long version, String settings, String catalog, Date connectedAt) {
+         this.version = version;
+         this.settings = settings;
+         this.catalog = catalog;
+         this.connectedAt = connectedAt;
+      }
+
+      /**
+       * @return The version, changed only when the content has changed
+       */
+      long getVersion() {
+         return version;
+      }
+
+      /**
+       * @return The settings part (HTML)
+       */
+      String getSettings() {
+         return settings;
+      }
+
+      /**
+       * @return The players, stations, playlists and scenes part (HTML)
+       */
+      String getCatalog() {
+         return catalog;
+      }
+
+      /**
+       * @return The time the connection was first seen by a refresh if connected, null if not
+       */
+      Date getConnectedAt() {
+         return connectedAt;
+      }
+   }
+
+}
@@ -0,0 +1,104 @@
+package se.wallinder.heos.command;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.wallinder.heos.util.ServletRecorder;
+import se.wallinder.heos.util.ServletThreads;
+
+/**
+ * Runs a batch of HEOS operations, the operations of different players in parallel and the operations of the same player in order
+ */
+public class HEOSBatchRunner {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSBatchRunner.class.getName());
+   private final HEOSCommandRunner commandRunner;
+   private final ExecutorService executor;
+
+   /**
+    * Constructor
+    *
+    * @param commandRunner Runs the operations
+    * @param threads The maximum number of players handled in parallel, with platform threads (with virtual threads all players are)
+    */
+   public HEOSBatchRunner(HEOSCommandRunner commandRunner, int threads) {
+      LOGGER.setLevel(Level.WARNING);
+      this.commandRunner = commandRunner;
+      this.executor = ServletThreads.pool("HEOS-batch", threads);
+   }
+
+   /**
+    * Runs the operations and waits for all of them
+    *
+    * @param operations The operations
+    * @return The results, in the same order as the operations
+    */
+   public List<HEOSOperationResult> run(final List<HEOSOperation> operations) {
+      final HEOSOperationResult[] results = new HEOSOperationResult[operations.size()];
+
+      // Chain the operations per player, keeping their order
+      Map<String, List<Integer>> chains = new LinkedHashMap<>();
+      for (int i = 0; i < operations.size(); i++) {
+         String player = operations.get(i).getPlayer();
+         List<Integer> chain = chains.get(player);
+         if (chain == null) {
+            chain = new ArrayList<>();
+            chains.put(player, chain);
+         }
+         chain.add(i);
+      }
+
+      // One task per player
+      final long request = ServletRecorder.current();
+      List<Future<?>> futures = new ArrayList<>();
+      for (final List<Integer> chain : chains.values()) {
+         futures.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+               ServletRecorder.enter(request);
+               try {
+                  for (int index : chain) {
+                     results[index] = commandRunner.run(operations.get(index));
+                  }
+               } finally {
+                  ServletRecorder.exit();
+               }
+            }
+         }));
+      }
+      for (Future<?> future : futures) {
+         try {
+            future.get();
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            break;
+         } catch (ExecutionException ee) {
+            LOGGER.severe("Error while running batch: " + ee.getCause());
+         }
+      }
+
+      // Operations not run (interrupted) have failed
+      for (int i = 0; i < results.length; i++) {
+         if (results[i] == null) {
+            results[i] = new HEOSOperationResult(operations.get(i), false, 0);
+         }
+      }
+      return Arrays.asList(results);
+   }
+
+   /**
+    * Stops the threads
+    */
+   public void close() {
+      executor.shutdownNow();
+   }
+
+}
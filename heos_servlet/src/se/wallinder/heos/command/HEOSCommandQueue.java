@@ -0,0 +1,205 @@
+package se.wallinder.heos.command;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.wallinder.heos.util.ServletRecorder;
+import se.wallinder.heos.util.ServletThreads;
+
+/**
+ * Runs HEOS operations and batches of operations on a bounded pool of threads, with a bounded queue of waiting operations. When the queue
+ * is full operations are rejected at once instead of waiting, and an operation still queued when its deadline has passed is never started.
+ */
+public class HEOSCommandQueue {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSCommandQueue.class.getName());
+   private final HEOSCommandRunner commandRunner;
+   private final HEOSBatchRunner batchRunner;
+   private final ThreadPoolExecutor executor;
+   // With virtual threads, the operations queued or running, instead of a bounded queue
+   private final Semaphore permits;
+
+   /**
+    * Receives the outcome of an operation or a batch, called on the thread running it
+    *
+    * @param <R> The result
+    */
+   public interface Callback<R> {
+
+      /**
+       * Called when the operation or batch has been run
+       *
+       * @param result The result
+       */
+      void completed(R result);
+
+      /**
+       * Called when the operation or batch was not run since the HEOS system is not connected
+       */
+      void notConnected();
+
+      /**
+       * Called when the operation or batch was not run since its deadline passed while queued
+       */
+      void expired();
+   }
+
+   /**
+    * An operation or a batch, run on a thread of the queue
+    */
+   private interface Work<R> {
+
+      R run();
+   }
+
+   /**
+    * Constructor
+    *
+    * @param commandRunner Runs the operations
+    * @param batchRunner Runs the batches
+    * @param threads The number of operations or batches run in parallel
+    * @param queueSize The number of operations or batches waiting to be run, with virtual threads there is no queue and threads + queue
+    *           size operations or batches may run in parallel, a thread each
+    */
+   public HEOSCommandQueue(HEOSCommandRunner commandRunner, HEOSBatchRunner batchRunner, int threads, int queueSize) {
+      LOGGER.setLevel(Level.WARNING);
+      this.commandRunner = commandRunner;
+      this.batchRunner = batchRunner;
+      if (ServletThreads.isVirtual()) {
+         this.executor = ServletThreads.pool("HEOS-command", threads);
+         this.permits = new Semaphore(threads + queueSize);
+      } else {
+         this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+               ServletThreads.numbered("HEOS-command"));
+         this.permits = null;
+      }
+   }
+
+   /**
+    * Queues an operation
+    *
+    * @param operation The operation
+    * @param deadline The time (System.nanoTime) after which the operation must not be started
+    * @param callback Receives the outcome
+    * @return The future of the operation, pass to {@link #cancel(Future)} to remove it from the queue
+    * @throws RejectedExecutionException If the queue is full or closed
+    */
+   public Future<?> submit(final HEOSOperation operation, long deadline, Callback<HEOSOperationResult> callback) {
+      return submit(new Work<HEOSOperationResult>() {
+         @Override
+         public HEOSOperationResult run() {
+            return commandRunner.run(operation);
+         }
+
+         @Override
+         public String toString() {
+            return operation.toString();
+         }
+      }, deadline, callback);
+   }
+
+   /**
+    * Queues a batch of operations, run by the batch runner, the players in parallel
+    *
+    * @param operations The operations
+    * @param deadline The time (System.nanoTime) after which the batch must not be started
+    * @param callback Receives the outcome
+    * @return The future of the batch, pass to {@link #cancel(Future)} to remove it from the queue
+    * @throws RejectedExecutionException If the queue is full or closed
+    */
+   public Future<?> submit(final List<HEOSOperation> operations, long deadline, Callback<List<HEOSOperationResult>> callback) {
+      return submit(new Work<List<HEOSOperationResult>>() {
+         @Override
+         public List<HEOSOperationResult> run() {
+            return batchRunner.run(operations);
+         }
+
+         @Override
+         public String toString() {
+            return "batch of " + operations.size() + " operations";
+         }
+      }, deadline, callback);
+   }
+
+   /**
+    * Queues work, run only if connected and the deadline has not passed
+    */
+   private <R> Future<?> submit(final Work<R> work, final long deadline, final Callback<R> callback) {
+      final long request = ServletRecorder.current();
+      if (permits != null && !permits.tryAcquire()) {
+         LOGGER.warning("Command queue full, rejected " + work);
+         throw new RejectedExecutionException("Command queue full");
+      }
+      FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+         @Override
+         public void run() {
+            if (System.nanoTime() - deadline > 0) {
+               LOGGER.warning("Deadline passed while queued, " + work);
+               callback.expired();
+               return;
+            }
+            ServletRecorder.enter(request);
+            try {
+               if (!commandRunner.ensureConnected()) {
+                  callback.notConnected();
+                  return;
+               }
+               callback.completed(work.run());
+            } finally {
+               ServletRecorder.exit();
+            }
+         }
+      }, null) {
+         @Override
+         protected void done() {
+            // Run, failed or cancelled (a cancelled operation still running gives up its place, its request has been answered)
+            if (permits != null) {
+               permits.release();
+            }
+         }
+      };
+      try {
+         executor.execute(task);
+         return task;
+      } catch (RejectedExecutionException ree) {
+         LOGGER.warning("Command queue full, rejected " + work);
+         task.cancel(false);
+         throw ree;
+      }
+   }
+
+   /**
+    * Cancels an operation not started yet and removes it from the queue, so it does not take a place in the queue until its turn
+    * comes. An operation already started is left to finish.
+    *
+    * @param future The future returned when queued
+    */
+   public void cancel(Future<?> future) {
+      if (future.cancel(false) && future instanceof Runnable) {
+         executor.remove((Runnable) future);
+      }
+   }
+
+   /**
+    * @return The number of operations waiting to be run
+    */
+   public int getQueueDepth() {
+      return executor.getQueue().size();
+   }
+
+   /**
+    * Stops the threads, queued operations are not run
+    */
+   public void close() {
+      executor.shutdownNow();
+   }
+
+}
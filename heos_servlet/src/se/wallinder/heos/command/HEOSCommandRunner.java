@@ -0,0 +1,203 @@
+package se.wallinder.heos.command;
+
+import static se.wallinder.heos.util.ServletConstants.FIBARO_VD_LABEL_ID;
+import static se.wallinder.heos.util.ServletConstants.FIBARO_VD_SLIDER_ID;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.wallinder.heos.connector.FibaroConnector;
+import se.wallinder.heos.connector.HEOSConnector;
+import se.wallinder.heos.util.ServletConstants.HEOSCommands;
+import se.wallinder.heos.util.ServletMetrics;
+
+/**
+ * Runs HEOS operations and updates the Fibaro virtual device of the operation
+ */
+public class HEOSCommandRunner {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSCommandRunner.class.getName());
+   private final static ServletMetrics.Histogram OPERATION_DURATION = ServletMetrics.histogram("heos_operation_duration_seconds",
+         "Time of running an operation, single, batched or in a scene", "command", "result");
+   private final HEOSConnector heosConnector;
+   private final FibaroConnector fibaroConnector;
+
+   /**
+    * Constructor
+    *
+    * @param heosConnector The HEOS connector
+    * @param fibaroConnector The Fibaro connector
+    */
+   public HEOSCommandRunner(HEOSConnector heosConnector, FibaroConnector fibaroConnector) {
+      LOGGER.setLevel(Level.WARNING);
+      this.heosConnector = heosConnector;
+      this.fibaroConnector = fibaroConnector;
+   }
+
+   /**
+    * Makes sure the HEOS system is connected, without waiting: lost connections are reconnected by the HEOS connector in the background, so
+    * operations fail fast while disconnected
+    *
+    * @return True if connected, false if not
+    */
+   public boolean ensureConnected() {
+      if (!heosConnector.isConnected()) {
+         LOGGER.severe("Not connected to the HEOS system");
+         return false;
+      }
+      return true;
+   }
+
+   /**
+    * Runs an operation
+    *
+    * @param operation The operation
+    * @return The result
+    */
+   public HEOSOperationResult run(HEOSOperation operation) {
+      long start = System.nanoTime();
+      boolean result = false;
+      try {
+         result = execute(operation);
+      } catch (RuntimeException e) {
+         LOGGER.severe("Error while running " + operation + ": " + e.getMessage());
+      }
+      long elapsed = System.nanoTime() - start;
+      OPERATION_DURATION.record(elapsed, operation.getCommand().name(), result ? "success" : "failed");
+      LOGGER.info(operation.getCommand().name() + " requested on player " + operation.getPlayer() + ", result: " + (result ? "SUCCESS" : "FAILED"));
+      return new HEOSOperationResult(operation, result, elapsed / 1000000);
+   }
+
+   /**
+    * Executes an operation
+    *
+    * @param operation The operation
+    * @return True if okay, false if not
+    */
+   private boolean execute(HEOSOperation operation) {
+      String player = operation.getPlayer();
+      String fibaroVD = operation.getVirtualDevice();
+      String labelText = operation.getLabelText();
+      boolean result = false;
+      switch (operation.getCommand()) {
+
+      /********
+       * PLAY *
+       ********/
+      case PLAY:
+         if (result = heosConnector.play(player)) {
+            if (!fibaroVD.isEmpty()) {
+               fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, encode(heosConnector.getNowPlaying(player)));
+            }
+         }
+         break;
+
+      /********
+       * STOP *
+       ********/
+      case STOP:
+         if (result = heosConnector.stop(player)) {
+            if (!fibaroVD.isEmpty()) {
+               fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, "");
+            }
+         }
+         break;
+
+      /***********
+       * STATION *
+       ***********/
+      case STATION:
+         if (result = heosConnector.station(player, operation.getStation())) {
+            if (!fibaroVD.isEmpty() && !labelText.isEmpty()) {
+               fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, encode(labelText));
+            }
+         }
+         break;
+
+      /************
+       * PLAYLIST *
+       ************/
+      case PLAYLIST:
+         if (result = heosConnector.playlist(player, operation.getPlaylist())) {
+            if (!fibaroVD.isEmpty()) {
+               String playlistName = heosConnector.getPlaylists().get(operation.getPlaylist());
+               fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, encode(playlistName));
+            }
+         }
+         break;
+
+      /************
+       * INPUT *
+       ************/
+      case INPUT:
+         if (result = heosConnector.input(player, operation.getInputPlayer(), operation.getInputName())) {
+            if (!fibaroVD.isEmpty() && !labelText.isEmpty()) {
+               fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, encode(labelText));
+            }
+         }
+         break;
+
+      /***********
+       * VOLUME *
+       ***********/
+      case VOLUME:
+         result = heosConnector.volume(player, operation.getVolume());
+         break;
+
+      /*******************
+       * ALARM & TRIGGER *
+       *******************/
+      case ALARM:
+      case TRIGGER:
+         // If TRIGGER and already playing - done
+         if ((operation.getCommand() == HEOSCommands.TRIGGER) && heosConnector.isPlaying(player)) {
+            return true;
+         }
+         // First set volume, then play station (as one command plan)
+         int volume = operation.getVolume();
+         if (result = heosConnector.station(player, operation.getStation(), volume)) {
+            // Update label
+            if (!fibaroVD.isEmpty() && !labelText.isEmpty()) {
+               fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, encode(labelText));
+            }
+            // Update slider - will result in another volume call, which is ignored
+            if (!fibaroVD.isEmpty() && fibaroConnector.setVolumeSlider(fibaroVD, FIBARO_VD_SLIDER_ID, volume)) {
+               heosConnector.volumeEchoExpected(player, volume);
+            }
+         }
+         break;
+
+      /*********
+       * GROUP *
+       *********/
+      case GROUP:
+         if (result = heosConnector.groupStation(operation.getMembers(), operation.getStation(), operation.getVolume())) {
+            if (!fibaroVD.isEmpty() && !labelText.isEmpty()) {
+               fibaroConnector.setTextLabel(fibaroVD, FIBARO_VD_LABEL_ID, encode(labelText));
+            }
+         }
+         break;
+
+      default:
+         break;
+      }
+      return result;
+   }
+
+   /**
+    * URL encodes a label text
+    *
+    * @param text The text
+    * @return The encoded text
+    */
+   static String encode(String text) {
+      try {
+         return URLEncoder.encode(text != null ? text : "", "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+}
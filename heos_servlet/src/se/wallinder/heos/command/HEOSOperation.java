@@ -0,0 +1,233 @@
+package se.wallinder.heos.command;
+
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_INPUT_NAME;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_INPUT_PLAYER;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_LABEL_TEXT;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_MEMBERS;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_PLAYLIST;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_STATION;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_VIRTUAL_DEVICE;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_VOLUME;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.wallinder.heos.connector.HEOSConnector;
+import se.wallinder.heos.util.ServletConstants.HEOSCommands;
+
+/**
+ * A validated command for a HEOS player, with the same parameters as a servlet request
+ */
+public class HEOSOperation {
+
+   private final String player;
+   private final HEOSCommands command;
+   private final Map<String, String> parameters;
+   private final int volume;
+   private final List<String> members;
+
+   /**
+    * Private constructor, use {@link #create(String, String, Map, HEOSConnector)}
+    */
+   private HEOSOperation(String player, HEOSCommands command, Map<String, String> parameters, int volume, List<String> members) {
+      this.player = player;
+      this.command = command;
+      this.parameters = Collections.unmodifiableMap(new HashMap<>(parameters));
+      this.volume = volume;
+      this.members = Collections.unmodifiableList(members);
+   }
+
+   /**
+    * Creates an operation, the player, command and parameters are validated against the known players, stations and playlists
+    *
+    * @param player The ID of the player
+    * @param command The command (case insensitive)
+    * @param parameters The parameters of the command, named as the request parameters
+    * @param heosConnector The HEOS connector
+    * @return The operation
+    * @throws IllegalArgumentException If not valid, the message tells why
+    */
+   public static HEOSOperation create(String player, String command, Map<String, String> parameters, HEOSConnector heosConnector) {
+      if (player == null || player.isEmpty() || command == null || command.isEmpty()) {
+         throw new IllegalArgumentException("missing paramenters for player and command");
+      }
+
+      // Verify player
+      Map<String, String> players = heosConnector.getPlayers();
+      if (players == null || !players.containsKey(player)) {
+         throw new IllegalArgumentException("invalid player: " + player);
+      }
+
+      // Find out which command
+      HEOSCommands heosCommand;
+      try {
+         heosCommand = HEOSCommands.valueOf(command.toUpperCase());
+      } catch (IllegalArgumentException iae) {
+         throw new IllegalArgumentException("invalid command: " + command);
+      }
+
+      // Verify the parameters of the command
+      int volume = -1;
+      List<String> members = new ArrayList<>();
+      members.add(player);
+      switch (heosCommand) {
+      case STATION:
+         verifyStation(parameters, heosConnector);
+         break;
+      case PLAYLIST:
+         String playlist = value(parameters, REQUEST_PARAM_PLAYLIST);
+         Map<String, String> playlists = heosConnector.getPlaylists();
+         if (playlists == null || !playlists.containsKey(playlist)) {
+            throw new IllegalArgumentException("invalid playlist: " + playlist);
+         }
+         break;
+      case INPUT:
+         String inputPlayer = value(parameters, REQUEST_PARAM_INPUT_PLAYER);
+         if (!players.containsKey(inputPlayer)) {
+            throw new IllegalArgumentException("invalid input player: " + inputPlayer);
+         }
+         break;
+      case VOLUME:
+         volume = verifyVolume(parameters);
+         break;
+      case ALARM:
+      case TRIGGER:
+         verifyStation(parameters, heosConnector);
+         volume = verifyVolume(parameters);
+         break;
+      case GROUP:
+         verifyStation(parameters, heosConnector);
+         volume = value(parameters, REQUEST_PARAM_VOLUME).isEmpty() ? -1 : verifyVolume(parameters);
+         for (String member : value(parameters, REQUEST_PARAM_MEMBERS).split(",")) {
+            member = member.trim();
+            if (member.isEmpty() || members.contains(member)) {
+               continue;
+            }
+            if (!players.containsKey(member)) {
+               throw new IllegalArgumentException("invalid member: " + member);
+            }
+            members.add(member);
+         }
+         break;
+      default:
+         break;
+      }
+      return new HEOSOperation(player, heosCommand, parameters, volume, members);
+   }
+
+   /**
+    * @return The ID of the player
+    */
+   public String getPlayer() {
+      return player;
+   }
+
+   /**
+    * @return The command
+    */
+   public HEOSCommands getCommand() {
+      return command;
+   }
+
+   /**
+    * @return The volume, -1 if not a volume, alarm or trigger command (or a group command without volume)
+    */
+   public int getVolume() {
+      return volume;
+   }
+
+   /**
+    * @return The ID:s of the players of the operation, the player first and then the members of a group command
+    */
+   public List<String> getMembers() {
+      return members;
+   }
+
+   /**
+    * @return The station ID or empty string if none
+    */
+   public String getStation() {
+      return value(parameters, REQUEST_PARAM_STATION);
+   }
+
+   /**
+    * @return The playlist ID or empty string if none
+    */
+   public String getPlaylist() {
+      return value(parameters, REQUEST_PARAM_PLAYLIST);
+   }
+
+   /**
+    * @return The ID of the player with the input or empty string if none
+    */
+   public String getInputPlayer() {
+      return value(parameters, REQUEST_PARAM_INPUT_PLAYER);
+   }
+
+   /**
+    * @return The name of the input or empty string if none
+    */
+   public String getInputName() {
+      return value(parameters, REQUEST_PARAM_INPUT_NAME);
+   }
+
+   /**
+    * @return The Fibaro virtual device or empty string if none
+    */
+   public String getVirtualDevice() {
+      return value(parameters, REQUEST_PARAM_VIRTUAL_DEVICE);
+   }
+
+   /**
+    * @return The Fibaro label text or empty string if none
+    */
+   public String getLabelText() {
+      return value(parameters, REQUEST_PARAM_LABEL_TEXT);
+   }
+
+   @Override
+   public String toString() {
+      return command.name() + " on player " + player;
+   }
+
+   /**
+    * Verifies the station parameter
+    */
+   private static void verifyStation(Map<String, String> parameters, HEOSConnector heosConnector) {
+      String station = value(parameters, REQUEST_PARAM_STATION);
+      Map<String, String> stations = heosConnector.getStations();
+      if (stations == null || !stations.containsKey(station)) {
+         throw new IllegalArgumentException("invalid station: " + station);
+      }
+   }
+
+   /**
+    * Verifies the volume parameter
+    *
+    * @return The volume
+    */
+   private static int verifyVolume(Map<String, String> parameters) {
+      int volume;
+      try {
+         volume = Integer.parseInt(value(parameters, REQUEST_PARAM_VOLUME));
+      } catch (NumberFormatException nfe) {
+         throw new IllegalArgumentException("invalid volume");
+      }
+      if (volume < 0 || volume > 100) {
+         throw new IllegalArgumentException("invalid volume: " + volume);
+      }
+      return volume;
+   }
+
+   /**
+    * @return The value of a parameter or empty string if none
+    */
+   private static String value(Map<String, String> parameters, String name) {
+      String value = parameters.get(name);
+      return value != null ? value : "";
+   }
+
+}
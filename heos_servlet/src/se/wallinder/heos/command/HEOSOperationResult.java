@@ -0,0 +1,46 @@
+package se.wallinder.heos.command;
+
+/**
+ * The result of a HEOS operation
+ */
+public class HEOSOperationResult {
+
+   private final HEOSOperation operation;
+   private final boolean success;
+   private final long durationInMs;
+
+   /**
+    * Constructor
+    *
+    * @param operation The operation
+    * @param success True if okay, false if not
+    * @param durationInMs The time it took to run the operation
+    */
+   public HEOSOperationResult(HEOSOperation operation, boolean success, long durationInMs) {
+      this.operation = operation;
+      this.success = success;
+      this.durationInMs = durationInMs;
+   }
+
+   /**
+    * @return The operation
+    */
+   public HEOSOperation getOperation() {
+      return operation;
+   }
+
+   /**
+    * @return True if okay, false if not
+    */
+   public boolean isSuccess() {
+      return success;
+   }
+
+   /**
+    * @return The time it took to run the operation
+    */
+   public long getDurationInMs() {
+      return durationInMs;
+   }
+
+}
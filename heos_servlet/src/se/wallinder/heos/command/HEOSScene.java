@@ -0,0 +1,182 @@
+package se.wallinder.heos.command;
+
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_COMMAND;
+import static se.wallinder.heos.util.ServletConstants.REQUEST_PARAM_PLAYER;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.wallinder.heos.connector.HEOSConnector;
+
+/**
+ * A named scene, a list of steps per player. A scene is configured with one line per player, the steps written as command requests
+ * (command?parameter=value&amp;...) separated by semicolons:
+ *
+ * <pre>
+ * morning.name=Good morning
+ * morning.12345=volume?volume=20;station?station=s12345&amp;vd=123&amp;labeltext=Radio%20ABC
+ * morning.23456=stop
+ * </pre>
+ */
+public class HEOSScene {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSScene.class.getName());
+   private final static String NAME = "name";
+   private final String id;
+   private final String name;
+   private final List<Map<String, String>> steps;
+
+   /**
+    * Constructor
+    *
+    * @param id The ID of the scene
+    * @param name The name of the scene
+    * @param steps The steps, each one the parameters of an operation
+    */
+   public HEOSScene(String id, String name, List<Map<String, String>> steps) {
+      this.id = id;
+      this.name = name;
+      this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+   }
+
+   /**
+    * Loads scenes from a properties file
+    *
+    * @param scenesFile The scenes file, null if none
+    * @return The scenes by ID, sorted
+    */
+   public static Map<String, HEOSScene> load(InputStream scenesFile) {
+      LOGGER.setLevel(Level.WARNING);
+      Map<String, HEOSScene> scenes = new TreeMap<>();
+      if (scenesFile == null) {
+         return scenes;
+      }
+      Properties properties = new Properties();
+      try {
+         properties.load(scenesFile);
+      } catch (IOException e) {
+         LOGGER.severe("Could not load scenes file");
+         return scenes;
+      }
+
+      // Group the lines per scene, sorted so the steps are in a predictable order
+      Map<String, String> names = new HashMap<>();
+      Map<String, List<Map<String, String>>> sceneSteps = new TreeMap<>();
+      for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+         int separator = key.indexOf('.');
+         if (separator <= 0 || separator == key.length() - 1) {
+            LOGGER.warning("Invalid scene line: " + key);
+            continue;
+         }
+         String sceneID = key.substring(0, separator);
+         String player = key.substring(separator + 1);
+         String value = properties.getProperty(key).trim();
+         if (player.equals(NAME)) {
+            names.put(sceneID, value);
+            continue;
+         }
+         List<Map<String, String>> steps = sceneSteps.get(sceneID);
+         if (steps == null) {
+            steps = new ArrayList<>();
+            sceneSteps.put(sceneID, steps);
+         }
+         for (String step : value.split(";")) {
+            if (!step.trim().isEmpty()) {
+               steps.add(parseStep(player, step.trim()));
+            }
+         }
+      }
+      for (Map.Entry<String, List<Map<String, String>>> entry : sceneSteps.entrySet()) {
+         String sceneName = names.containsKey(entry.getKey()) ? names.get(entry.getKey()) : entry.getKey();
+         scenes.put(entry.getKey(), new HEOSScene(entry.getKey(), sceneName, entry.getValue()));
+      }
+      return scenes;
+   }
+
+   /**
+    * @return The ID of the scene
+    */
+   public String getId() {
+      return id;
+   }
+
+   /**
+    * @return The name of the scene
+    */
+   public String getName() {
+      return name;
+   }
+
+   /**
+    * @return The number of steps
+    */
+   public int getSize() {
+      return steps.size();
+   }
+
+   /**
+    * Creates the operations of the scene, validated against the current players, stations and playlists
+    *
+    * @param heosConnector The HEOS connector
+    * @return The operations, in order per player
+    * @throws IllegalArgumentException If a step is not valid
+    */
+   public List<HEOSOperation> createOperations(HEOSConnector heosConnector) {
+      List<HEOSOperation> operations = new ArrayList<>();
+      for (Map<String, String> step : steps) {
+         try {
+            operations.add(HEOSOperation.create(step.get(REQUEST_PARAM_PLAYER), step.get(REQUEST_PARAM_COMMAND), step, heosConnector));
+         } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("scene " + id + ", " + iae.getMessage());
+         }
+      }
+      return operations;
+   }
+
+   /**
+    * Parses a step, command?parameter=value&amp;...
+    *
+    * @param player The ID of the player
+    * @param step The step
+    * @return The parameters of the step
+    */
+   private static Map<String, String> parseStep(String player, String step) {
+      Map<String, String> parameters = new HashMap<>();
+      int query = step.indexOf('?');
+      parameters.put(REQUEST_PARAM_PLAYER, player);
+      parameters.put(REQUEST_PARAM_COMMAND, query >= 0 ? step.substring(0, query) : step);
+      if (query >= 0) {
+         for (String parameter : step.substring(query + 1).split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+               parameters.put(parameter.substring(0, equals), decode(parameter.substring(equals + 1)));
+            }
+         }
+      }
+      return parameters;
+   }
+
+   /**
+    * URL decodes a parameter value
+    */
+   private static String decode(String value) {
+      try {
+         return URLDecoder.decode(value, "UTF-8");
+      } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+         return value;
+      }
+   }
+
+}
@@ -1,78 +1,171 @@
 package se.wallinder.heos.connector;
 
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_FAILURE_RATE;
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_MINIMUM_CALLS;
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_OPEN_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_SLOW_CALL_RATE;
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_WINDOW_SIZE;
+import static se.wallinder.heos.util.ServletConstants.FIBARO_MAX_RETRIES;
+import static se.wallinder.heos.util.ServletConstants.FIBARO_QUEUE_SIZE;
+import static se.wallinder.heos.util.ServletConstants.FIBARO_RETRY_DELAY_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.FIBARO_SLOW_CALL_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.FIBARO_TIMEOUT_IN_MS;
+
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import sun.misc.BASE64Encoder;
+import org.apache.commons.codec.binary.Base64;
+
+import se.wallinder.heos.util.CircuitBreaker;
+import se.wallinder.heos.util.ServletMetrics;
 
 public class FibaroConnector {
 
    private final static Logger LOGGER = Logger.getLogger(FibaroConnector.class.getName());
-   private final String fibaroHost;
-   private final String fibaroAuth;
+   private final static ServletMetrics.Histogram REQUEST_DURATION = ServletMetrics.histogram("fibaro_request_duration_seconds",
+         "Time of a request to the Fibaro");
+   private final static ServletMetrics.Counter REQUEST_FAILURES = ServletMetrics.counter("fibaro_request_failures_total",
+         "Failed requests to the Fibaro", "reason");
+   private final FibaroHttpClient httpClient;
+   private final FibaroUpdateQueue updateQueue;
+   private final ConcurrentMap<String, String> requestTemplates = new ConcurrentHashMap<>();
+   // Updates are dropped at once while the Fibaro is unreachable, instead of filling the queue with updates waiting for timeouts
+   private final CircuitBreaker circuitBreaker = new CircuitBreaker("fibaro", CIRCUIT_WINDOW_SIZE, CIRCUIT_MINIMUM_CALLS, CIRCUIT_FAILURE_RATE,
+         FIBARO_SLOW_CALL_IN_MS, CIRCUIT_SLOW_CALL_RATE, CIRCUIT_OPEN_IN_MS);
 
    /**
-    * Private constructor
+    * Constructor, updates are sent one at a time
     */
    public FibaroConnector(String fibaroHost, String fibaroUser, String fibaroPassword) {
+      this(fibaroHost, fibaroUser, fibaroPassword, 1);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param concurrency The maximum number of updates sent to the Fibaro in parallel
+    */
+   public FibaroConnector(String fibaroHost, String fibaroUser, String fibaroPassword, int concurrency) {
       LOGGER.setLevel(Level.WARNING);
-      this.fibaroHost = fibaroHost;
-      this.fibaroAuth = new BASE64Encoder().encode((fibaroUser + ":" + fibaroPassword).getBytes());
+      String fibaroAuth = Base64.encodeBase64String((fibaroUser + ":" + fibaroPassword).getBytes());
+      this.httpClient = new FibaroHttpClient(fibaroHost, "Basic " + fibaroAuth, concurrency, FIBARO_TIMEOUT_IN_MS);
+      this.updateQueue = new FibaroUpdateQueue(new FibaroUpdateQueue.Delivery() {
+         @Override
+         public FibaroUpdateQueue.Outcome deliver(String request) {
+            return sendCommand(request);
+         }
+      }, concurrency, FIBARO_QUEUE_SIZE, FIBARO_MAX_RETRIES, FIBARO_RETRY_DELAY_IN_MS);
    }
 
    /**
-    * Sets the volume slider of the specified virtual device/slider to the given volume
+    * Stops delivering updates and closes the connections
+    */
+   public void close() {
+      updateQueue.close();
+      httpClient.close();
+   }
+
+   /**
+    * @return The circuit breaker of the requests sent to the Fibaro
+    */
+   public CircuitBreaker getCircuitBreaker() {
+      return circuitBreaker;
+   }
+
+   /**
+    * Sets the volume slider of the specified virtual device/slider to the given volume, the update is delivered in the background
     * 
     * @param virtualDeviceID The Id of the virtual device
     * @param sliderID The id of the slider
     * @param volume The volume to set
-    * @return True if ok, false if not
+    * @return True if queued, false if not (e.g. the circuit is open)
     */
    public boolean setVolumeSlider(String virtualDeviceID, String sliderID, int volume) {
-      return sendCommand(
-            "http://" + fibaroHost + "/api/callAction?deviceID=" + virtualDeviceID + "&name=setSlider&arg1=" + "3" + "&arg2=" + String.valueOf(volume));
+      if (!circuitBreaker.isCallPermitted()) {
+         return false;
+      }
+      String template = requestTemplate(virtualDeviceID, sliderID, "&name=setSlider&arg1=" + "3" + "&arg2=");
+      return updateQueue.offer(virtualDeviceID, sliderID, template + String.valueOf(volume));
    }
 
    /**
-    * Sets the given text on the specified virtual device/label
+    * Sets the given text on the specified virtual device/label, the update is delivered in the background
     * 
     * @param virtualDeviceID The Id of the virtual device
     * @param labelID The id of the label
     * @param text The text to set
-    * @return True if ok, false if not
+    * @return True if queued, false if not (e.g. the circuit is open)
     */
    public boolean setTextLabel(String virtualDeviceID, String labelID, String text) {
-      return sendCommand(
-            "http://" + fibaroHost + "/api/callAction?deviceID=" + virtualDeviceID + "&name=setProperty&arg1=ui." + labelID + ".value&arg2=" + text);
+      if (!circuitBreaker.isCallPermitted()) {
+         return false;
+      }
+      String template = requestTemplate(virtualDeviceID, labelID, "&name=setProperty&arg1=ui." + labelID + ".value&arg2=");
+      return updateQueue.offer(virtualDeviceID, labelID, template + text);
+   }
+
+   /**
+    * Gets the request of a virtual device/control without its value, built once per virtual device and control
+    * 
+    * @param virtualDeviceID The Id of the virtual device
+    * @param controlID The id of the control
+    * @param action The action part of the request
+    * @return The request template
+    */
+   private String requestTemplate(String virtualDeviceID, String controlID, String action) {
+      String key = virtualDeviceID + "/" + controlID;
+      String template = requestTemplates.get(key);
+      if (template == null) {
+         template = "/api/callAction?deviceID=" + virtualDeviceID + action;
+         requestTemplates.putIfAbsent(key, template);
+      }
+      return template;
    }
 
    /**
-    * Sends a command to a Fibaro (using an URL)
+    * Sends a command to a Fibaro, only called by the update queue
     * 
-    * @param fibaroURL The Fibaro URL
-    * @return True if ok, false if not
+    * @param request The request (path and query)
+    * @return Delivered if accepted, failed if worth retrying (no response or a server error), rejected if not
     */
-   private synchronized boolean sendCommand(String fibaroURL) {
-      URL url;
-      HttpURLConnection connection;
-      int responseCode = -1;
-      String response = null;
+   private FibaroUpdateQueue.Outcome sendCommand(String request) {
+      if (!circuitBreaker.tryAcquire()) {
+         REQUEST_FAILURES.inc("circuit_open");
+         return FibaroUpdateQueue.Outcome.FAILED;
+      }
+      int responseCode;
+      long start = System.nanoTime();
       try {
-         LOGGER.info("Sending command: " + fibaroURL);
-         url = new URL(fibaroURL);
-         connection = (HttpURLConnection) url.openConnection();
-         connection.setRequestMethod("GET");
-         connection.setRequestProperty("Authorization", "Basic " + fibaroAuth);
-         response = connection.getResponseMessage();
-         responseCode = connection.getResponseCode();
-         LOGGER.info("Received response: " + response);
+         LOGGER.info("Sending command: " + request);
+         responseCode = httpClient.get(request);
+         LOGGER.info("Received response: " + responseCode);
+      } catch (InterruptedException ie) {
+         // The call was let through, so its outcome is recorded, or a probe would be lost until it is given up
+         Thread.currentThread().interrupt();
+         circuitBreaker.onFailure();
+         return FibaroUpdateQueue.Outcome.FAILED;
       } catch (Exception e) {
-         LOGGER.severe("Error while sending command: " + fibaroURL);
-         return false;
+         LOGGER.severe("Error while sending command: " + request);
+         REQUEST_FAILURES.inc("error");
+         circuitBreaker.onFailure();
+         return FibaroUpdateQueue.Outcome.FAILED;
+      } finally {
+         REQUEST_DURATION.recordSince(start);
+      }
+      // A server error is the controller failing, other statuses are answers to the request
+      if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+         circuitBreaker.onFailure();
+      } else {
+         circuitBreaker.onSuccess(System.nanoTime() - start);
+      }
+      if (responseCode != HttpURLConnection.HTTP_ACCEPTED) {
+         REQUEST_FAILURES.inc("status");
+         return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR ? FibaroUpdateQueue.Outcome.FAILED : FibaroUpdateQueue.Outcome.REJECTED;
       }
-      return responseCode == HttpURLConnection.HTTP_ACCEPTED ? true : false;
+      return FibaroUpdateQueue.Outcome.DELIVERED;
    }
 
 }
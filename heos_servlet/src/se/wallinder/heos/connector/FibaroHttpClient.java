@@ -0,0 +1,270 @@
+package se.wallinder.heos.connector;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.wallinder.heos.util.ServletHost;
+
+/**
+ * A minimal HTTP/1.1 client for the Fibaro API which keeps its connections alive. Idle connections are pooled, responses are always drained
+ * so the connection can be reused, and the number of concurrent requests is limited to protect the controller.
+ */
+public class FibaroHttpClient {
+
+   private final static Logger LOGGER = Logger.getLogger(FibaroHttpClient.class.getName());
+   private final String host;
+   private final int port;
+   private final int timeoutInMs;
+   private final byte[] headers;
+   private final Semaphore permits;
+   private final Deque<Connection> idle = new ArrayDeque<>();
+   private final int maxIdle;
+
+   /**
+    * Constructor
+    *
+    * @param fibaroHost The Fibaro host, optionally with port (host:port or [IPv6 address]:port)
+    * @param authorization The value of the Authorization header
+    * @param concurrency The maximum number of concurrent requests (and pooled connections)
+    * @param timeoutInMs The timeout for connecting and for reading responses
+    * @throws IllegalArgumentException If the host or port is invalid
+    */
+   public FibaroHttpClient(String fibaroHost, String authorization, int concurrency, int timeoutInMs) {
+      LOGGER.setLevel(Level.WARNING);
+      ServletHost hostAndPort = ServletHost.parse(fibaroHost, 80);
+      this.host = hostAndPort.getHost();
+      this.port = hostAndPort.getPort();
+      this.timeoutInMs = timeoutInMs;
+      // Everything after the request line is the same for every request
+      this.headers = (" HTTP/1.1\r\nHost: " + fibaroHost + "\r\nAuthorization: " + authorization + "\r\nConnection: keep-alive\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII);
+      this.permits = new Semaphore(Math.max(1, concurrency), true);
+      this.maxIdle = Math.max(1, concurrency);
+   }
+
+   /**
+    * Sends a GET request
+    *
+    * @param pathAndQuery The path and query of the request (already encoded)
+    * @return The HTTP status code
+    * @throws IOException If no response
+    * @throws InterruptedException If interrupted while waiting for a permit
+    */
+   public int get(String pathAndQuery) throws IOException, InterruptedException {
+      permits.acquire();
+      try {
+         byte[] requestLine = ("GET " + pathAndQuery).getBytes(StandardCharsets.US_ASCII);
+         byte[] request = Arrays.copyOf(requestLine, requestLine.length + headers.length);
+         System.arraycopy(headers, 0, request, requestLine.length, headers.length);
+         Connection connection = takeIdle();
+         if (connection != null) {
+            try {
+               return exchange(connection, request);
+            } catch (IOException e) {
+               // The controller may have closed an idle connection, try once more on a new one
+               LOGGER.info("Pooled connection to Fibaro " + host + " failed, reconnecting");
+            }
+         }
+         return exchange(open(), request);
+      } finally {
+         permits.release();
+      }
+   }
+
+   /**
+    * Closes all idle connections
+    */
+   public void close() {
+      synchronized (idle) {
+         for (Connection connection : idle) {
+            connection.close();
+         }
+         idle.clear();
+      }
+   }
+
+   /**
+    * Sends a request and reads the complete response
+    *
+    * @param connection The connection
+    * @param request The complete request
+    * @return The HTTP status code
+    * @throws IOException If no response, the connection is closed
+    */
+   private int exchange(Connection connection, byte[] request) throws IOException {
+      boolean reusable = false;
+      try {
+         connection.out.write(request);
+         connection.out.flush();
+         String statusLine = readLine(connection.in);
+         String[] status = statusLine.split(" ");
+         if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new IOException("Invalid response from Fibaro: " + statusLine);
+         }
+         int statusCode = Integer.parseInt(status[1]);
+         long contentLength = -1;
+         boolean chunked = false;
+         boolean keepAlive = status[0].equals("HTTP/1.1");
+         String header;
+         while (!(header = readLine(connection.in)).isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon < 0) {
+               continue;
+            }
+            String name = header.substring(0, colon).trim();
+            String value = header.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+               contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+               chunked = value.equalsIgnoreCase("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+               keepAlive = !value.equalsIgnoreCase("close");
+            }
+         }
+         // Drain the body, so the connection can be reused
+         if (chunked) {
+            long chunkSize;
+            while ((chunkSize = Long.parseLong(readLine(connection.in).split(";")[0].trim(), 16)) > 0) {
+               skip(connection.in, chunkSize);
+               readLine(connection.in);
+            }
+            while (!readLine(connection.in).isEmpty()) {
+               // Trailers
+            }
+         } else if (contentLength >= 0) {
+            skip(connection.in, contentLength);
+         } else if (statusCode != 204 && statusCode != 304) {
+            // Body ends when the connection is closed
+            keepAlive = false;
+         }
+         reusable = keepAlive;
+         return statusCode;
+      } catch (NumberFormatException nfe) {
+         throw new IOException("Invalid response from Fibaro", nfe);
+      } finally {
+         if (reusable) {
+            release(connection);
+         } else {
+            connection.close();
+         }
+      }
+   }
+
+   /**
+    * @return An idle connection or null if none
+    */
+   private Connection takeIdle() {
+      synchronized (idle) {
+         return idle.pollFirst();
+      }
+   }
+
+   /**
+    * Returns a connection to the pool
+    *
+    * @param connection The connection
+    */
+   private void release(Connection connection) {
+      synchronized (idle) {
+         if (idle.size() < maxIdle) {
+            idle.addFirst(connection);
+            return;
+         }
+      }
+      connection.close();
+   }
+
+   /**
+    * @return A new connection
+    * @throws IOException If not possible to connect
+    */
+   private Connection open() throws IOException {
+      Socket socket = new Socket();
+      try {
+         socket.setTcpNoDelay(true);
+         socket.setKeepAlive(true);
+         socket.setSoTimeout(timeoutInMs);
+         socket.connect(new InetSocketAddress(host, port), timeoutInMs);
+         return new Connection(socket);
+      } catch (IOException e) {
+         socket.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Reads a CRLF terminated line
+    */
+   private static String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != '\n') {
+         if (c < 0) {
+            throw new IOException("Connection closed by Fibaro");
+         }
+         if (c != '\r') {
+            line.append((char) c);
+         }
+      }
+      return line.toString();
+   }
+
+   /**
+    * Skips a number of bytes
+    */
+   private static void skip(InputStream in, long count) throws IOException {
+      long remaining = count;
+      while (remaining > 0) {
+         long skipped = in.skip(remaining);
+         if (skipped <= 0) {
+            if (in.read() < 0) {
+               throw new IOException("Connection closed by Fibaro");
+            }
+            skipped = 1;
+         }
+         remaining -= skipped;
+      }
+   }
+
+   /**
+    * A connection to the Fibaro
+    */
+   private static class Connection {
+
+      private final Socket socket;
+      private final InputStream in;
+      private final OutputStream out;
+
+      /**
+       * Constructor
+       */
+      Connection(Socket socket) throws IOException {
+         this.socket = socket;
+         this.in = new BufferedInputStream(socket.getInputStream());
+         this.out = socket.getOutputStream();
+      }
+
+      /**
+       * Closes the connection
+       */
+      void close() {
+         try {
+            socket.close();
+         } catch (IOException e) {
+            LOGGER.info("Could not close connection to Fibaro");
+         }
+      }
+   }
+
+}
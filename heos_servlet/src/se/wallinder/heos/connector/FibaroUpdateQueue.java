@@ -0,0 +1,268 @@
+package se.wallinder.heos.connector;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.wallinder.heos.util.ServletMetrics;
+import se.wallinder.heos.util.ServletThreads;
+
+/**
+ * Delivers Fibaro virtual device updates in the background. Updates are coalesced per virtual device and control, so only the latest label
+ * text or slider value is sent. Updates failing for a reason which may pass (no connection, a server error) are retried a bounded number
+ * of times, unless superseded by a newer update, updates rejected by the Fibaro are not. Several updates may be delivered in parallel, but
+ * never two updates of the same control.
+ */
+public class FibaroUpdateQueue {
+
+   private final static Logger LOGGER = Logger.getLogger(FibaroUpdateQueue.class.getName());
+   private final static ServletMetrics.Counter DROPPED = ServletMetrics.counter("fibaro_updates_dropped_total",
+         "Fibaro updates never delivered", "reason");
+   private final Delivery delivery;
+   private final int maxSize;
+   private final int maxRetries;
+   private final long retryDelayInNanos;
+   private final LinkedHashMap<String, Update> pending = new LinkedHashMap<>();
+   private final Set<String> inFlight = new HashSet<>();
+   private final List<Thread> workers = new ArrayList<>();
+   // A lock instead of the monitor, so a waiting virtual thread never pins its carrier
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition changed = lock.newCondition();
+   private boolean running = true;
+
+   /**
+    * The outcome of delivering an update
+    */
+   public static enum Outcome {
+      // Accepted by the Fibaro
+      DELIVERED,
+      // Not delivered, may succeed if retried (e.g. no connection or a server error)
+      FAILED,
+      // Refused by the Fibaro (e.g. an unknown virtual device or wrong credentials), the same request would be refused again
+      REJECTED;
+   }
+
+   /**
+    * Sends an update to the Fibaro
+    */
+   public interface Delivery {
+
+      /**
+       * @param request The request (path and query) of the update
+       * @return The outcome
+       */
+      Outcome deliver(String request);
+   }
+
+   /**
+    * Constructor, starts the delivery threads
+    *
+    * @param delivery Sends the updates
+    * @param parallelism The number of updates delivered in parallel
+    * @param maxSize The maximum number of pending updates, the oldest is dropped when full
+    * @param maxRetries The maximum number of retries of a failed update
+    * @param retryDelayInMs The delay before the first retry, doubled for every retry
+    */
+   public FibaroUpdateQueue(Delivery delivery, int parallelism, int maxSize, int maxRetries, long retryDelayInMs) {
+      LOGGER.setLevel(Level.WARNING);
+      this.delivery = delivery;
+      this.maxSize = maxSize;
+      this.maxRetries = maxRetries;
+      this.retryDelayInNanos = TimeUnit.MILLISECONDS.toNanos(retryDelayInMs);
+      for (int i = 0; i < Math.max(1, parallelism); i++) {
+         workers.add(ServletThreads.start("Fibaro-updates-" + i, new Runnable() {
+            @Override
+            public void run() {
+               deliverUpdates();
+            }
+         }));
+      }
+   }
+
+   /**
+    * Queues an update, replacing any pending update of the same control
+    *
+    * @param virtualDeviceID The ID of the virtual device
+    * @param controlID The ID of the control (label or slider)
+    * @param request The request (path and query) of the update
+    * @return True if queued, false if the queue has been closed
+    */
+   public boolean offer(String virtualDeviceID, String controlID, String request) {
+      lock.lock();
+      try {
+         if (!running) {
+            return false;
+         }
+         String key = virtualDeviceID + "/" + controlID;
+         // Remove first, so the update is moved to the tail
+         if (pending.remove(key) == null && pending.size() >= maxSize) {
+            Iterator<Update> oldest = pending.values().iterator();
+            LOGGER.warning("Fibaro update queue full, dropping update: " + oldest.next().request);
+            DROPPED.inc("full");
+            oldest.remove();
+         }
+         pending.put(key, new Update(key, request, 0, System.nanoTime()));
+         changed.signalAll();
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * @return The number of pending updates
+    */
+   public int size() {
+      lock.lock();
+      try {
+         return pending.size();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Stops the delivery threads, pending updates are dropped
+    */
+   public void close() {
+      lock.lock();
+      try {
+         running = false;
+         pending.clear();
+         changed.signalAll();
+      } finally {
+         lock.unlock();
+      }
+      for (Thread worker : workers) {
+         worker.interrupt();
+      }
+   }
+
+   /**
+    * Delivers updates until closed
+    */
+   private void deliverUpdates() {
+      while (true) {
+         Update update;
+         try {
+            update = take();
+         } catch (InterruptedException ie) {
+            return;
+         }
+         if (update == null) {
+            return;
+         }
+         Outcome outcome;
+         try {
+            outcome = delivery.deliver(update.request);
+         } catch (RuntimeException e) {
+            outcome = Outcome.FAILED;
+         }
+         done(update, outcome);
+      }
+   }
+
+   /**
+    * Waits for the oldest update which is due and not already being delivered
+    *
+    * @return The update or null if closed
+    * @throws InterruptedException If interrupted while waiting
+    */
+   private Update take() throws InterruptedException {
+      lock.lock();
+      try {
+         while (running) {
+            long now = System.nanoTime();
+            long wait = Long.MAX_VALUE;
+            Iterator<Update> iterator = pending.values().iterator();
+            while (iterator.hasNext()) {
+               Update update = iterator.next();
+               if (inFlight.contains(update.key)) {
+                  continue;
+               }
+               if (update.notBefore - now <= 0) {
+                  iterator.remove();
+                  inFlight.add(update.key);
+                  return update;
+               }
+               wait = Math.min(wait, update.notBefore - now);
+            }
+            if (wait == Long.MAX_VALUE) {
+               changed.await();
+            } else {
+               changed.awaitNanos(wait);
+            }
+         }
+         return null;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Completes a delivery, a failed update is queued again unless retried enough or superseded
+    *
+    * @param update The update
+    * @param outcome The outcome of the delivery
+    */
+   private void done(Update update, Outcome outcome) {
+      lock.lock();
+      try {
+         inFlight.remove(update.key);
+         // A newer update of the same control may be waiting for this one
+         changed.signalAll();
+         if (outcome == Outcome.DELIVERED || !running || pending.containsKey(update.key)) {
+            return;
+         }
+         if (outcome == Outcome.REJECTED) {
+            LOGGER.warning("Fibaro update rejected, not retried: " + update.request);
+            DROPPED.inc("rejected");
+            return;
+         }
+         if (update.attempt >= maxRetries) {
+            LOGGER.warning("Could not deliver Fibaro update, giving up: " + update.request);
+            DROPPED.inc("retries");
+            return;
+         }
+         if (pending.size() >= maxSize) {
+            LOGGER.warning("Fibaro update queue full, not retrying update: " + update.request);
+            DROPPED.inc("full");
+            return;
+         }
+         long delay = retryDelayInNanos << update.attempt;
+         pending.put(update.key, new Update(update.key, update.request, update.attempt + 1, System.nanoTime() + delay));
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * A pending update
+    */
+   private static class Update {
+
+      private final String key;
+      private final String request;
+      private final int attempt;
+      private final long notBefore;
+
+      /**
+       * Constructor
+       */
+      Update(String key, String request, int attempt, long notBefore) {
+         this.key = key;
+         this.request = request;
+         this.attempt = attempt;
+         this.notBefore = notBefore;
+      }
+   }
+
+}
@@ -0,0 +1,404 @@
+package se.wallinder.heos.connector;
+
+import static se.wallinder.heos.util.ServletConstants.HEOS_PREFIX;
+import static se.wallinder.heos.util.ServletConstants.HEOS_SEQUENCE;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.wallinder.heos.util.ServletMetrics;
+import se.wallinder.heos.util.ServletRecorder;
+
+/**
+ * A multiplexed connection to a HEOS CLI. Commands are tagged with a sequence number and written without waiting for earlier commands to be
+ * answered, a dedicated reader thread matches every response to its command (name and sequence) and completes the corresponding future.
+ * <p>
+ * The reader thread waits in a selector, so it wakes up as soon as bytes arrive or the earliest pending deadline passes, and keeps its
+ * buffers for the lifetime of the connection.
+ */
+public class HEOSChannel {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSChannel.class.getName());
+   private final static int READ_BUFFER_SIZE = 8192;
+   private final static long IDLE_SELECT_IN_MS = 1000;
+   private final static ServletMetrics.Histogram COMMAND_DURATION = ServletMetrics.histogram("heos_command_duration_seconds",
+         "Time from sending a HEOS command to its final response", "command");
+   private final static ServletMetrics.Counter COMMAND_TIMEOUTS = ServletMetrics.counter("heos_command_timeouts_total",
+         "HEOS commands without a response within the timeout", "command");
+   private final static ServletMetrics.Counter UNDER_PROCESS = ServletMetrics.counter("heos_command_under_process_total",
+         "Command under process responses from HEOS", "command");
+   private final static ServletMetrics.Counter MISMATCHED = ServletMetrics.counter("heos_mismatched_responses_total",
+         "HEOS responses not matching any pending command");
+   private final String host;
+   private final int port;
+   private final int timeoutInMs;
+   private final AtomicInteger sequence = new AtomicInteger();
+   private final ConcurrentMap<String, HEOSFuture> pending = new ConcurrentHashMap<>();
+   // Locks instead of monitors, so a virtual thread blocked connecting or writing never pins its carrier
+   private final ReentrantLock connectLock = new ReentrantLock();
+   private final ReentrantLock writeLock = new ReentrantLock();
+   private volatile SocketChannel socketChannel = null;
+   private volatile Selector selector = null;
+   private volatile HEOSEventListener eventListener = null;
+   private volatile long lastRead = 0;
+
+   /**
+    * Constructor
+    *
+    * @param host The HEOS host
+    * @param port The HEOS CLI port
+    * @param timeoutInMs The timeout for connecting and for each command
+    */
+   public HEOSChannel(String host, int port, int timeoutInMs) {
+      LOGGER.setLevel(Level.WARNING);
+      this.host = host;
+      this.port = port;
+      this.timeoutInMs = timeoutInMs;
+   }
+
+   /**
+    * Connects to the HEOS CLI, an existing connection is closed first
+    *
+    * @throws IOException If not possible to connect
+    */
+   public void connect() throws IOException {
+      connectLock.lock();
+      try {
+         open();
+      } finally {
+         connectLock.unlock();
+      }
+   }
+
+   /**
+    * Opens a new connection and starts its reader thread, an existing connection is closed first
+    *
+    * @throws IOException If not possible to connect
+    */
+   private void open() throws IOException {
+      close();
+      LOGGER.info("Connecting to HEOS " + host + ":" + port);
+      final SocketChannel newChannel = SocketChannel.open();
+      final Selector newSelector;
+      try {
+         newChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+         // Commands are single short lines, don't let Nagle hold back pipelined commands
+         newChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+         newChannel.socket().connect(new InetSocketAddress(host, port), timeoutInMs);
+         newChannel.configureBlocking(false);
+         newSelector = Selector.open();
+         newChannel.register(newSelector, SelectionKey.OP_READ);
+      } catch (IOException e) {
+         newChannel.close();
+         throw e;
+      }
+      socketChannel = newChannel;
+      selector = newSelector;
+      lastRead = System.nanoTime();
+      // Always a platform thread, it waits in a selector
+      Thread reader = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            read(newChannel, newSelector);
+         }
+      }, "HEOS-reader-" + host);
+      reader.setDaemon(true);
+      reader.start();
+   }
+
+   /**
+    * @param eventListener The listener receiving change events, null if none
+    */
+   public void setEventListener(HEOSEventListener eventListener) {
+      this.eventListener = eventListener;
+   }
+
+   /**
+    * Closes the connection, all pending commands are failed. The listener is told once per connection, whether closed here or lost.
+    */
+   public void close() {
+      connectLock.lock();
+      try {
+         SocketChannel closing = socketChannel;
+         if (closing == null) {
+            return;
+         }
+         // Cleared first, so the reader of the connection doesn't report it lost as well
+         socketChannel = null;
+         Selector closingSelector = selector;
+         selector = null;
+         try {
+            closing.close();
+            closingSelector.close();
+         } catch (IOException e) {
+            LOGGER.severe("Could not disconnect from HEOS " + host + ":" + port);
+         }
+         failPending(new IOException("Connection to HEOS " + host + ":" + port + " closed"));
+         notifyDisconnected();
+      } finally {
+         connectLock.unlock();
+      }
+   }
+
+   /**
+    * @return True if the connection is open, false if not
+    */
+   public boolean isOpen() {
+      SocketChannel current = socketChannel;
+      return current != null && current.isOpen();
+   }
+
+   /**
+    * @return The time since anything was read from the device, or since connecting, in ns
+    */
+   public long getIdleInNanos() {
+      return System.nanoTime() - lastRead;
+   }
+
+   /**
+    * Sends a command without waiting for the response
+    *
+    * @param command The command to send
+    * @param arguments The command arguments (empty or starting with ?)
+    * @return The future which is completed when the response arrives or failed when the deadline passes
+    * @throws IOException If not connected or not possible to write
+    */
+   public HEOSFuture send(String command, String arguments) throws IOException {
+      SocketChannel writeChannel = socketChannel;
+      if (writeChannel == null || !writeChannel.isOpen()) {
+         throw new IOException("Not connected to HEOS " + host + ":" + port);
+      }
+      int seq = sequence.incrementAndGet();
+      HEOSFuture future = new HEOSFuture(command, seq, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMs));
+      pending.put(key(command, seq), future);
+      String completeCommand = HEOS_PREFIX + command + arguments + (arguments.isEmpty() ? "?" : "&") + HEOS_SEQUENCE + "=" + seq;
+      LOGGER.info("Sending command: " + completeCommand);
+      ByteBuffer buffer = ByteBuffer.wrap((completeCommand + "\r\n").getBytes(StandardCharsets.UTF_8));
+      try {
+         writeLock.lock();
+         try {
+            while (buffer.hasRemaining()) {
+               if (writeChannel.write(buffer) == 0) {
+                  // Socket send buffer full, give the device a moment to catch up
+                  LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+               }
+            }
+         } finally {
+            writeLock.unlock();
+         }
+      } catch (IOException e) {
+         pending.remove(key(command, seq));
+         throw e;
+      }
+      // Make sure the reader wakes up in time for the deadline
+      Selector current = selector;
+      if (current != null) {
+         current.wakeup();
+      }
+      return future;
+   }
+
+   /**
+    * Forgets a pending command, e.g. after the caller timed out
+    *
+    * @param future The future of the command
+    */
+   public void cancel(HEOSFuture future) {
+      pending.remove(key(future.getCommand(), future.getSequence()));
+      future.cancel(false);
+   }
+
+   /**
+    * Reads responses until the connection is closed
+    *
+    * @param readChannel The channel to read from
+    * @param readSelector The selector of the channel
+    */
+   private void read(SocketChannel readChannel, Selector readSelector) {
+      ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+      byte[] line = new byte[READ_BUFFER_SIZE];
+      int lineLength = 0;
+      try {
+         while (readChannel.isOpen()) {
+            readSelector.select(nextSelectTimeout());
+            readSelector.selectedKeys().clear();
+            int read;
+            while ((read = readChannel.read(buffer)) > 0) {
+               lastRead = System.nanoTime();
+               buffer.flip();
+               while (buffer.hasRemaining()) {
+                  byte b = buffer.get();
+                  if (b == '\n') {
+                     // Responses end with CRLF
+                     int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                     if (length > 0) {
+                        dispatch(line, length);
+                     }
+                     lineLength = 0;
+                  } else {
+                     if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                     }
+                     line[lineLength++] = b;
+                  }
+               }
+               buffer.clear();
+            }
+            if (read < 0) {
+               break;
+            }
+            expirePending();
+         }
+      } catch (IOException | ClosedSelectorException e) {
+         // A closed selector means the channel was closed while waiting
+         if (readChannel.isOpen()) {
+            LOGGER.warning("Error while reading from HEOS " + host + ":" + port + ": " + e.getMessage());
+         }
+      } finally {
+         // Connection lost, nothing more will be answered, unless closed (and reported) by close()
+         connectLock.lock();
+         try {
+            if (readChannel == socketChannel) {
+               socketChannel = null;
+               selector = null;
+               try {
+                  readChannel.close();
+                  readSelector.close();
+               } catch (IOException e) {
+                  LOGGER.severe("Could not disconnect from HEOS " + host + ":" + port);
+               }
+               failPending(new IOException("Connection to HEOS " + host + ":" + port + " lost"));
+               notifyDisconnected();
+            }
+         } finally {
+            connectLock.unlock();
+         }
+      }
+   }
+
+   /**
+    * Tells the event listener that events may have been missed
+    */
+   private void notifyDisconnected() {
+      HEOSEventListener listener = eventListener;
+      if (listener != null) {
+         listener.onDisconnected();
+      }
+   }
+
+   /**
+    * @return The time until the earliest pending deadline in ms (at least 1)
+    */
+   private long nextSelectTimeout() {
+      long now = System.nanoTime();
+      long timeout = IDLE_SELECT_IN_MS;
+      for (HEOSFuture future : pending.values()) {
+         timeout = Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(future.getDeadline() - now) + 1);
+      }
+      return Math.max(1, timeout);
+   }
+
+   /**
+    * Fails all pending commands which have passed their deadline
+    */
+   private void expirePending() {
+      long now = System.nanoTime();
+      Iterator<HEOSFuture> iterator = pending.values().iterator();
+      while (iterator.hasNext()) {
+         HEOSFuture future = iterator.next();
+         if (future.getDeadline() - now <= 0) {
+            iterator.remove();
+            COMMAND_TIMEOUTS.inc(future.getCommand());
+            ServletRecorder.exchange(future.getRequest(), future.getCommand(), "timeout", future.getSent());
+            future.fail(new TimeoutException("No response for " + future.getCommand() + " within " + timeoutInMs + " ms"));
+         }
+      }
+   }
+
+   /**
+    * Completes the pending command matching a response
+    *
+    * @param line The buffer holding the response
+    * @param length The length of the response
+    */
+   private void dispatch(byte[] line, int length) {
+      HEOSMessage message;
+      try {
+         message = HEOSMessage.decode(line, 0, length);
+      } catch (IllegalArgumentException iae) {
+         LOGGER.severe("Could not decode response: " + new String(line, 0, length, StandardCharsets.UTF_8) + " (" + iae.getMessage() + ")");
+         return;
+      }
+      LOGGER.info("Received response: " + message);
+      // Events are not answers to any command
+      if (message.isEvent()) {
+         HEOSEventListener listener = eventListener;
+         if (listener != null) {
+            try {
+               listener.onEvent(message);
+            } catch (RuntimeException e) {
+               LOGGER.severe("Error while handling event: " + message + " (" + e.getMessage() + ")");
+            }
+         }
+         return;
+      }
+      // Only complete on a final response, e.g. not under process
+      if (message.isUnderProcess()) {
+         UNDER_PROCESS.inc(message.getCommand());
+         return;
+      }
+      HEOSFuture future = pending.remove(key(message.getCommand(), message.getSequence()));
+      if (future == null) {
+         LOGGER.severe("Response did not match any command: " + message);
+         MISMATCHED.inc();
+         return;
+      }
+      if (future.complete(message)) {
+         COMMAND_DURATION.recordSince(future.getSent(), future.getCommand());
+         ServletRecorder.exchange(future.getRequest(), future.getCommand(), message.getResult(), future.getSent());
+      }
+   }
+
+   /**
+    * Fails all pending commands
+    *
+    * @param cause The cause
+    */
+   private void failPending(Exception cause) {
+      Iterator<HEOSFuture> iterator = pending.values().iterator();
+      while (iterator.hasNext()) {
+         HEOSFuture future = iterator.next();
+         iterator.remove();
+         ServletRecorder.exchange(future.getRequest(), future.getCommand(), "closed", future.getSent());
+         future.fail(cause);
+      }
+   }
+
+   /**
+    * @param command The command
+    * @param seq The sequence number
+    * @return The key of a pending command
+    */
+   private static String key(String command, int seq) {
+      return command + "#" + seq;
+   }
+
+}
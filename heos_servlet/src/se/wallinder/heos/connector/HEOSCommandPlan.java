@@ -0,0 +1,141 @@
+package se.wallinder.heos.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A plan of HEOS commands in stages. The commands of a stage don't wait for each other's responses, they are sent back to back on the same
+ * connection (which the HEOS system handles in order), a stage starts when all responses of the previous stage are in. Whether a step is needed
+ * is decided when its stage starts, so a step can be skipped based on the responses of the previous stages.
+ */
+class HEOSCommandPlan {
+
+   private final String name;
+   private final String target;
+   private final List<List<Step>> stages = new ArrayList<>();
+   private int sent = 0;
+   private int skipped = 0;
+   private int roundTrips = 0;
+   private long latencyInNanos = 0;
+
+   /**
+    * A command of the plan
+    */
+   abstract static class Step {
+
+      private final String command;
+      private final boolean signedIn;
+
+      /**
+       * Constructor
+       *
+       * @param command The command
+       * @param signedIn True if the command requires a signed in user
+       */
+      Step(String command, boolean signedIn) {
+         this.command = command;
+         this.signedIn = signedIn;
+      }
+
+      /**
+       * @return The command
+       */
+      String getCommand() {
+         return command;
+      }
+
+      /**
+       * @return True if the command requires a signed in user
+       */
+      boolean isSignedIn() {
+         return signedIn;
+      }
+
+      /**
+       * Called when the stage of the step starts
+       *
+       * @return The arguments of the command or null if the step is not needed
+       */
+      abstract String arguments();
+
+      /**
+       * Called with the response of the command
+       *
+       * @param result The response or null if none
+       * @return True if the plan can continue, false if the plan has failed
+       */
+      abstract boolean completed(HEOSMessage result);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param name The name of the plan (e.g. station), the same for all plans of the kind
+    * @param target What the plan plays on, for logging
+    */
+   HEOSCommandPlan(String name, String target) {
+      this.name = name;
+      this.target = target;
+   }
+
+   /**
+    * @return The name of the plan
+    */
+   String getName() {
+      return name;
+   }
+
+   /**
+    * Adds a stage, started when the previous stage is done
+    *
+    * @param steps The steps of the stage, sent in order without waiting for responses
+    * @return This plan
+    */
+   HEOSCommandPlan then(Step... steps) {
+      stages.add(Collections.unmodifiableList(Arrays.asList(steps)));
+      return this;
+   }
+
+   /**
+    * @return The stages
+    */
+   List<List<Step>> getStages() {
+      return stages;
+   }
+
+   /**
+    * Records a stage which has been run
+    *
+    * @param sentSteps The number of steps sent
+    * @param skippedSteps The number of steps not needed
+    */
+   void stageDone(int sentSteps, int skippedSteps) {
+      sent += sentSteps;
+      skipped += skippedSteps;
+      roundTrips += sentSteps > 0 ? 1 : 0;
+   }
+
+   /**
+    * Records the end of the plan
+    *
+    * @param latencyInNanos The total latency of the plan
+    */
+   void done(long latencyInNanos) {
+      this.latencyInNanos = latencyInNanos;
+   }
+
+   /**
+    * @return The total latency of the plan, when done
+    */
+   long getLatencyInMs() {
+      return latencyInNanos / 1000000;
+   }
+
+   @Override
+   public String toString() {
+      return name + " " + target + ": " + sent + " commands in " + roundTrips + " round trips, " + skipped + " skipped, " + getLatencyInMs() + " ms";
+   }
+
+}
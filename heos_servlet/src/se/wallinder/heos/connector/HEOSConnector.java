@@ -1,593 +1,1567 @@
-package se.wallinder.heos.connector;
-
-import static se.wallinder.heos.util.ServletConstants.HEOS_CMD_UNDER_PROCESS;
-import static se.wallinder.heos.util.ServletConstants.HEOS_FAVORITES_ID;
-import static se.wallinder.heos.util.ServletConstants.HEOS_PLAYLIST_ID;
-import static se.wallinder.heos.util.ServletConstants.HEOS_PREFIX;
-import static se.wallinder.heos.util.ServletConstants.HEOS_RESULT_STATE_PLAY;
-import static se.wallinder.heos.util.ServletConstants.HEOS_RESULT_SUCCESS;
-import static se.wallinder.heos.util.ServletConstants.HEOS_SLEEPTIME_IN_MS;
-import static se.wallinder.heos.util.ServletConstants.HEOS_TIMEOUT_IN_MS;
-import static se.wallinder.heos.util.ServletConstants.HEOS_TYPE_PLAYLIST;
-import static se.wallinder.heos.util.ServletConstants.HEOS_TYPE_STATION;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
-
-import se.wallinder.heos.util.ServletConstants;
-
-public class HEOSConnector {
-
-   private final static Logger LOGGER = Logger.getLogger(HEOSConnector.class.getName());
-   private Map<String, String> players;
-   private Map<String, String> stations;
-   private Map<String, String> playlists;
-   private final String heosHost;
-   private final String heosUser;
-   private final String heosPassword;
-   private Socket socket = null;
-
-   /**
-    * Protected Constructor
-    */
-   public HEOSConnector(String heosHost, String heosUser, String heosPassword) {
-      LOGGER.setLevel(Level.WARNING);
-      this.heosHost = heosHost;
-      this.heosUser = heosUser;
-      this.heosPassword = heosPassword;
-      // Connect
-      connect();
-      players = getAllPlayers();
-      stations = getAllStations();
-      playlists = getAllPlaylists();
-   }
-
-   /**
-    * Connects to the HEOS system
-    */
-   public void connect() {
-      try {
-         // If socket is already open, close it first
-         if (socket != null && !socket.isClosed()) {
-            try {
-               socket.close();
-            } catch (Exception e) {
-               LOGGER.severe("Could not disconnect from HEOS " + heosHost + ":" + ServletConstants.HEOS_PORT);
-            }
-         }
-         LOGGER.info("Connecting to HEOS " + heosHost + ":" + ServletConstants.HEOS_PORT);
-         socket = new Socket(heosHost, ServletConstants.HEOS_PORT);
-         socket.setKeepAlive(true);
-      } catch (Exception e) {
-         LOGGER.severe("Could not connect to HEOS " + heosHost + ":" + ServletConstants.HEOS_PORT);
-      }
-   }
-
-   /**
-    * Starts playback
-    *
-    * @param playerID The ID of the player
-    * @return True if okay, false if not
-    */
-   public boolean play(String playerID) {
-      // Always ungroup before playing if grouped
-      if (isGrouped(playerID)) {
-         ungroupPlayers(playerID);
-      }
-      // Start playback
-      return startPlayback(playerID);
-   }
-
-   /**
-    * Stops playback
-    * 
-    * @param playerID The ID of the player
-    * @return True if okay, false if not
-    */
-   public boolean stop(String playerID) {
-      // Always ungroup before stopping if grouped
-      if (isGrouped(playerID)) {
-         ungroupPlayers(playerID);
-      }
-      // Stop playback
-      return stopPlayback(playerID);
-   }
-
-   /**
-    * Sets the volume of a specified player
-    * 
-    * @param playerID The ID of the player
-    * @param volume The volume to set
-    * @return True if okay, false if not
-    */
-   public boolean volume(String playerID, int volume) {
-      // Set volume
-      return setVolume(playerID, volume);
-   }
-
-   /**
-    * Plays the specified station (id) on the specified player
-    * 
-    * @param playerID The ID of the player
-    * @param stationID The ID of the station
-    * @return True if okay, false if not
-    */
-   public boolean station(String playerID, String stationID) {
-      // Always ungroup before playing if grouped
-      if (isGrouped(playerID)) {
-         ungroupPlayers(playerID);
-      }
-
-      // If not signed in, sign in
-      if (!isUserSignedIn(heosUser)) {
-         signIn();
-      }
-
-      // If unsuccessful, log error
-      boolean success = playStation(playerID, stationID);
-      if (!success) {
-         LOGGER.warning("Could not play station " + stationID + " on player " + playerID);
-      }
-
-      return success;
-   }
-
-   /**
-    * Plays the specified playlist (id) on the specified player
-    * 
-    * @param playerID The ID of the player
-    * @param playlistID The ID of the playlist
-    * @return True if okay, false if not
-    */
-   public boolean playlist(String playerID, String playlistID) {
-      // Always ungroup before playing if grouped
-      if (isGrouped(playerID)) {
-         ungroupPlayers(playerID);
-      }
-
-      // If not signed in, sign in
-      if (!isUserSignedIn(heosUser)) {
-         signIn();
-      }
-
-      // If unsuccessful, log error
-      boolean success = playPlaylist(playerID, playlistID);
-      if (!success) {
-         LOGGER.warning("Could not play playlist " + playlistID + " on player " + playerID);
-      }
-
-      return success;
-   }
-
-   /**
-    * Plays an input of a player on a player
-    * 
-    * @param playerID The ID of the player
-    * @param inputPlayerID The ID of the player with the input
-    * @param inputName The name of the input
-    * @return True if okay, false if not
-    */
-   public boolean input(String playerID, String inputPlayerID, String inputName) {
-      // Always ungroup before playing if grouped
-      if (isGrouped(playerID)) {
-         ungroupPlayers(playerID);
-      }
-
-      // If unsuccessful, log error
-      boolean success = playInput(playerID, inputPlayerID, inputName);
-      if (!success) {
-         LOGGER.warning("Could not play input " + inputName + " of player " + inputPlayerID + " on player " + playerID);
-      }
-
-      return success;
-   }
-
-   /**
-    * Finds out if connected to the HEOS system by trying to send a heartbeat
-    * 
-    * @return True if connected, false if not
-    */
-   public boolean isConnected() {
-      return validateResult(sendCommand("system/heart_beat", ""), HEOS_RESULT_SUCCESS);
-   }
-
-   /**
-    * Gets now playing media for a given player
-    * 
-    * @param playerID The player ID
-    * @return The now playing or empty string if none
-    */
-   public String getNowPlaying(String playerID) {
-      String jsonResult = sendCommand("player/get_now_playing_media", "?pid=" + playerID);
-      if (jsonResult == null) {
-         LOGGER.warning("Could not get now playing");
-         return "";
-      }
-      JSONParser parser = new JSONParser();
-      try {
-         JSONObject rootObject = (JSONObject) parser.parse(jsonResult);
-         JSONObject payload = (JSONObject) rootObject.get("payload");
-         String station = (String) payload.get("station");
-         String song = (String) payload.get("song");
-         if (station != null && !station.isEmpty()) {
-            return station;
-         } else if (song != null && !song.isEmpty()) {
-            return song;
-         }
-      } catch (ParseException pe) {
-         LOGGER.severe("Could not parse result when getting players");
-      }
-      return "";
-   }
-
-   /**
-    * Updates available players
-    * 
-    * @return A map with all player ID:s and names
-    */
-   public void updatePlayers() {
-      players = getAllPlayers();
-   }
-
-   /**
-    * Gets all available players
-    * 
-    * @return A map with all player ID:s and names
-    */
-   public Map<String, String> getPlayers() {
-      return players;
-   }
-
-   /**
-    * Updates available stations
-    * 
-    * @return A map with all player ID:s and names
-    */
-   public void updateStations() {
-      stations = getAllStations();
-   }
-
-   /**
-    * Gets all favorite stations
-    * 
-    * @return A map with all station ID:s and names
-    */
-   public Map<String, String> getStations() {
-      return stations;
-   }
-
-   /**
-    * Updates available playlists
-    * 
-    * @return A map with all player ID:s and names
-    */
-   public void updatePlaylists() {
-      playlists = getAllPlaylists();
-   }
-
-   /**
-    * Gets all playlists
-    * 
-    * @return A map with all playlist ID:s and names
-    */
-   public Map<String, String> getPlaylists() {
-      return playlists;
-   }
-
-   /**
-    * Gets all available players
-    * 
-    * @return A map with all player ID:s and names
-    */
-   private Map<String, String> getAllPlayers() {
-      Map<String, String> players = new HashMap<>();
-      String jsonResult = sendCommand("player/get_players", "");
-      if (jsonResult == null) {
-         LOGGER.warning("Could not get players");
-         return players;
-      }
-      JSONParser parser = new JSONParser();
-      try {
-         JSONObject rootObject = (JSONObject) parser.parse(jsonResult);
-         JSONArray payload = (JSONArray) rootObject.get("payload");
-         Iterator iterator = payload.iterator();
-         while (iterator.hasNext()) {
-            JSONObject element = (JSONObject) iterator.next();
-            String pid = String.valueOf((Long) element.get("pid"));
-            String name = (String) element.get("name");
-            players.put(pid, name);
-         }
-      } catch (ParseException pe) {
-         LOGGER.severe("Could not parse result when getting players");
-      }
-      return players;
-   }
-
-   /**
-    * Gets the users favorite stations
-    * 
-    * @return A map with all station ID:s and names
-    */
-   private Map<String, String> getAllStations() {
-      // If not signed in, sign in
-      if (!isUserSignedIn(heosUser)) {
-         signIn();
-      }
-
-      Map<String, String> stations = new HashMap<>();
-      String jsonResult = sendCommand("browse/browse", "?sid=" + HEOS_FAVORITES_ID);
-      if (jsonResult == null) {
-         LOGGER.warning("Could not get stations");
-         return stations;
-      }
-      JSONParser parser = new JSONParser();
-      try {
-         JSONObject rootObject = (JSONObject) parser.parse(jsonResult);
-         JSONArray payload = (JSONArray) rootObject.get("payload");
-         Iterator iterator = payload.iterator();
-         // Payload contains all favorties, only add stations...
-         while (iterator.hasNext()) {
-            JSONObject element = (JSONObject) iterator.next();
-            String type = (String) element.get("type");
-            String mid = (String) element.get("mid");
-            String name = (String) element.get("name");
-            if (type != null && type.contentEquals(HEOS_TYPE_STATION)) {
-               stations.put(mid, name);
-            }
-         }
-      } catch (ParseException pe) {
-         LOGGER.severe("Could not parse result when getting stations");
-      }
-      return stations;
-   }
-
-   /**
-    * Gets the users playlists
-    * 
-    * @return A map with all playlist ID:s and names
-    */
-   private Map<String, String> getAllPlaylists() {
-      // If not signed in, sign in
-      if (!isUserSignedIn(heosUser)) {
-         signIn();
-      }
-
-      Map<String, String> stations = new HashMap<>();
-      String jsonResult = sendCommand("browse/browse", "?sid=" + HEOS_PLAYLIST_ID);
-      if (jsonResult == null) {
-         LOGGER.warning("Could not get playlists");
-         return stations;
-      }
-      JSONParser parser = new JSONParser();
-      try {
-         JSONObject rootObject = (JSONObject) parser.parse(jsonResult);
-         JSONArray payload = (JSONArray) rootObject.get("payload");
-         Iterator iterator = payload.iterator();
-         // Payload should contain all playlists, check type to be sure
-         while (iterator.hasNext()) {
-            JSONObject element = (JSONObject) iterator.next();
-            String type = (String) element.get("type");
-            String cid = (String) element.get("cid");
-            String name = (String) element.get("name");
-            if (type != null && type.contentEquals(HEOS_TYPE_PLAYLIST)) {
-               stations.put(cid, name);
-            }
-         }
-      } catch (ParseException pe) {
-         LOGGER.severe("Could not parse result when getting playlists");
-      }
-      return stations;
-   }
-
-   /**
-    * @param map The map to sort
-    * @return A sorted map
-    */
-   public <K, V extends Comparable<? super V>> SortedSet<Map.Entry<K, V>> entriesSortedByValues(Map<K, V> map) {
-      SortedSet<Map.Entry<K, V>> sortedEntries = new TreeSet<Map.Entry<K, V>>(new Comparator<Map.Entry<K, V>>() {
-         @Override
-         public int compare(Map.Entry<K, V> e1, Map.Entry<K, V> e2) {
-            int res = e1.getValue().compareTo(e2.getValue());
-            return res != 0 ? res : 1;
-         }
-      });
-      sortedEntries.addAll(map.entrySet());
-      return sortedEntries;
-   }
-
-   /**
-    * Finds out if a user is signed in
-    * 
-    * @param username The name of the user
-    * @return True if signed in, false if not
-    */
-   public boolean isUserSignedIn(String username) {
-      return validateResult(sendCommand("system/check_account", ""), "signed_in&un=" + username);
-   }
-
-   /**
-    * Finds out if a player is playing
-    * 
-    * @param playerID The ID of the player
-    * @return True if playing, false if not
-    */
-   public boolean isPlaying(String playerID) {
-      return validateResult(sendCommand("player/get_play_state", "?pid=" + playerID), HEOS_RESULT_STATE_PLAY);
-   }
-
-   /**
-    * Finds out if a player is grouped
-    * 
-    * @param playerID The ID of the player
-    * @return True if group, false if not
-    */
-   private boolean isGrouped(String playerID) {
-      return validateResult(sendCommand("group/get_groups", ""), "\"pid\": " + playerID);
-   }
-
-   /**
-    * Tries to sign in to HEOS
-    * 
-    * @return True if ok, false if not
-    */
-   private boolean signIn() {
-      return validateResult(sendCommand("system/sign_in", "?un=" + heosUser + "&pw=" + heosPassword), HEOS_RESULT_SUCCESS);
-   }
-
-   /**
-    * Creates a group with the specified player (e.g. clears groups)
-    * 
-    * @param playerID The ID of the player
-    * @return True if ok, false if not
-    */
-   private boolean ungroupPlayers(String playerID) {
-      return validateResult(sendCommand("group/set_group", "?pid=" + playerID), HEOS_RESULT_SUCCESS);
-   }
-
-   /**
-    * Starts to play on the specified player
-    * 
-    * @param playerID The ID of the player
-    * @return True if ok, false if not
-    */
-   private boolean startPlayback(String playerID) {
-      return validateResult(sendCommand("player/set_play_state", "?pid=" + playerID + "&state=play"), HEOS_RESULT_SUCCESS);
-   }
-
-   /**
-    * Stops to play on the specified player
-    * 
-    * @param playerID The ID of the player
-    * @return True if ok, false if not
-    */
-   private boolean stopPlayback(String playerID) {
-      return validateResult(sendCommand("player/set_play_state", "?pid=" + playerID + "&state=stop"), HEOS_RESULT_SUCCESS);
-   }
-
-   /**
-    * Sets the volume of a specified player
-    * 
-    * @param playerID The ID of the player
-    * @param volume The volume to set
-    * @return True if ok, false if not
-    */
-   private boolean setVolume(String playerID, int volume) {
-      return validateResult(sendCommand("player/set_volume", "?pid=" + playerID + "&level=" + String.valueOf(volume)), HEOS_RESULT_SUCCESS);
-   }
-
-   /**
-    * Plays the station of a specified player
-    * 
-    * @param playerID The ID of the player
-    * @param stationID The ID of the station
-    * @return True if ok, false if not
-    */
-   private boolean playStation(String playerID, String stationID) {
-      return validateResult(sendCommand("browse/play_stream", "?pid=" + playerID + "&sid=" + HEOS_FAVORITES_ID + "&mid=" + stationID), HEOS_RESULT_SUCCESS);
-   }
-
-   /**
-    * Plays the playlist of a specified player, existing queue is replaced
-    * 
-    * @param playerID The ID of the player
-    * @param playlistID The ID of the playlist
-    * @return True if ok, false if not
-    */
-   private boolean playPlaylist(String playerID, String playlistID) {
-      return validateResult(sendCommand("browse/add_to_queue", "?pid=" + playerID + "&sid=" + HEOS_PLAYLIST_ID + "&cid=" + playlistID + "&aid=4"),
-            HEOS_RESULT_SUCCESS);
-   }
-
-   /**
-    * Plays the input of a specified player on a specified player
-    * 
-    * @param playerID The ID of the player
-    * @param inputPlayerID The ID of the player with the input
-    * @param inputName The name of the input
-    * @return True if ok, false if not
-    */
-   private boolean playInput(String playerID, String inputPlayerID, String inputName) {
-      return validateResult(sendCommand("browse/play_input", "?pid=" + playerID + "&spid=" + inputPlayerID + "&input=" + inputName), HEOS_RESULT_SUCCESS);
-   }
-
-   /**
-    * Validates a result with an expected result
-    * 
-    * @param result The actual result
-    * @param expectedResult The expected result
-    * @return True of valid, false if not
-    */
-   private boolean validateResult(String result, String expectedResult) {
-      return result != null && expectedResult != null && result.contains(expectedResult);
-   }
-
-   /**
-    * Sends a command to the HEOS
-    * 
-    * @param command The command to send
-    * @param arguments The command arguments
-    * @param expectedResult The expected result (or part of expected result)
-    * 
-    * @return The command result or null if none/error
-    */
-   private synchronized String sendCommand(String command, String arguments) {
-      // Check parameters
-      if (command == null || command.isEmpty() || arguments == null) {
-         LOGGER.severe("Invalid command arguments");
-         return null;
-      }
-
-      // Execute command
-      String completeCommand = HEOS_PREFIX + command + arguments;
-      try {
-         // Send command
-         PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-         LOGGER.info("Sending command: " + completeCommand);
-         out.println(completeCommand);
-         // Read response
-         String response = "";
-         long startTime = System.currentTimeMillis();
-         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-         do {
-            response = in.ready() ? in.readLine() : null;
-            // If a response
-            if (response != null && !response.isEmpty()) {
-               // Check that response is for sent command
-               if (!response.contains("\"command\": \"" + command + "\"")) {
-                  LOGGER.severe("Response did not match command: " + completeCommand);
-                  return null;
-               }
-               LOGGER.info("Received response: " + response);
-               // Only return if a valid response, e.g. not under process
-               if (!response.contains(HEOS_CMD_UNDER_PROCESS)) {
-                  return response;
-               }
-            }
-            Thread.sleep(HEOS_SLEEPTIME_IN_MS);
-         } while ((System.currentTimeMillis() - startTime) < HEOS_TIMEOUT_IN_MS);
-         // Timeout occured
-         LOGGER.warning("Timeout while sending command: " + completeCommand);
-      } catch (Exception e) {
-         LOGGER.severe("Error while sending command: " + completeCommand);
-      }
-      // Something went wrong, return null;
-      return null;
-   }
-
-}
+package se.wallinder.heos.connector;
+
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_FAILURE_RATE;
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_MINIMUM_CALLS;
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_OPEN_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_SLOW_CALL_RATE;
+import static se.wallinder.heos.util.ServletConstants.CIRCUIT_WINDOW_SIZE;
+import static se.wallinder.heos.util.ServletConstants.HEOS_EVENT_GROUPS_CHANGED;
+import static se.wallinder.heos.util.ServletConstants.HEOS_ENDPOINT_COOLDOWN_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_ERROR_USER_NOT_LOGGED_IN;
+import static se.wallinder.heos.util.ServletConstants.HEOS_EVENT_NOW_PLAYING_CHANGED;
+import static se.wallinder.heos.util.ServletConstants.HEOS_EVENT_USER_CHANGED;
+import static se.wallinder.heos.util.ServletConstants.HEOS_FAVORITES_ID;
+import static se.wallinder.heos.util.ServletConstants.HEOS_GROUPS_TTL_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_HEALTH_CHECK_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_IDLE_HEARTBEAT_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_PLAN_INPUT;
+import static se.wallinder.heos.util.ServletConstants.HEOS_PLAN_PLAYLIST;
+import static se.wallinder.heos.util.ServletConstants.HEOS_PLAN_STATION;
+import static se.wallinder.heos.util.ServletConstants.HEOS_PLAYLIST_ID;
+import static se.wallinder.heos.util.ServletConstants.HEOS_PREFIX;
+import static se.wallinder.heos.util.ServletConstants.HEOS_RECONNECT_MAX_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_RECONNECT_MIN_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_ROLE_LEADER;
+import static se.wallinder.heos.util.ServletConstants.HEOS_SLOW_CALL_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_STATE_PLAY;
+import static se.wallinder.heos.util.ServletConstants.HEOS_STATE_STOP;
+import static se.wallinder.heos.util.ServletConstants.HEOS_TIMEOUT_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_TYPE_PLAYLIST;
+import static se.wallinder.heos.util.ServletConstants.HEOS_TYPE_STATION;
+import static se.wallinder.heos.util.ServletConstants.HEOS_VOLUME_ECHO_TIMEOUT_IN_MS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_VOLUME_WINDOW_IN_MS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.wallinder.heos.util.CircuitBreaker;
+import se.wallinder.heos.util.ServletConstants;
+import se.wallinder.heos.util.ServletMetrics;
+import se.wallinder.heos.util.ServletThreads;
+
+public class HEOSConnector {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSConnector.class.getName());
+   private final static String[] FIELDS_PLAYER = { "pid", "name" };
+   private final static String[] FIELDS_STATION = { "type", "mid", "name" };
+   private final static String[] FIELDS_PLAYLIST = { "type", "cid", "name" };
+   private final static String[] FIELDS_NOW_PLAYING = { "station", "song" };
+   private final static String[] FIELDS_GROUP = { "gid", "pid", "role" };
+   private final static ServletMetrics.Counter RECONNECTS = ServletMetrics.counter("heos_reconnects_total",
+         "Connections opened again to a HEOS device after being lost");
+   private final static ServletMetrics.Counter HEARTBEATS = ServletMetrics.counter("heos_heartbeats_total",
+         "Heartbeats sent on connections idle for a while", "result");
+   private final static ServletMetrics.Histogram PLAN_DURATION = ServletMetrics.histogram("heos_plan_duration_seconds",
+         "Time of running a command plan, all stages", "plan");
+   private final static ServletMetrics.Counter SIGN_INS = ServletMetrics.counter("heos_sign_ins_total", "Sign ins to the HEOS account",
+         "result");
+   private volatile Map<String, String> players;
+   private volatile Map<String, String> stations;
+   private volatile Map<String, String> playlists;
+   private final String heosUser;
+   private final String heosPassword;
+   private final HEOSEndpointPool pool;
+   private volatile HEOSChannel eventChannel = null;
+   private final HEOSStateCache stateCache = new HEOSStateCache();
+   private final HEOSGroupTopology topology = new HEOSGroupTopology(HEOS_GROUPS_TTL_IN_MS);
+   private final HEOSStateModel stateModel = new HEOSStateModel();
+   private final List<HEOSStateListener> stateListeners = new CopyOnWriteArrayList<>();
+   private final HEOSVolumeCoalescer volumeCoalescer = new HEOSVolumeCoalescer(new HEOSVolumeCoalescer.Sender() {
+      @Override
+      public boolean send(String playerID, int volume) {
+         return setVolume(playerID, volume);
+      }
+   }, HEOS_VOLUME_WINDOW_IN_MS, HEOS_VOLUME_ECHO_TIMEOUT_IN_MS);
+   // Commands are rejected at once while the HEOS system times out or answers slowly, instead of waiting for it
+   private final CircuitBreaker circuitBreaker = new CircuitBreaker("heos", CIRCUIT_WINDOW_SIZE, CIRCUIT_MINIMUM_CALLS, CIRCUIT_FAILURE_RATE,
+         HEOS_SLOW_CALL_IN_MS, CIRCUIT_SLOW_CALL_RATE, CIRCUIT_OPEN_IN_MS);
+   private final ExecutorService refreshExecutor;
+   private final ScheduledExecutorService healthMonitor;
+   private volatile Boolean signedIn = null;
+   // A lock instead of the monitor, so a virtual thread registering for change events never pins its carrier
+   private final ReentrantLock registerLock = new ReentrantLock();
+
+   /**
+    * Protected Constructor
+    */
+   public HEOSConnector(String heosHost, String heosUser, String heosPassword) {
+      this(Collections.singletonList(heosHost), heosUser, heosPassword);
+   }
+
+   /**
+    * Constructor for a HEOS system reachable through several devices
+    * 
+    * @param heosHosts The hosts of the devices, in order of preference
+    * @param heosUser The HEOS user
+    * @param heosPassword The HEOS password
+    */
+   public HEOSConnector(List<String> heosHosts, String heosUser, String heosPassword) {
+      LOGGER.setLevel(Level.WARNING);
+      this.heosUser = heosUser;
+      this.heosPassword = heosPassword;
+      this.pool = new HEOSEndpointPool(heosHosts, ServletConstants.HEOS_PORT, HEOS_TIMEOUT_IN_MS, HEOS_ENDPOINT_COOLDOWN_IN_MS);
+      // Refreshes triggered by events run in the background
+      this.refreshExecutor = Executors.newSingleThreadExecutor(ServletThreads.named("HEOS-refresh"));
+      // Connections are checked, and lost ones reconnected, in the background
+      this.healthMonitor = Executors.newSingleThreadScheduledExecutor(ServletThreads.named("HEOS-health"));
+      healthMonitor.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            checkHealth();
+         }
+      }, HEOS_HEALTH_CHECK_IN_MS, HEOS_HEALTH_CHECK_IN_MS, TimeUnit.MILLISECONDS);
+      // Connect
+      connect();
+      players = getAllPlayers();
+      stations = getAllStations();
+      playlists = getAllPlaylists();
+   }
+
+   /**
+    * Connects to the HEOS system
+    */
+   public void connect() {
+      if (!pool.connect()) {
+         LOGGER.severe("Could not connect to any HEOS device");
+      }
+      registerForChangeEvents();
+   }
+
+   /**
+    * Stops the background work and closes the connections
+    */
+   public void close() {
+      healthMonitor.shutdownNow();
+      refreshExecutor.shutdownNow();
+      HEOSChannel events = eventChannel;
+      eventChannel = null;
+      if (events != null) {
+         events.close();
+      }
+      for (HEOSEndpoint endpoint : pool.getEndpoints()) {
+         endpoint.getChannel().close();
+      }
+   }
+
+   /**
+    * @return The HEOS devices used to control the HEOS system
+    */
+   public List<HEOSEndpoint> getEndpoints() {
+      return pool.getEndpoints();
+   }
+
+   /**
+    * @return The latencies of the command plans run, by plan name (e.g. station)
+    */
+   public ServletMetrics.Histogram getPlanDurations() {
+      return PLAN_DURATION;
+   }
+
+   /**
+    * @return The circuit breaker of the commands sent to the HEOS system
+    */
+   public CircuitBreaker getCircuitBreaker() {
+      return circuitBreaker;
+   }
+
+   /**
+    * Connects a new event connection to the best device and registers for change events, the state cache is used only if successful
+    */
+   private void registerForChangeEvents() {
+      registerLock.lock();
+      try {
+         register();
+      } finally {
+         registerLock.unlock();
+      }
+   }
+
+   /**
+    * Registers for change events, only called holding the register lock
+    */
+   private void register() {
+      HEOSEndpoint endpoint = pool.select(Collections.<HEOSEndpoint> emptySet());
+      if (endpoint == null) {
+         LOGGER.warning("No HEOS device to register for change events on, player state will not be cached");
+         return;
+      }
+      // Change events are received on a dedicated connection
+      HEOSChannel newEventChannel = new HEOSChannel(endpoint.getHost(), endpoint.getPort(), HEOS_TIMEOUT_IN_MS);
+      ChangeEventListener listener = new ChangeEventListener(newEventChannel);
+      newEventChannel.setEventListener(listener);
+      HEOSChannel previousEventChannel = eventChannel;
+      eventChannel = newEventChannel;
+      if (previousEventChannel != null) {
+         previousEventChannel.close();
+      }
+      try {
+         newEventChannel.connect();
+      } catch (Exception e) {
+         LOGGER.severe("Could not connect to HEOS " + endpoint.getHost() + " for change events");
+         return;
+      }
+      if (isSuccess(sendCommand(newEventChannel, "system/register_for_change_events", "?enable=on"))) {
+         listener.registered = true;
+         stateCache.setEnabled(true);
+      } else {
+         LOGGER.warning("Could not register for change events, player state will not be cached");
+      }
+   }
+
+   /**
+    * Starts playback
+    *
+    * @param playerID The ID of the player
+    * @return True if okay, false if not
+    */
+   public boolean play(String playerID) {
+      // Always ungroup before playing if grouped
+      if (isGrouped(playerID, false)) {
+         ungroupPlayers(playerID);
+      }
+      // Start playback
+      return startPlayback(playerID);
+   }
+
+   /**
+    * Stops playback
+    * 
+    * @param playerID The ID of the player
+    * @return True if okay, false if not
+    */
+   public boolean stop(String playerID) {
+      // Always ungroup before stopping if grouped
+      if (isGrouped(playerID, false)) {
+         ungroupPlayers(playerID);
+      }
+      // Stop playback
+      return stopPlayback(playerID);
+   }
+
+   /**
+    * Sets the volume of a specified player
+    * 
+    * @param playerID The ID of the player
+    * @param volume The volume to set
+    * @return True if okay, false if not
+    */
+   public boolean volume(String playerID, int volume) {
+      // Set volume, bursts (slider drags) are coalesced
+      HEOSPlayerState state = stateCache.getPlayer(playerID);
+      return volumeCoalescer.setVolume(playerID, volume, state != null ? state.getVolume() : -1);
+   }
+
+   /**
+    * Tells that the volume of a player has been pushed to a Fibaro slider, the volume change echoed back by the slider is ignored
+    * 
+    * @param playerID The ID of the player
+    * @param volume The volume pushed to the slider
+    */
+   public void volumeEchoExpected(String playerID, int volume) {
+      volumeCoalescer.expectEcho(playerID, volume);
+   }
+
+   /**
+    * Plays the specified station (id) on the specified player
+    * 
+    * @param playerID The ID of the player
+    * @param stationID The ID of the station
+    * @return True if okay, false if not
+    */
+   public boolean station(String playerID, String stationID) {
+      return station(playerID, stationID, -1);
+   }
+
+   /**
+    * Sets the volume of the specified player and plays the specified station (id), as one command plan
+    * 
+    * @param playerID The ID of the player
+    * @param stationID The ID of the station
+    * @param volume The volume to set or -1 to keep the volume
+    * @return True if okay, false if not
+    */
+   public boolean station(String playerID, String stationID, int volume) {
+      // If unsuccessful, log error
+      boolean success = play(HEOS_PLAN_STATION, "station " + stationID, playerID, volume, "browse/play_stream",
+            "?pid=" + playerID + "&sid=" + HEOS_FAVORITES_ID + "&mid=" + stationID, true);
+      if (!success) {
+         LOGGER.warning("Could not play station " + stationID + " on player " + playerID);
+      }
+
+      return success;
+   }
+
+   /**
+    * Plays the specified station (id) on several players in sync, as one HEOS group led by the first player. An existing group of the same
+    * players is reused, otherwise the group is created.
+    * 
+    * @param playerIDs The ID:s of the players, leader first
+    * @param stationID The ID of the station
+    * @param volume The volume of the group or -1 to keep the volume
+    * @return True if okay, false if not
+    */
+   public boolean groupStation(List<String> playerIDs, String stationID, int volume) {
+      // A single player needs no group
+      if (playerIDs.size() == 1) {
+         return (volume < 0 || volume(playerIDs.get(0), volume)) && station(playerIDs.get(0), stationID);
+      }
+
+      // Reuse the group if already grouped this way
+      HEOSGroup group = findGroup(playerIDs);
+      String leaderID = group != null ? group.getLeaderID() : playerIDs.get(0);
+      if (group == null && !groupPlayers(playerIDs)) {
+         LOGGER.warning("Could not group players " + playerIDs);
+         return false;
+      }
+
+      // One volume and one stream for the whole group
+      if (volume >= 0 && !setGroupVolume(leaderID, volume)) {
+         LOGGER.warning("Could not set volume of group " + leaderID);
+         return false;
+      }
+      boolean success = playStation(leaderID, stationID);
+      if (success) {
+         for (String playerID : playerIDs) {
+            stateCache.playStateChanged(playerID, HEOS_STATE_PLAY);
+            stateCache.mediaChanged(playerID);
+         }
+      } else {
+         LOGGER.warning("Could not play station " + stationID + " on group " + leaderID);
+      }
+      return success;
+   }
+
+   /**
+    * Plays the specified playlist (id) on the specified player
+    * 
+    * @param playerID The ID of the player
+    * @param playlistID The ID of the playlist
+    * @return True if okay, false if not
+    */
+   public boolean playlist(String playerID, String playlistID) {
+      // If unsuccessful, log error
+      boolean success = play(HEOS_PLAN_PLAYLIST, "playlist " + playlistID, playerID, -1, "browse/add_to_queue",
+            "?pid=" + playerID + "&sid=" + HEOS_PLAYLIST_ID + "&cid=" + playlistID + "&aid=4", true);
+      if (!success) {
+         LOGGER.warning("Could not play playlist " + playlistID + " on player " + playerID);
+      }
+
+      return success;
+   }
+
+   /**
+    * Plays an input of a player on a player
+    * 
+    * @param playerID The ID of the player
+    * @param inputPlayerID The ID of the player with the input
+    * @param inputName The name of the input
+    * @return True if okay, false if not
+    */
+   public boolean input(String playerID, String inputPlayerID, String inputName) {
+      // If unsuccessful, log error
+      boolean success = play(HEOS_PLAN_INPUT, "input " + inputName, playerID, -1, "browse/play_input",
+            "?pid=" + playerID + "&spid=" + inputPlayerID + "&input=" + inputName, false);
+      if (!success) {
+         LOGGER.warning("Could not play input " + inputName + " of player " + inputPlayerID + " on player " + playerID);
+      }
+
+      return success;
+   }
+
+   /**
+    * Finds out if connected to the HEOS system, from the state of the connections kept up to date in the background. Nothing is sent, so
+    * this is cheap enough to call before every command.
+    * 
+    * @return True if connected, false if not
+    */
+   public boolean isConnected() {
+      return pool.isConnected();
+   }
+
+   /**
+    * Sends a heartbeat to the best device
+    *
+    * @return True if answered, false if not
+    */
+   public boolean heartbeat() {
+      return isSuccess(sendCommand("system/heart_beat", ""));
+   }
+
+   /**
+    * Gets now playing media for a given player
+    * 
+    * @param playerID The player ID
+    * @return The now playing or empty string if none
+    */
+   public String getNowPlaying(String playerID) {
+      HEOSPlayerState state = stateCache.getPlayer(playerID);
+      if (state != null && state.getNowPlaying() != null) {
+         return state.getNowPlaying();
+      }
+      String nowPlaying = fetchNowPlaying(playerID);
+      return nowPlaying != null ? nowPlaying : "";
+   }
+
+   /**
+    * Gets now playing media for a given player from the HEOS system and updates the state cache
+    * 
+    * @param playerID The player ID
+    * @return The now playing or empty string if none, null if error
+    */
+   private String fetchNowPlaying(String playerID) {
+      HEOSMessage result = sendCommand("player/get_now_playing_media", "?pid=" + playerID);
+      if (result == null) {
+         LOGGER.warning("Could not get now playing");
+         return null;
+      }
+      final String[] nowPlaying = new String[FIELDS_NOW_PLAYING.length];
+      try {
+         result.visitPayload(FIELDS_NOW_PLAYING, new HEOSPayloadVisitor() {
+            @Override
+            public void value(int depth, int field, String value) {
+               if (depth == 1) {
+                  nowPlaying[field] = value;
+               }
+            }
+
+            @Override
+            public void endObject(int depth) {
+               // Not used
+            }
+         });
+      } catch (IllegalArgumentException iae) {
+         LOGGER.severe("Could not parse result when getting now playing");
+         return null;
+      }
+      // Prefer station before song
+      String media = "";
+      for (int i = 0; i < nowPlaying.length && media.isEmpty(); i++) {
+         media = nowPlaying[i] != null ? nowPlaying[i] : "";
+      }
+      HEOSPlayerState state = stateCache.getPlayer(playerID);
+      if (state != null) {
+         state.setNowPlaying(media);
+      }
+      return media;
+   }
+
+   /**
+    * Updates available players
+    * 
+    * @return A map with all player ID:s and names
+    */
+   public void updatePlayers() {
+      // Keep the known players while the circuit is open, rather than replacing them with none
+      if (circuitBreaker.isCallPermitted()) {
+         players = getAllPlayers();
+      }
+   }
+
+   /**
+    * Gets all available players
+    * 
+    * @return A map with all player ID:s and names
+    */
+   public Map<String, String> getPlayers() {
+      return players;
+   }
+
+   /**
+    * Updates available stations
+    * 
+    * @return A map with all player ID:s and names
+    */
+   public void updateStations() {
+      // Keep the known stations while the circuit is open, rather than replacing them with none
+      if (circuitBreaker.isCallPermitted()) {
+         stations = getAllStations();
+      }
+   }
+
+   /**
+    * Gets all favorite stations
+    * 
+    * @return A map with all station ID:s and names
+    */
+   public Map<String, String> getStations() {
+      return stations;
+   }
+
+   /**
+    * Updates available playlists
+    * 
+    * @return A map with all player ID:s and names
+    */
+   public void updatePlaylists() {
+      // Keep the known playlists while the circuit is open, rather than replacing them with none
+      if (circuitBreaker.isCallPermitted()) {
+         playlists = getAllPlaylists();
+      }
+   }
+
+   /**
+    * Gets all playlists
+    * 
+    * @return A map with all playlist ID:s and names
+    */
+   public Map<String, String> getPlaylists() {
+      return playlists;
+   }
+
+   /**
+    * Gets all available players
+    * 
+    * @return A map with all player ID:s and names
+    */
+   private Map<String, String> getAllPlayers() {
+      final Map<String, String> players = new HashMap<>();
+      HEOSMessage result = sendCommand("player/get_players", "");
+      if (result == null) {
+         LOGGER.warning("Could not get players");
+         return players;
+      }
+      try {
+         result.visitPayload(FIELDS_PLAYER, new HEOSPayloadVisitor() {
+            private final String[] player = new String[FIELDS_PLAYER.length];
+
+            @Override
+            public void value(int depth, int field, String value) {
+               if (depth == 1) {
+                  player[field] = value;
+               }
+            }
+
+            @Override
+            public void endObject(int depth) {
+               if (depth == 1 && player[0] != null) {
+                  players.put(player[0], player[1]);
+               }
+               Arrays.fill(player, null);
+            }
+         });
+      } catch (IllegalArgumentException iae) {
+         LOGGER.severe("Could not parse result when getting players");
+      }
+      return players;
+   }
+
+   /**
+    * Gets the users favorite stations
+    * 
+    * @return A map with all station ID:s and names
+    */
+   private Map<String, String> getAllStations() {
+      // Payload contains all favorties, only add stations...
+      Map<String, String> stations = browse(HEOS_FAVORITES_ID, FIELDS_STATION, HEOS_TYPE_STATION);
+      if (stations == null) {
+         LOGGER.warning("Could not get stations");
+         return new HashMap<>();
+      }
+      return stations;
+   }
+
+   /**
+    * Gets the users playlists
+    * 
+    * @return A map with all playlist ID:s and names
+    */
+   private Map<String, String> getAllPlaylists() {
+      // Payload should contain all playlists, check type to be sure
+      Map<String, String> playlists = browse(HEOS_PLAYLIST_ID, FIELDS_PLAYLIST, HEOS_TYPE_PLAYLIST);
+      if (playlists == null) {
+         LOGGER.warning("Could not get playlists");
+         return new HashMap<>();
+      }
+      return playlists;
+   }
+
+   /**
+    * Browses a source and collects the items of a type
+    * 
+    * @param sourceID The ID of the source to browse
+    * @param fields The type, id and name fields of the items
+    * @param type The type of items to collect
+    * @return A map with all item ID:s and names or null if error
+    */
+   private Map<String, String> browse(String sourceID, final String[] fields, final String type) {
+      HEOSMessage result = sendSignedInCommand("browse/browse", "?sid=" + sourceID);
+      if (result == null) {
+         return null;
+      }
+      final Map<String, String> items = new HashMap<>();
+      try {
+         result.visitPayload(fields, new HEOSPayloadVisitor() {
+            private final String[] item = new String[fields.length];
+
+            @Override
+            public void value(int depth, int field, String value) {
+               if (depth == 1) {
+                  item[field] = value;
+               }
+            }
+
+            @Override
+            public void endObject(int depth) {
+               if (depth == 1 && type.equals(item[0]) && item[1] != null) {
+                  items.put(item[1], item[2]);
+               }
+               Arrays.fill(item, null);
+            }
+         });
+      } catch (IllegalArgumentException iae) {
+         LOGGER.severe("Could not parse result when browsing source " + sourceID);
+         return null;
+      }
+      return items;
+   }
+
+   /**
+    * @param map The map to sort
+    * @return A sorted map
+    */
+   public <K, V extends Comparable<? super V>> SortedSet<Map.Entry<K, V>> entriesSortedByValues(Map<K, V> map) {
+      SortedSet<Map.Entry<K, V>> sortedEntries = new TreeSet<Map.Entry<K, V>>(new Comparator<Map.Entry<K, V>>() {
+         @Override
+         public int compare(Map.Entry<K, V> e1, Map.Entry<K, V> e2) {
+            int res = e1.getValue().compareTo(e2.getValue());
+            return res != 0 ? res : 1;
+         }
+      });
+      sortedEntries.addAll(map.entrySet());
+      return sortedEntries;
+   }
+
+   /**
+    * Finds out if a user is signed in
+    * 
+    * @param username The name of the user
+    * @return True if signed in, false if not
+    */
+   public boolean isUserSignedIn(String username) {
+      Boolean known = signedIn;
+      if (known != null && heosUser.equals(username)) {
+         return known;
+      }
+      HEOSMessage result = sendCommand("system/check_account", "");
+      if (!isSuccess(result)) {
+         return false;
+      }
+      boolean userSignedIn = result.isSignedIn(username);
+      if (heosUser.equals(username)) {
+         signedIn = userSignedIn;
+      }
+      return userSignedIn;
+   }
+
+   /**
+    * Finds out if a player is playing
+    * 
+    * @param playerID The ID of the player
+    * @return True if playing, false if not
+    */
+   public boolean isPlaying(String playerID) {
+      HEOSPlayerState state = stateCache.getPlayer(playerID);
+      if (state != null && state.getPlayState() != null) {
+         return HEOS_STATE_PLAY.equals(state.getPlayState());
+      }
+      HEOSMessage result = sendCommand("player/get_play_state", "?pid=" + playerID);
+      if (!isSuccess(result)) {
+         return false;
+      }
+      if (state != null) {
+         state.setPlayState(result.getPlayState());
+      }
+      return HEOS_STATE_PLAY.equals(result.getPlayState());
+   }
+
+   /**
+    * Gets the changes of the players, stations and playlists since a version, from what is already known (nothing is asked from the HEOS
+    * system)
+    * 
+    * @param sinceVersion The version the client has, 0 for everything
+    * @return The changes
+    */
+   public HEOSStateModel.Changes getState(long sinceVersion) {
+      syncState();
+      return stateModel.getChanges(sinceVersion);
+   }
+
+   /**
+    * Adds a listener notified when the state model has changed
+    * 
+    * @param listener The listener
+    */
+   public void addStateListener(HEOSStateListener listener) {
+      stateListeners.add(listener);
+   }
+
+   /**
+    * Removes a listener added by {@link #addStateListener(HEOSStateListener)}
+    * 
+    * @param listener The listener
+    */
+   public void removeStateListener(HEOSStateListener listener) {
+      stateListeners.remove(listener);
+   }
+
+   /**
+    * Updates the state model from the players, stations, playlists, state cache and group topology, and notifies the listeners if changed
+    */
+   private void syncState() {
+      long previousVersion = stateModel.getVersion();
+      updateStateModel();
+      long version = stateModel.getVersion();
+      if (version != previousVersion) {
+         for (HEOSStateListener listener : stateListeners) {
+            listener.stateChanged(version);
+         }
+      }
+   }
+
+   /**
+    * Updates the state model from the players, stations, playlists, state cache and group topology
+    */
+   private void updateStateModel() {
+      // One update at a time, so an older view never overwrites a newer
+      synchronized (stateModel) {
+         Map<String, String> currentPlayers = players;
+         stateModel.setAll(HEOSStateModel.PLAYERS, currentPlayers, "name");
+         stateModel.setAll(HEOSStateModel.STATIONS, stations, "name");
+         stateModel.setAll(HEOSStateModel.PLAYLISTS, playlists, "name");
+         if (currentPlayers == null) {
+            return;
+         }
+         boolean groupsKnown = topology.isValid();
+         for (String playerID : currentPlayers.keySet()) {
+            HEOSPlayerState state = stateCache.getPlayer(playerID);
+            stateModel.set(HEOSStateModel.PLAYERS, playerID, "state", state != null ? state.getPlayState() : null);
+            stateModel.set(HEOSStateModel.PLAYERS, playerID, "volume", state != null && state.getVolume() >= 0 ? state.getVolume() : null);
+            stateModel.set(HEOSStateModel.PLAYERS, playerID, "mute", state != null ? state.getMute() : null);
+            stateModel.set(HEOSStateModel.PLAYERS, playerID, "nowPlaying", state != null ? state.getNowPlaying() : null);
+            // Groups are kept from the last valid topology
+            if (groupsKnown) {
+               HEOSGroup group = topology.getGroup(playerID);
+               stateModel.set(HEOSStateModel.PLAYERS, playerID, "group", group != null ? group.getGroupID() : null);
+               stateModel.set(HEOSStateModel.PLAYERS, playerID, "leader", group != null ? group.isLeader(playerID) : null);
+            }
+         }
+      }
+   }
+
+   /**
+    * Finds out if a player is grouped
+    * 
+    * @param playerID The ID of the player
+    * @param inPlan True if asked by a step of a command plan, which holds the circuit permit already
+    * @return True if group, false if not
+    */
+   private boolean isGrouped(String playerID, boolean inPlan) {
+      Boolean grouped = topology.isGrouped(playerID);
+      if (grouped != null) {
+         return grouped;
+      }
+      List<HEOSGroup> groups = fetchGroups(inPlan);
+      if (groups != null) {
+         for (HEOSGroup group : groups) {
+            if (group.getMemberIDs().contains(playerID)) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Gets all groups from the HEOS system and updates the group topology
+    * 
+    * @param inPlan True if asked by a step of a command plan, which holds the circuit permit already
+    * @return The groups or null if error
+    */
+   private List<HEOSGroup> fetchGroups(boolean inPlan) {
+      long generation = topology.getGeneration();
+      return updateGroups(inPlan ? failOver("group/get_groups", "") : sendCommand("group/get_groups", ""), generation);
+   }
+
+   /**
+    * Reads the groups of a response and updates the group topology
+    * 
+    * @param result The response of a get groups command
+    * @param generation The generation of the group topology when the command was sent
+    * @return The groups or null if error
+    */
+   private List<HEOSGroup> updateGroups(HEOSMessage result, long generation) {
+      if (!isSuccess(result)) {
+         LOGGER.warning("Could not get groups");
+         return null;
+      }
+      final List<HEOSGroup> groups = new ArrayList<>();
+      try {
+         result.visitPayload(FIELDS_GROUP, new HEOSPayloadVisitor() {
+            private List<String> members = new ArrayList<>();
+            private String groupID = null;
+            private String leaderID = null;
+            private String playerID = null;
+            private String role = null;
+
+            @Override
+            public void value(int depth, int field, String value) {
+               // Groups at depth 1, players of each group at depth 2
+               if (depth == 1 && field == 0) {
+                  groupID = value;
+               } else if (depth == 2 && field == 1) {
+                  playerID = value;
+               } else if (depth == 2 && field == 2) {
+                  role = value;
+               }
+            }
+
+            @Override
+            public void endObject(int depth) {
+               if (depth == 2 && playerID != null) {
+                  members.add(playerID);
+                  leaderID = HEOS_ROLE_LEADER.equals(role) ? playerID : leaderID;
+                  playerID = null;
+                  role = null;
+               } else if (depth == 1) {
+                  // The group ID is the ID of the leader
+                  String leader = leaderID != null ? leaderID : groupID;
+                  if (members.remove(leader)) {
+                     members.add(0, leader);
+                  }
+                  groups.add(new HEOSGroup(groupID, leader, members));
+                  members = new ArrayList<>();
+                  groupID = null;
+                  leaderID = null;
+               }
+            }
+         });
+      } catch (IllegalArgumentException iae) {
+         LOGGER.severe("Could not parse result when getting groups");
+         return null;
+      }
+      topology.update(groups, generation);
+      return groups;
+   }
+
+   /**
+    * Finds the group with exactly the specified players
+    * 
+    * @param playerIDs The ID:s of the players
+    * @return The group or null if the players are not grouped this way
+    */
+   private HEOSGroup findGroup(List<String> playerIDs) {
+      Collection<HEOSGroup> groups = topology.isValid() ? topology.getGroups().values() : fetchGroups(false);
+      if (groups == null) {
+         return null;
+      }
+      Set<String> wanted = new HashSet<>(playerIDs);
+      for (HEOSGroup group : groups) {
+         if (group.getMemberIDs().size() == wanted.size() && wanted.containsAll(group.getMemberIDs())) {
+            return group;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Tries to sign in to HEOS
+    * 
+    * @param inPlan True if retrying a step of a command plan, which holds the circuit permit already
+    * @return True if ok, false if not
+    */
+   private boolean signIn(boolean inPlan) {
+      String arguments = "?un=" + heosUser + "&pw=" + heosPassword;
+      boolean success = isSuccess(inPlan ? failOver("system/sign_in", arguments) : sendCommand("system/sign_in", arguments));
+      SIGN_INS.inc(success ? "success" : "failed");
+      signedIn = success;
+      return success;
+   }
+
+   /**
+    * Creates a group with the specified player (e.g. clears groups)
+    * 
+    * @param playerID The ID of the player
+    * @return True if ok, false if not
+    */
+   private boolean ungroupPlayers(String playerID) {
+      boolean success = isSuccess(sendCommand("group/set_group", ungroupArguments(playerID)));
+      // Never trust the topology after changing it
+      topology.invalidate();
+      return success;
+   }
+
+   /**
+    * Gets the arguments of the command removing a player from its group
+    * 
+    * @param playerID The ID of the player
+    * @return The arguments
+    */
+   private String ungroupArguments(String playerID) {
+      // A leader dissolves its group, a member is removed by regrouping the others
+      StringBuilder playerIDs = new StringBuilder(playerID);
+      HEOSGroup group = topology.getGroup(playerID);
+      if (group != null && !group.isLeader(playerID)) {
+         playerIDs.setLength(0);
+         for (String memberID : group.getMemberIDs()) {
+            if (!memberID.equals(playerID)) {
+               playerIDs.append(playerIDs.length() > 0 ? "," : "").append(memberID);
+            }
+         }
+      }
+      return "?pid=" + playerIDs;
+   }
+
+   /**
+    * Groups the specified players, the first player leads the group
+    * 
+    * @param playerIDs The ID:s of the players, leader first
+    * @return True if ok, false if not
+    */
+   private boolean groupPlayers(List<String> playerIDs) {
+      StringBuilder pids = new StringBuilder();
+      for (String playerID : playerIDs) {
+         pids.append(pids.length() > 0 ? "," : "").append(playerID);
+      }
+      boolean success = isSuccess(sendCommand("group/set_group", "?pid=" + pids));
+      // Never trust the topology after changing it
+      topology.invalidate();
+      return success;
+   }
+
+   /**
+    * Sets the volume of a group
+    * 
+    * @param groupID The ID of the group (the leader)
+    * @param volume The volume
+    * @return True if ok, false if not
+    */
+   private boolean setGroupVolume(String groupID, int volume) {
+      return isSuccess(sendCommand("group/set_volume", "?gid=" + groupID + "&level=" + String.valueOf(volume)));
+   }
+
+   /**
+    * Starts to play on the specified player
+    * 
+    * @param playerID The ID of the player
+    * @return True if ok, false if not
+    */
+   private boolean startPlayback(String playerID) {
+      boolean success = isSuccess(sendCommand("player/set_play_state", "?pid=" + playerID + "&state=play"));
+      if (success) {
+         stateCache.playStateChanged(playerID, HEOS_STATE_PLAY);
+      }
+      return success;
+   }
+
+   /**
+    * Stops to play on the specified player
+    * 
+    * @param playerID The ID of the player
+    * @return True if ok, false if not
+    */
+   private boolean stopPlayback(String playerID) {
+      boolean success = isSuccess(sendCommand("player/set_play_state", "?pid=" + playerID + "&state=stop"));
+      if (success) {
+         stateCache.playStateChanged(playerID, HEOS_STATE_STOP);
+      }
+      return success;
+   }
+
+   /**
+    * Sets the volume of a specified player
+    * 
+    * @param playerID The ID of the player
+    * @param volume The volume to set
+    * @return True if ok, false if not
+    */
+   private boolean setVolume(String playerID, int volume) {
+      boolean success = isSuccess(sendCommand("player/set_volume", "?pid=" + playerID + "&level=" + String.valueOf(volume)));
+      if (success) {
+         stateCache.volumeChanged(playerID, volume);
+      }
+      return success;
+   }
+
+   /**
+    * Plays the station of a specified player
+    * 
+    * @param playerID The ID of the player
+    * @param stationID The ID of the station
+    * @return True if ok, false if not
+    */
+   private boolean playStation(String playerID, String stationID) {
+      boolean success = isSuccess(sendSignedInCommand("browse/play_stream", "?pid=" + playerID + "&sid=" + HEOS_FAVORITES_ID + "&mid=" + stationID));
+      if (success) {
+         stateCache.mediaChanged(playerID);
+      }
+      return success;
+   }
+
+   /**
+    * Validates that a command was successful
+    * 
+    * @param result The result
+    * @return True of successful, false if not
+    */
+   private boolean isSuccess(HEOSMessage result) {
+      return result != null && result.isSuccess();
+   }
+
+   /**
+    * Plays something on a player as a command plan: get groups (if not known), then ungroup (if grouped), then sign in (if known to be signed
+    * out), set volume (if changed) and play, sent back to back
+    * 
+    * @param name The name of the plan
+    * @param media What is played, for logging
+    * @param playerID The ID of the player
+    * @param volume The volume to set first or -1 to keep the volume
+    * @param playCommand The play command
+    * @param playArguments The arguments of the play command
+    * @param signInRequired True if the play command requires a signed in user
+    * @return True if ok, false if not
+    */
+   private boolean play(String name, String media, final String playerID, final int volume, String playCommand, final String playArguments, final boolean signInRequired) {
+      final long[] generation = new long[1];
+      HEOSCommandPlan plan = new HEOSCommandPlan(name, media + " on player " + playerID);
+
+      // Groups, only if not known
+      plan.then(new HEOSCommandPlan.Step("group/get_groups", false) {
+         @Override
+         String arguments() {
+            if (topology.isValid()) {
+               return null;
+            }
+            generation[0] = topology.getGeneration();
+            return "";
+         }
+
+         @Override
+         boolean completed(HEOSMessage result) {
+            if (updateGroups(result, generation[0]) == null) {
+               LOGGER.warning("Could not get groups");
+            }
+            return true;
+         }
+      });
+
+      // Always ungroup before playing if grouped
+      plan.then(new HEOSCommandPlan.Step("group/set_group", false) {
+         @Override
+         String arguments() {
+            return isGrouped(playerID, true) ? ungroupArguments(playerID) : null;
+         }
+
+         @Override
+         boolean completed(HEOSMessage result) {
+            // Never trust the topology after changing it
+            topology.invalidate();
+            return true;
+         }
+      });
+
+      // Then the rest, the HEOS system handles them in order
+      plan.then(new HEOSCommandPlan.Step("system/sign_in", false) {
+         @Override
+         String arguments() {
+            return signInRequired && Boolean.FALSE.equals(signedIn) ? "?un=" + heosUser + "&pw=" + heosPassword : null;
+         }
+
+         @Override
+         boolean completed(HEOSMessage result) {
+            signedIn = isSuccess(result);
+            return true;
+         }
+      }, new HEOSCommandPlan.Step("player/set_volume", false) {
+         @Override
+         String arguments() {
+            HEOSPlayerState state = stateCache.getPlayer(playerID);
+            return volume < 0 || (state != null && state.getVolume() == volume) ? null : "?pid=" + playerID + "&level=" + String.valueOf(volume);
+         }
+
+         @Override
+         boolean completed(HEOSMessage result) {
+            if (isSuccess(result)) {
+               stateCache.volumeChanged(playerID, volume);
+               return true;
+            }
+            LOGGER.warning("Could not set volume on player " + playerID);
+            return false;
+         }
+      }, new HEOSCommandPlan.Step(playCommand, signInRequired) {
+         @Override
+         String arguments() {
+            return playArguments;
+         }
+
+         @Override
+         boolean completed(HEOSMessage result) {
+            if (isSuccess(result)) {
+               stateCache.mediaChanged(playerID);
+               return true;
+            }
+            return false;
+         }
+      });
+      return execute(plan);
+   }
+
+   /**
+    * Runs a command plan, the commands of a stage are sent back to back on the connection of the best device. A command which could not be
+    * sent, or got no response, is sent again on its own (failing over to the other devices).
+    * 
+    * @param plan The plan
+    * @return True if all steps succeeded, false if not
+    */
+   private boolean execute(HEOSCommandPlan plan) {
+      if (!circuitBreaker.tryAcquire()) {
+         LOGGER.info("Circuit open, not running: " + plan);
+         return false;
+      }
+      long start = System.nanoTime();
+      boolean success = true;
+      // The plan is one call through the circuit: failed if a command got no response, as slow as its slowest command
+      boolean answered = true;
+      long slowest = 0;
+      HEOSEndpoint endpoint = pool.select(Collections.<HEOSEndpoint> emptySet());
+      for (List<HEOSCommandPlan.Step> stage : plan.getStages()) {
+         // Send all needed steps of the stage
+         List<HEOSCommandPlan.Step> steps = new ArrayList<>();
+         List<String> arguments = new ArrayList<>();
+         List<HEOSFuture> futures = new ArrayList<>();
+         List<HEOSEndpoint> endpoints = new ArrayList<>();
+         for (HEOSCommandPlan.Step step : stage) {
+            String stepArguments = step.arguments();
+            if (stepArguments == null) {
+               continue;
+            }
+            HEOSFuture future = null;
+            if (endpoint != null) {
+               try {
+                  future = endpoint.getChannel().send(step.getCommand(), stepArguments);
+               } catch (IOException ioe) {
+                  endpoint.recordFailure();
+                  reconnect(endpoint);
+                  endpoint = null;
+               }
+            }
+            steps.add(step);
+            arguments.add(stepArguments);
+            futures.add(future);
+            endpoints.add(endpoint);
+         }
+         plan.stageDone(steps.size(), stage.size() - steps.size());
+
+         // Then wait for the responses, in order
+         for (int i = 0; i < steps.size(); i++) {
+            HEOSCommandPlan.Step step = steps.get(i);
+            HEOSFuture future = futures.get(i);
+            HEOSMessage result = future != null ? await(endpoints.get(i), future) : null;
+            if (result != null) {
+               slowest = Math.max(slowest, System.nanoTime() - future.getSent());
+            }
+            // Sent again only if never sent or only reading, as in failOver
+            if (result == null && (future == null || isReadOnly(step.getCommand()))) {
+               long sent = System.nanoTime();
+               result = failOver(step.getCommand(), arguments.get(i));
+               slowest = Math.max(slowest, System.nanoTime() - sent);
+            }
+            answered &= result != null;
+            if (step.isSignedIn() && result != null && result.getErrorId() == HEOS_ERROR_USER_NOT_LOGGED_IN) {
+               LOGGER.info("User not logged in, signing in and retrying command: " + step.getCommand());
+               signedIn = false;
+               if (signIn(true)) {
+                  result = failOver(step.getCommand(), arguments.get(i));
+                  answered &= result != null;
+               }
+            }
+            success &= step.completed(result);
+         }
+         if (!success) {
+            break;
+         }
+      }
+      if (answered) {
+         circuitBreaker.onSuccess(slowest);
+      } else {
+         circuitBreaker.onFailure();
+      }
+      plan.done(System.nanoTime() - start);
+      PLAN_DURATION.recordSince(start, plan.getName());
+      LOGGER.info(plan.toString());
+      return success;
+   }
+
+   /**
+    * Waits for the response of a command sent as part of a command plan
+    * 
+    * @param endpoint The device the command was sent to
+    * @param future The pending command
+    * @return The response or null if none
+    */
+   private HEOSMessage await(HEOSEndpoint endpoint, HEOSFuture future) {
+      try {
+         HEOSMessage result = future.get();
+         // Keeps the latency of the device up to date, plans are most of the traffic
+         endpoint.recordSuccess(System.nanoTime() - future.getSent());
+         return result;
+      } catch (ExecutionException ee) {
+         endpoint.recordFailure();
+         if (!(ee.getCause() instanceof TimeoutException)) {
+            reconnect(endpoint);
+         }
+         LOGGER.warning("No response from " + endpoint.getHost() + " to command: " + future.getCommand());
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      }
+      return null;
+   }
+
+   /**
+    * Sends a command which requires the user to be signed in. The user is signed in first only if known to be signed out, if the command
+    * fails because the user is not logged in the user is signed in and the command is retried once.
+    * 
+    * @param command The command to send
+    * @param arguments The command arguments
+    * 
+    * @return The command result or null if none/error
+    */
+   private HEOSMessage sendSignedInCommand(String command, String arguments) {
+      if (Boolean.FALSE.equals(signedIn)) {
+         signIn(false);
+      }
+      HEOSMessage result = sendCommand(command, arguments);
+      if (result != null && result.getErrorId() == HEOS_ERROR_USER_NOT_LOGGED_IN) {
+         LOGGER.info("User not logged in, signing in and retrying command: " + command);
+         signedIn = false;
+         if (signIn(false)) {
+            result = sendCommand(command, arguments);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Sends a command to the HEOS, commands from different callers are multiplexed on the same connection
+    * 
+    * @param command The command to send
+    * @param arguments The command arguments
+    * 
+    * @return The command result or null if none/error
+    */
+   private HEOSMessage sendCommand(String command, String arguments) {
+      // Check parameters
+      if (command == null || command.isEmpty() || arguments == null) {
+         LOGGER.severe("Invalid command arguments");
+         return null;
+      }
+      if (!circuitBreaker.tryAcquire()) {
+         LOGGER.info("Circuit open, command not sent: " + HEOS_PREFIX + command + arguments);
+         return null;
+      }
+      // One outcome for the one call let through, however many devices are tried
+      long start = System.nanoTime();
+      HEOSMessage result = failOver(command, arguments);
+      if (result != null) {
+         circuitBreaker.onSuccess(System.nanoTime() - start);
+      } else {
+         circuitBreaker.onFailure();
+      }
+      return result;
+   }
+
+   /**
+    * Sends a command on the best device. Fails over to the next best if the command could not be sent, once sent only if reading: a device
+    * not answering in time may still have run it, and changes run twice on different devices would fight each other. Not checking the
+    * circuit, the caller does.
+    * 
+    * @param command The command to send
+    * @param arguments The command arguments
+    * 
+    * @return The command result or null if none/error
+    */
+   private HEOSMessage failOver(String command, String arguments) {
+      String completeCommand = HEOS_PREFIX + command + arguments;
+      boolean readOnly = isReadOnly(command);
+      Set<HEOSEndpoint> tried = new HashSet<>();
+      HEOSEndpoint endpoint;
+      while ((endpoint = pool.select(tried)) != null) {
+         tried.add(endpoint);
+         long start = System.nanoTime();
+         HEOSFuture future;
+         try {
+            future = endpoint.getChannel().send(command, arguments);
+         } catch (IOException ioe) {
+            endpoint.recordFailure();
+            LOGGER.warning("Could not send command to " + endpoint.getHost() + ": " + completeCommand);
+            reconnect(endpoint);
+            continue;
+         }
+         try {
+            HEOSMessage result = getResponse(future);
+            endpoint.recordSuccess(System.nanoTime() - start);
+            return result;
+         } catch (TimeoutException te) {
+            // Timeout occured
+            endpoint.recordFailure();
+            LOGGER.warning("Timeout while sending command to " + endpoint.getHost() + ": " + completeCommand);
+         } catch (IOException ioe) {
+            endpoint.recordFailure();
+            LOGGER.warning("Error while sending command to " + endpoint.getHost() + ": " + completeCommand);
+            reconnect(endpoint);
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+         }
+         if (!readOnly) {
+            break;
+         }
+      }
+      // Something went wrong, return null;
+      LOGGER.severe("Error while sending command: " + completeCommand);
+      return null;
+   }
+
+   /**
+    * Sends a command to the HEOS on a specific connection
+    * 
+    * @param target The connection to send the command on
+    * @param command The command to send
+    * @param arguments The command arguments
+    * 
+    * @return The command result or null if none/error
+    */
+   private HEOSMessage sendCommand(HEOSChannel target, String command, String arguments) {
+      try {
+         return exchange(target, command, arguments);
+      } catch (TimeoutException te) {
+         LOGGER.warning("Timeout while sending command: " + HEOS_PREFIX + command + arguments);
+      } catch (IOException ioe) {
+         LOGGER.severe("Error while sending command: " + HEOS_PREFIX + command + arguments);
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      }
+      return null;
+   }
+
+   /**
+    * Sends a command and waits for the response
+    * 
+    * @param target The connection to send the command on
+    * @param command The command to send
+    * @param arguments The command arguments
+    * @return The response
+    * @throws TimeoutException If no response in time
+    * @throws IOException If not connected or the connection was lost
+    * @throws InterruptedException If interrupted while waiting
+    */
+   private HEOSMessage exchange(HEOSChannel target, String command, String arguments) throws TimeoutException, IOException, InterruptedException {
+      return getResponse(target.send(command, arguments));
+   }
+
+   /**
+    * Waits for the response of a command sent
+    * 
+    * @param future The pending command
+    * @return The response
+    * @throws TimeoutException If no response in time
+    * @throws IOException If the connection was lost
+    * @throws InterruptedException If interrupted while waiting
+    */
+   private HEOSMessage getResponse(HEOSFuture future) throws TimeoutException, IOException, InterruptedException {
+      try {
+         // The channel fails the future when the deadline has passed
+         return future.get();
+      } catch (ExecutionException ee) {
+         if (ee.getCause() instanceof TimeoutException) {
+            throw (TimeoutException) ee.getCause();
+         }
+         throw new IOException(ee.getCause());
+      }
+   }
+
+   /**
+    * Finds out if a command only reads, so running it again on another device does no harm
+    * 
+    * @param command The command (e.g. player/get_players)
+    * @return True if reading only
+    */
+   private static boolean isReadOnly(String command) {
+      String name = command.substring(command.indexOf('/') + 1);
+      return name.startsWith("get_") || name.startsWith("check_") || "browse/browse".equals(command) || "system/heart_beat".equals(command);
+   }
+
+   /**
+    * Reconnects a device in the background, if its connection was lost
+    * 
+    * @param endpoint The device
+    */
+   private void reconnect(HEOSEndpoint endpoint) {
+      try {
+         healthMonitor.execute(new Runnable() {
+            @Override
+            public void run() {
+               checkHealth();
+            }
+         });
+      } catch (RejectedExecutionException ree) {
+         LOGGER.warning("Could not schedule reconnect to " + endpoint.getHost());
+      }
+   }
+
+   /**
+    * Checks the connections from their own traffic. Lost connections are reconnected, backing off exponentially while the device is
+    * unreachable, and connections idle for a while get a heartbeat, closed if not answered. The heartbeats also keep the latency of devices
+    * not used lately up to date, so traffic can move to them if faster.
+    */
+   private void checkHealth() {
+      long idleLimit = TimeUnit.MILLISECONDS.toNanos(HEOS_IDLE_HEARTBEAT_IN_MS);
+      for (HEOSEndpoint endpoint : pool.getEndpoints()) {
+         HEOSChannel channel = endpoint.getChannel();
+         if (!channel.isOpen()) {
+            if (endpoint.isReconnectDue()) {
+               RECONNECTS.inc();
+               endpoint.recordReconnect(pool.connect(endpoint), TimeUnit.MILLISECONDS.toNanos(HEOS_RECONNECT_MIN_IN_MS),
+                     TimeUnit.MILLISECONDS.toNanos(HEOS_RECONNECT_MAX_IN_MS));
+            }
+         } else if (channel.getIdleInNanos() > idleLimit) {
+            long start = System.nanoTime();
+            if (sendCommand(channel, "system/heart_beat", "") != null) {
+               HEARTBEATS.inc("success");
+               endpoint.recordSuccess(System.nanoTime() - start);
+            } else {
+               // Open but not answering, e.g. the device left the network without closing the connection
+               HEARTBEATS.inc("failed");
+               LOGGER.warning("No heartbeat from HEOS " + endpoint.getHost() + ", closing the connection");
+               endpoint.recordFailure();
+               channel.close();
+            }
+         }
+      }
+
+      // The probe of an open circuit, sent from here so no request has to wait for it
+      if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED && circuitBreaker.isCallPermitted() && pool.isConnected()) {
+         HEARTBEATS.inc(heartbeat() ? "success" : "failed");
+      }
+
+      // The change event connection, registered again when lost
+      HEOSChannel events = eventChannel;
+      if (events == null || !events.isOpen()) {
+         if (pool.isConnected()) {
+            registerForChangeEvents();
+         }
+      } else if (events.getIdleInNanos() > idleLimit) {
+         if (sendCommand(events, "system/heart_beat", "") != null) {
+            HEARTBEATS.inc("success");
+         } else {
+            HEARTBEATS.inc("failed");
+            LOGGER.warning("No heartbeat on the change event connection, closing it");
+            events.close();
+         }
+      }
+   }
+
+   /**
+    * Runs a refresh in the background
+    * 
+    * @param refresh The refresh
+    */
+   private void refresh(Runnable refresh) {
+      try {
+         refreshExecutor.execute(refresh);
+      } catch (RejectedExecutionException ree) {
+         LOGGER.warning("Could not schedule refresh");
+      }
+   }
+
+   /**
+    * Keeps the state cache up to date from change events
+    */
+   private class ChangeEventListener implements HEOSEventListener {
+
+      private final HEOSChannel source;
+      private volatile boolean registered = false;
+
+      /**
+       * Constructor
+       * 
+       * @param source The event connection
+       */
+      ChangeEventListener(HEOSChannel source) {
+         this.source = source;
+      }
+
+      @Override
+      public void onEvent(HEOSMessage event) {
+         // Ignore late events from a replaced connection
+         if (source != eventChannel) {
+            return;
+         }
+         stateCache.update(event);
+         syncState();
+         if (HEOS_EVENT_USER_CHANGED.equals(event.getCommand())) {
+            signedIn = event.isSignedIn(heosUser);
+         }
+         // Changes not described by the event itself are fetched, but never on the event reader thread
+         final String playerID = event.getMessageValue("pid");
+         if (HEOS_EVENT_NOW_PLAYING_CHANGED.equals(event.getCommand()) && playerID != null) {
+            refresh(new Runnable() {
+               @Override
+               public void run() {
+                  fetchNowPlaying(playerID);
+                  syncState();
+               }
+            });
+         } else if (HEOS_EVENT_GROUPS_CHANGED.equals(event.getCommand())) {
+            topology.invalidate();
+            refresh(new Runnable() {
+               @Override
+               public void run() {
+                  fetchGroups(false);
+                  syncState();
+               }
+            });
+         }
+      }
+
+      @Override
+      public void onDisconnected() {
+         if (source != eventChannel || !registered) {
+            return;
+         }
+         registered = false;
+         stateCache.setEnabled(false);
+         topology.invalidate();
+         signedIn = null;
+         // Register again, possibly on another device
+         refresh(new Runnable() {
+            @Override
+            public void run() {
+               registerForChangeEvents();
+            }
+         });
+      }
+   }
+
+}
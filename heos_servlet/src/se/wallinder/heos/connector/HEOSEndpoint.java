@@ -0,0 +1,142 @@
+package se.wallinder.heos.connector;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import se.wallinder.heos.util.ServletHost;
+
+/**
+ * A HEOS device accepting CLI connections, with its connection and the observed latency and errors
+ */
+public class HEOSEndpoint {
+
+   private final static int EWMA_WEIGHT = 5;
+   private final String host;
+   private final int port;
+   private final HEOSChannel channel;
+   private final long cooldownInNanos;
+   private long latencyInNanos = 0;
+   private long lastFailure = 0;
+   private int consecutiveFailures = 0;
+   private long failures = 0;
+   private int reconnectAttempts = 0;
+   private long nextReconnect = 0;
+
+   /**
+    * Constructor
+    *
+    * @param host The host of the device, optionally with port (host:port or [IPv6 address]:port)
+    * @param port The HEOS CLI port, unless given with the host
+    * @param timeoutInMs The timeout for connecting and for each command
+    * @param cooldownInMs The time an endpoint is avoided after a failure
+    * @throws IllegalArgumentException If the host or port is invalid
+    */
+   public HEOSEndpoint(String host, int port, int timeoutInMs, long cooldownInMs) {
+      ServletHost hostAndPort = ServletHost.parse(host, port);
+      this.host = hostAndPort.getHost();
+      this.port = hostAndPort.getPort();
+      this.channel = new HEOSChannel(this.host, this.port, timeoutInMs);
+      this.cooldownInNanos = TimeUnit.MILLISECONDS.toNanos(cooldownInMs);
+   }
+
+   /**
+    * @return The host of the device
+    */
+   public String getHost() {
+      return host;
+   }
+
+   /**
+    * @return The HEOS CLI port of the device
+    */
+   public int getPort() {
+      return port;
+   }
+
+   /**
+    * @return The connection to the device
+    */
+   public HEOSChannel getChannel() {
+      return channel;
+   }
+
+   /**
+    * @return True if connected and without recent failures, false if not
+    */
+   public synchronized boolean isHealthy() {
+      return channel.isOpen() && (consecutiveFailures == 0 || System.nanoTime() - lastFailure > cooldownInNanos);
+   }
+
+   /**
+    * @return The average command latency in ms, 0 if not yet measured
+    */
+   public synchronized long getLatencyInMs() {
+      return TimeUnit.NANOSECONDS.toMillis(latencyInNanos);
+   }
+
+   /**
+    * @return The total number of failed commands
+    */
+   public synchronized long getFailures() {
+      return failures;
+   }
+
+   /**
+    * @return The number of failed reconnects since the connection was lost
+    */
+   public synchronized int getReconnectAttempts() {
+      return reconnectAttempts;
+   }
+
+   /**
+    * @return True if the device may be reconnected now, false if backing off after failed reconnects
+    */
+   synchronized boolean isReconnectDue() {
+      return reconnectAttempts == 0 || System.nanoTime() - nextReconnect >= 0;
+   }
+
+   /**
+    * Records a reconnect, after a failure the next one is delayed exponentially longer, with jitter so devices are not reconnected in step
+    *
+    * @param connected True if reconnected, false if failed
+    * @param minDelayInNanos The delay after the first failure
+    * @param maxDelayInNanos The longest delay
+    */
+   synchronized void recordReconnect(boolean connected, long minDelayInNanos, long maxDelayInNanos) {
+      if (connected) {
+         reconnectAttempts = 0;
+         return;
+      }
+      long delay = Math.min(maxDelayInNanos, minDelayInNanos << Math.min(reconnectAttempts, 16));
+      reconnectAttempts++;
+      // Between half and all of the delay
+      nextReconnect = System.nanoTime() + delay / 2 + (long) (ThreadLocalRandom.current().nextDouble() * (delay / 2));
+   }
+
+   /**
+    * @return The average command latency used for ranking endpoints
+    */
+   synchronized long getLatencyInNanos() {
+      return latencyInNanos;
+   }
+
+   /**
+    * Records a successful command
+    *
+    * @param elapsedInNanos The time from sending the command to receiving the response
+    */
+   synchronized void recordSuccess(long elapsedInNanos) {
+      latencyInNanos = latencyInNanos == 0 ? elapsedInNanos : latencyInNanos + (elapsedInNanos - latencyInNanos) / EWMA_WEIGHT;
+      consecutiveFailures = 0;
+   }
+
+   /**
+    * Records a failed command (timeout or connection error)
+    */
+   synchronized void recordFailure() {
+      consecutiveFailures++;
+      failures++;
+      lastFailure = System.nanoTime();
+   }
+
+}
@@ -0,0 +1,107 @@
+package se.wallinder.heos.connector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The HEOS devices which may be used to control the HEOS system, any device controls all players. Commands are sent to the fastest healthy
+ * device, devices with recent failures are only used when no healthy device is available.
+ */
+public class HEOSEndpointPool {
+
+   private final static Logger LOGGER = Logger.getLogger(HEOSEndpointPool.class.getName());
+   private final List<HEOSEndpoint> endpoints;
+
+   /**
+    * Constructor
+    *
+    * @param hosts The hosts of the devices, in order of preference
+    * @param port The HEOS CLI port
+    * @param timeoutInMs The timeout for connecting and for each command
+    * @param cooldownInMs The time an endpoint is avoided after a failure
+    */
+   public HEOSEndpointPool(List<String> hosts, int port, int timeoutInMs, long cooldownInMs) {
+      LOGGER.setLevel(Level.WARNING);
+      List<HEOSEndpoint> list = new ArrayList<>();
+      for (String host : hosts) {
+         list.add(new HEOSEndpoint(host, port, timeoutInMs, cooldownInMs));
+      }
+      this.endpoints = Collections.unmodifiableList(list);
+   }
+
+   /**
+    * @return All endpoints, in order of preference
+    */
+   public List<HEOSEndpoint> getEndpoints() {
+      return endpoints;
+   }
+
+   /**
+    * @return True if the connection to at least one endpoint is open, nothing is sent
+    */
+   public boolean isConnected() {
+      for (HEOSEndpoint endpoint : endpoints) {
+         if (endpoint.getChannel().isOpen()) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Connects all endpoints which are not connected
+    *
+    * @return True if at least one endpoint is connected, false if none
+    */
+   public boolean connect() {
+      boolean connected = false;
+      for (HEOSEndpoint endpoint : endpoints) {
+         connected = connect(endpoint) || connected;
+      }
+      return connected;
+   }
+
+   /**
+    * (Re)connects an endpoint
+    *
+    * @param endpoint The endpoint
+    * @return True if connected, false if not
+    */
+   public boolean connect(HEOSEndpoint endpoint) {
+      try {
+         endpoint.getChannel().connect();
+         return true;
+      } catch (Exception e) {
+         LOGGER.severe("Could not connect to HEOS " + endpoint.getHost());
+         endpoint.recordFailure();
+         return false;
+      }
+   }
+
+   /**
+    * Selects the endpoint to send a command to
+    *
+    * @param exclude Endpoints already tried for the command
+    * @return The fastest healthy endpoint, else any connected endpoint, null if none
+    */
+   public HEOSEndpoint select(Set<HEOSEndpoint> exclude) {
+      HEOSEndpoint best = null;
+      HEOSEndpoint fallback = null;
+      for (HEOSEndpoint endpoint : endpoints) {
+         if (exclude.contains(endpoint) || !endpoint.getChannel().isOpen()) {
+            continue;
+         }
+         if (!endpoint.isHealthy()) {
+            fallback = fallback != null ? fallback : endpoint;
+         } else if (best == null || endpoint.getLatencyInNanos() < best.getLatencyInNanos()) {
+            best = endpoint;
+         }
+      }
+      return best != null ? best : fallback;
+   }
+
+}
@@ -0,0 +1,20 @@
+package se.wallinder.heos.connector;
+
+/**
+ * Receives change events from a HEOS channel registered for change events
+ */
+public interface HEOSEventListener {
+
+   /**
+    * Called on the channel reader thread for every event, must not block
+    *
+    * @param event The event (e.g. event/player_state_changed)
+    */
+   void onEvent(HEOSMessage event);
+
+   /**
+    * Called when the channel is closed or the connection is lost, events may have been missed
+    */
+   void onDisconnected();
+
+}
@@ -0,0 +1,156 @@
+package se.wallinder.heos.connector;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import se.wallinder.heos.util.ServletRecorder;
+
+/**
+ * The pending result of a command sent on a HEOS channel, completed by the channel reader thread
+ */
+public class HEOSFuture implements Future<HEOSMessage> {
+
+   private final String command;
+   private final int sequence;
+   private final long deadline;
+   private final long sent = System.nanoTime();
+   // The recorded request the command was sent for
+   private final long request = ServletRecorder.current();
+   private final AtomicBoolean completed = new AtomicBoolean();
+   private final CountDownLatch done = new CountDownLatch(1);
+   private volatile HEOSMessage response;
+   private volatile Exception failure;
+   private volatile boolean cancelled;
+
+   /**
+    * Constructor
+    *
+    * @param command The command (e.g. player/get_players)
+    * @param sequence The sequence number tagged on the command
+    * @param deadline The deadline for the response (System.nanoTime)
+    */
+   public HEOSFuture(String command, int sequence, long deadline) {
+      this.command = command;
+      this.sequence = sequence;
+      this.deadline = deadline;
+   }
+
+   /**
+    * @return The command
+    */
+   public String getCommand() {
+      return command;
+   }
+
+   /**
+    * @return The sequence number
+    */
+   public int getSequence() {
+      return sequence;
+   }
+
+   /**
+    * @return The deadline for the response (System.nanoTime)
+    */
+   public long getDeadline() {
+      return deadline;
+   }
+
+   /**
+    * @return The time the command was sent (System.nanoTime)
+    */
+   public long getSent() {
+      return sent;
+   }
+
+   /**
+    * @return The ID of the recorded request the command was sent for, 0 if none
+    */
+   public long getRequest() {
+      return request;
+   }
+
+   /**
+    * Completes the future with a response
+    *
+    * @param response The response
+    * @return True if completed by this call, false if already done
+    */
+   boolean complete(HEOSMessage response) {
+      if (!completed.compareAndSet(false, true)) {
+         return false;
+      }
+      this.response = response;
+      done.countDown();
+      return true;
+   }
+
+   /**
+    * Completes the future with a failure
+    *
+    * @param failure The failure
+    * @return True if completed by this call, false if already done
+    */
+   boolean fail(Exception failure) {
+      if (!completed.compareAndSet(false, true)) {
+         return false;
+      }
+      this.failure = failure;
+      done.countDown();
+      return true;
+   }
+
+   @Override
+   public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!completed.compareAndSet(false, true)) {
+         return false;
+      }
+      cancelled = true;
+      done.countDown();
+      return true;
+   }
+
+   @Override
+   public boolean isCancelled() {
+      return cancelled;
+   }
+
+   @Override
+   public boolean isDone() {
+      return done.getCount() == 0;
+   }
+
+   @Override
+   public HEOSMessage get() throws InterruptedException, ExecutionException {
+      done.await();
+      return getResult();
+   }
+
+   @Override
+   public HEOSMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      if (!done.await(timeout, unit)) {
+         throw new TimeoutException("No response for " + command + " (sequence " + sequence + ")");
+      }
+      return getResult();
+   }
+
+   /**
+    * @return The response
+    * @throws ExecutionException If completed with a failure
+    */
+   private HEOSMessage getResult() throws ExecutionException {
+      if (cancelled) {
+         throw new CancellationException();
+      }
+      if (failure != null) {
+         throw new ExecutionException(failure);
+      }
+      return response;
+   }
+
+}
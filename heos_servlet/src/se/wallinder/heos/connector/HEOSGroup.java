@@ -0,0 +1,57 @@
+package se.wallinder.heos.connector;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A HEOS group, the leader is always the first member
+ */
+public class HEOSGroup {
+
+   private final String groupID;
+   private final String leaderID;
+   private final List<String> memberIDs;
+
+   /**
+    * Constructor
+    *
+    * @param groupID The ID of the group
+    * @param leaderID The ID of the leading player
+    * @param memberIDs The ID:s of all players in the group, leader first
+    */
+   public HEOSGroup(String groupID, String leaderID, List<String> memberIDs) {
+      this.groupID = groupID;
+      this.leaderID = leaderID;
+      this.memberIDs = Collections.unmodifiableList(memberIDs);
+   }
+
+   /**
+    * @return The ID of the group
+    */
+   public String getGroupID() {
+      return groupID;
+   }
+
+   /**
+    * @return The ID of the leading player
+    */
+   public String getLeaderID() {
+      return leaderID;
+   }
+
+   /**
+    * @return The ID:s of all players in the group, leader first
+    */
+   public List<String> getMemberIDs() {
+      return memberIDs;
+   }
+
+   /**
+    * @param playerID The ID of the player
+    * @return True if the player leads the group, false if not
+    */
+   public boolean isLeader(String playerID) {
+      return leaderID.equals(playerID);
+   }
+
+}
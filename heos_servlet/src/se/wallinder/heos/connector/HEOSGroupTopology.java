@@ -0,0 +1,102 @@
+package se.wallinder.heos.connector;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the HEOS groups by player. The index is refreshed lazily by the connector when it has expired or been invalidated, e.g. after
+ * set_group or a groups_changed event, and answers queries without touching the network while valid.
+ */
+public class HEOSGroupTopology {
+
+   private final long ttlInNanos;
+   private final AtomicLong generation = new AtomicLong();
+   private volatile Map<String, HEOSGroup> groupsByPlayer = null;
+   private volatile long updated = 0;
+
+   /**
+    * Constructor
+    *
+    * @param ttlInMs The time an update is valid
+    */
+   public HEOSGroupTopology(long ttlInMs) {
+      this.ttlInNanos = TimeUnit.MILLISECONDS.toNanos(ttlInMs);
+   }
+
+   /**
+    * @return True if the index is valid, false if it must be refreshed
+    */
+   public boolean isValid() {
+      return groupsByPlayer != null && System.nanoTime() - updated < ttlInNanos;
+   }
+
+   /**
+    * @param playerID The ID of the player
+    * @return True if grouped, false if not, null if the index must be refreshed
+    */
+   public Boolean isGrouped(String playerID) {
+      Map<String, HEOSGroup> current = groupsByPlayer;
+      return current != null && isValid() ? current.containsKey(playerID) : null;
+   }
+
+   /**
+    * @param playerID The ID of the player
+    * @return The group of the player, null if not grouped or if the index must be refreshed
+    */
+   public HEOSGroup getGroup(String playerID) {
+      Map<String, HEOSGroup> current = groupsByPlayer;
+      return current != null && isValid() ? current.get(playerID) : null;
+   }
+
+   /**
+    * @return All groups by player, empty if the index must be refreshed
+    */
+   public Map<String, HEOSGroup> getGroups() {
+      Map<String, HEOSGroup> current = groupsByPlayer;
+      return current != null && isValid() ? current : Collections.<String, HEOSGroup> emptyMap();
+   }
+
+   /**
+    * Must be called before fetching groups, the update is only accepted if nothing invalidated the index during the fetch
+    *
+    * @return The current generation of the index
+    */
+   long getGeneration() {
+      return generation.get();
+   }
+
+   /**
+    * Replaces the index with fetched groups
+    *
+    * @param groups The groups
+    * @param fetchGeneration The generation when the fetch was started
+    * @return True if accepted, false if invalidated during the fetch
+    */
+   synchronized boolean update(List<HEOSGroup> groups, long fetchGeneration) {
+      if (fetchGeneration != generation.get()) {
+         return false;
+      }
+      Map<String, HEOSGroup> index = new HashMap<>();
+      for (HEOSGroup group : groups) {
+         for (String memberID : group.getMemberIDs()) {
+            index.put(memberID, group);
+         }
+      }
+      groupsByPlayer = index;
+      updated = System.nanoTime();
+      return true;
+   }
+
+   /**
+    * Invalidates the index, e.g. after set_group
+    */
+   synchronized void invalidate() {
+      generation.incrementAndGet();
+      groupsByPlayer = null;
+   }
+
+}
@@ -0,0 +1,537 @@
+package se.wallinder.heos.connector;
+
+import static se.wallinder.heos.util.ServletConstants.HEOS_CMD_UNDER_PROCESS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_MESSAGE_SIGNED_IN;
+import static se.wallinder.heos.util.ServletConstants.HEOS_RESULT_SUCCESS;
+import static se.wallinder.heos.util.ServletConstants.HEOS_SEQUENCE;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A decoded HEOS CLI message. The heos.command, heos.result and heos.message fields are read straight from the received bytes, the payload is
+ * kept as bytes and only the fields a caller asks for are decoded (see {@link #visitPayload(String[], HEOSPayloadVisitor)}).
+ */
+public class HEOSMessage {
+
+   private final static byte[] KEY_HEOS = ascii("heos");
+   private final static byte[] KEY_PAYLOAD = ascii("payload");
+   private final static byte[] KEY_COMMAND = ascii("command");
+   private final static byte[] KEY_RESULT = ascii("result");
+   private final static byte[] KEY_MESSAGE = ascii("message");
+   private final static String[] FIELDS_PID = { "pid" };
+   private final String command;
+   private final String result;
+   private final String message;
+   private final byte[] payload;
+
+   /**
+    * Private constructor
+    */
+   private HEOSMessage(String command, String result, String message, byte[] payload) {
+      this.command = command;
+      this.result = result;
+      this.message = message;
+      this.payload = payload;
+   }
+
+   /**
+    * Decodes a HEOS message (one line, without line ending)
+    *
+    * @param data The buffer holding the line
+    * @param offset The start of the line
+    * @param length The length of the line
+    * @return The decoded message
+    * @throws IllegalArgumentException If the line is not a valid HEOS message
+    */
+   public static HEOSMessage decode(byte[] data, int offset, int length) {
+      Cursor cursor = new Cursor(data, offset, offset + length);
+      String command = null;
+      String result = null;
+      String message = null;
+      byte[] payload = null;
+      cursor.expect('{');
+      while (cursor.nextMember('}')) {
+         int keyStart = cursor.readString();
+         int keyEnd = cursor.position - 1;
+         cursor.expect(':');
+         if (cursor.matches(keyStart, keyEnd, KEY_HEOS) && cursor.peek() == '{') {
+            cursor.expect('{');
+            while (cursor.nextMember('}')) {
+               int heosKeyStart = cursor.readString();
+               int heosKeyEnd = cursor.position - 1;
+               cursor.expect(':');
+               if (cursor.matches(heosKeyStart, heosKeyEnd, KEY_COMMAND)) {
+                  command = cursor.readScalar();
+               } else if (cursor.matches(heosKeyStart, heosKeyEnd, KEY_RESULT)) {
+                  result = cursor.readScalar();
+               } else if (cursor.matches(heosKeyStart, heosKeyEnd, KEY_MESSAGE)) {
+                  message = cursor.readScalar();
+               } else {
+                  cursor.skipValue();
+               }
+            }
+         } else if (cursor.matches(keyStart, keyEnd, KEY_PAYLOAD)) {
+            cursor.skipWhitespace();
+            int payloadStart = cursor.position;
+            cursor.skipValue();
+            payload = Arrays.copyOfRange(data, payloadStart, cursor.position);
+         } else {
+            cursor.skipValue();
+         }
+      }
+      if (command == null) {
+         throw new IllegalArgumentException("HEOS message without command");
+      }
+      return new HEOSMessage(command, result != null ? result : "", message != null ? message : "", payload);
+   }
+
+   /**
+    * @return The command (e.g. player/get_players or event/groups_changed)
+    */
+   public String getCommand() {
+      return command;
+   }
+
+   /**
+    * @return The result (e.g. success or fail), empty if none
+    */
+   public String getResult() {
+      return result;
+   }
+
+   /**
+    * @return The raw message, empty if none
+    */
+   public String getMessage() {
+      return message;
+   }
+
+   /**
+    * @return True if the result is success, false if not
+    */
+   public boolean isSuccess() {
+      return HEOS_RESULT_SUCCESS.equals(result);
+   }
+
+   /**
+    * @return True if this is an interim "command under process" message, false if not
+    */
+   public boolean isUnderProcess() {
+      return message.startsWith(HEOS_CMD_UNDER_PROCESS);
+   }
+
+   /**
+    * @return True if this is a change event, false if a command response
+    */
+   public boolean isEvent() {
+      return command.startsWith("event/");
+   }
+
+   /**
+    * @return The sequence number the command was tagged with or -1 if none
+    */
+   public int getSequence() {
+      return getMessageInt(HEOS_SEQUENCE);
+   }
+
+   /**
+    * @return The HEOS error id (eid) of a failed command or -1 if none
+    */
+   public int getErrorId() {
+      return getMessageInt("eid");
+   }
+
+   /**
+    * @return The play state (play, pause or stop) of a player/get_play_state response or a player_state_changed event, null if none
+    */
+   public String getPlayState() {
+      return getMessageValue("state");
+   }
+
+   /**
+    * @param username The name of the user
+    * @return True if the message tells that the given user is signed in, false if not
+    */
+   public boolean isSignedIn(String username) {
+      return hasMessageFlag(HEOS_MESSAGE_SIGNED_IN) && username != null && username.equals(getMessageValue("un"));
+   }
+
+   /**
+    * Finds out if a player is member of any group in a group/get_groups response
+    *
+    * @param playerID The ID of the player
+    * @return True if a member (or leader) of a group, false if not
+    */
+   public boolean isGroupMember(final String playerID) {
+      final boolean[] member = { false };
+      visitPayload(FIELDS_PID, new HEOSPayloadVisitor() {
+         @Override
+         public void value(int depth, int field, String value) {
+            // Players are listed in each group, e.g. at depth 2
+            if (depth == 2 && value.equals(playerID)) {
+               member[0] = true;
+            }
+         }
+
+         @Override
+         public void endObject(int depth) {
+            // Not used
+         }
+      });
+      return member[0];
+   }
+
+   /**
+    * @return True if the message has a payload, false if not
+    */
+   public boolean hasPayload() {
+      return payload != null;
+   }
+
+   /**
+    * Decodes the payload, only the selected fields are decoded and passed to the visitor
+    *
+    * @param fields The names of the fields to decode
+    * @param visitor The visitor receiving the field values
+    * @throws IllegalArgumentException If the payload is not valid
+    */
+   public void visitPayload(String[] fields, HEOSPayloadVisitor visitor) {
+      if (payload == null) {
+         return;
+      }
+      byte[][] fieldKeys = new byte[fields.length][];
+      for (int i = 0; i < fields.length; i++) {
+         fieldKeys[i] = ascii(fields[i]);
+      }
+      new Cursor(payload, 0, payload.length).visitValue(0, fieldKeys, visitor);
+   }
+
+   /**
+    * Gets a value in the message, e.g. "pid" in "pid=123&state=play"
+    *
+    * @param name The name of the value
+    * @return The value or null if none
+    */
+   public String getMessageValue(String name) {
+      int start = 0;
+      while (start < message.length()) {
+         int end = message.indexOf('&', start);
+         end = end < 0 ? message.length() : end;
+         if (message.startsWith(name, start) && start + name.length() < end && message.charAt(start + name.length()) == '=') {
+            return unescapeMessage(message.substring(start + name.length() + 1, end));
+         }
+         start = end + 1;
+      }
+      return null;
+   }
+
+   /**
+    * @param flag The flag
+    * @return True if the message has a flag without value, e.g. "signed_in" in "signed_in&un=user@host.com"
+    */
+   public boolean hasMessageFlag(String flag) {
+      int start = 0;
+      while (start < message.length()) {
+         int end = message.indexOf('&', start);
+         end = end < 0 ? message.length() : end;
+         if (end - start == flag.length() && message.startsWith(flag, start)) {
+            return true;
+         }
+         start = end + 1;
+      }
+      return false;
+   }
+
+   @Override
+   public String toString() {
+      return command + " " + result + " " + message + (payload != null ? " " + new String(payload, StandardCharsets.UTF_8) : "");
+   }
+
+   /**
+    * @param name The name of the value
+    * @return A numeric value in the message or -1 if none
+    */
+   private int getMessageInt(String name) {
+      String value = getMessageValue(name);
+      if (value == null || value.isEmpty()) {
+         return -1;
+      }
+      try {
+         return Integer.parseInt(value);
+      } catch (NumberFormatException nfe) {
+         return -1;
+      }
+   }
+
+   /**
+    * HEOS escapes &, = and % in message values
+    *
+    * @param value The escaped value
+    * @return The value
+    */
+   private static String unescapeMessage(String value) {
+      if (value.indexOf('%') < 0) {
+         return value;
+      }
+      return value.replace("%26", "&").replace("%3D", "=").replace("%25", "%");
+   }
+
+   /**
+    * @param text An ASCII text
+    * @return The bytes of the text
+    */
+   private static byte[] ascii(String text) {
+      return text.getBytes(StandardCharsets.US_ASCII);
+   }
+
+   /**
+    * A position in a JSON text
+    */
+   private static class Cursor {
+
+      private final byte[] data;
+      private final int end;
+      private int position;
+
+      /**
+       * Constructor
+       */
+      Cursor(byte[] data, int start, int end) {
+         this.data = data;
+         this.position = start;
+         this.end = end;
+      }
+
+      /**
+       * @return The next non whitespace character, without consuming it
+       */
+      int peek() {
+         skipWhitespace();
+         if (position >= end) {
+            throw error("Unexpected end");
+         }
+         return data[position];
+      }
+
+      /**
+       * Skips whitespace
+       */
+      void skipWhitespace() {
+         while (position < end && (data[position] == ' ' || data[position] == '\t' || data[position] == '\r' || data[position] == '\n')) {
+            position++;
+         }
+      }
+
+      /**
+       * Consumes an expected character
+       */
+      void expect(char expected) {
+         if (peek() != expected) {
+            throw error("Expected '" + expected + "'");
+         }
+         position++;
+      }
+
+      /**
+       * Moves to the next member of an object or element of an array
+       *
+       * @param close The closing character of the object or array
+       * @return True if there is a member, false if at the end
+       */
+      boolean nextMember(char close) {
+         int c = peek();
+         if (c == close) {
+            position++;
+            return false;
+         }
+         if (c == ',') {
+            position++;
+         }
+         return true;
+      }
+
+      /**
+       * Consumes a string
+       *
+       * @return The position of the first character of the string content
+       */
+      int readString() {
+         expect('"');
+         int start = position;
+         while (position < end && data[position] != '"') {
+            position += data[position] == '\\' ? 2 : 1;
+         }
+         if (position >= end) {
+            throw error("Unterminated string");
+         }
+         position++;
+         return start;
+      }
+
+      /**
+       * Consumes a scalar value
+       *
+       * @return The value as text, null for null
+       */
+      String readScalar() {
+         if (peek() == '"') {
+            int start = readString();
+            return decodeString(start, position - 1);
+         }
+         int start = position;
+         while (position < end && data[position] != ',' && data[position] != '}' && data[position] != ']' && data[position] > ' ') {
+            position++;
+         }
+         String value = new String(data, start, position - start, StandardCharsets.US_ASCII);
+         return "null".equals(value) ? null : value;
+      }
+
+      /**
+       * Consumes any value
+       */
+      void skipValue() {
+         int c = peek();
+         if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+               c = data[position];
+               if (c == '"') {
+                  readString();
+                  continue;
+               } else if (c == '{' || c == '[') {
+                  depth++;
+               } else if (c == '}' || c == ']') {
+                  depth--;
+               }
+               position++;
+            } while (depth > 0 && position < end);
+            if (depth > 0) {
+               throw error("Unterminated value");
+            }
+         } else {
+            readScalar();
+         }
+      }
+
+      /**
+       * Walks a value, passing the selected fields to the visitor
+       */
+      void visitValue(int depth, byte[][] fields, HEOSPayloadVisitor visitor) {
+         int c = peek();
+         if (c == '[') {
+            position++;
+            while (nextMember(']')) {
+               visitValue(depth, fields, visitor);
+            }
+         } else if (c == '{') {
+            position++;
+            while (nextMember('}')) {
+               int keyStart = readString();
+               int keyEnd = position - 1;
+               expect(':');
+               c = peek();
+               if (c == '{' || c == '[') {
+                  visitValue(depth + 1, fields, visitor);
+                  continue;
+               }
+               int field = -1;
+               for (int i = 0; i < fields.length && field < 0; i++) {
+                  field = matches(keyStart, keyEnd, fields[i]) ? i : -1;
+               }
+               if (field < 0) {
+                  skipValue();
+               } else {
+                  String value = readScalar();
+                  if (value != null) {
+                     visitor.value(depth + 1, field, value);
+                  }
+               }
+            }
+            visitor.endObject(depth + 1);
+         } else {
+            skipValue();
+         }
+      }
+
+      /**
+       * @return True if the (unescaped) string content between start and end equals the key
+       */
+      boolean matches(int start, int stop, byte[] key) {
+         if (stop - start != key.length) {
+            return false;
+         }
+         for (int i = 0; i < key.length; i++) {
+            if (data[start + i] != key[i]) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      /**
+       * Decodes string content, handling escapes
+       */
+      String decodeString(int start, int stop) {
+         int escape = start;
+         while (escape < stop && data[escape] != '\\') {
+            escape++;
+         }
+         if (escape == stop) {
+            return new String(data, start, stop - start, StandardCharsets.UTF_8);
+         }
+         StringBuilder builder = new StringBuilder(stop - start);
+         builder.append(new String(data, start, escape - start, StandardCharsets.UTF_8));
+         int i = escape;
+         while (i < stop) {
+            if (data[i] != '\\') {
+               int next = i;
+               while (next < stop && data[next] != '\\') {
+                  next++;
+               }
+               builder.append(new String(data, i, next - i, StandardCharsets.UTF_8));
+               i = next;
+               continue;
+            }
+            char c = (char) data[i + 1];
+            switch (c) {
+            case 'b':
+               builder.append('\b');
+               break;
+            case 'f':
+               builder.append('\f');
+               break;
+            case 'n':
+               builder.append('\n');
+               break;
+            case 'r':
+               builder.append('\r');
+               break;
+            case 't':
+               builder.append('\t');
+               break;
+            case 'u':
+               if (i + 5 >= stop) {
+                  throw error("truncated escape");
+               }
+               builder.append((char) Integer.parseInt(new String(data, i + 2, 4, StandardCharsets.US_ASCII), 16));
+               i += 4;
+               break;
+            default:
+               builder.append(c);
+               break;
+            }
+            i += 2;
+         }
+         return builder.toString();
+      }
+
+      /**
+       * @return An exception for a decoding error at the current position
+       */
+      IllegalArgumentException error(String reason) {
+         return new IllegalArgumentException(reason + " at position " + position + " of HEOS message");
+      }
+   }
+
+}
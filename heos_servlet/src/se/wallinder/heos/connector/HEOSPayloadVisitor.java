@@ -0,0 +1,25 @@
+package se.wallinder.heos.connector;
+
+/**
+ * Receives the selected fields of a HEOS payload while it is being decoded. Objects directly in the payload (or the payload object itself) have
+ * depth 1, objects nested inside those have depth 2 and so on, arrays don't add to the depth.
+ */
+public interface HEOSPayloadVisitor {
+
+   /**
+    * Called for every selected field with a scalar value
+    *
+    * @param depth The depth of the object containing the field
+    * @param field The index of the field in the selected fields
+    * @param value The value (numbers and booleans as their text)
+    */
+   void value(int depth, int field, String value);
+
+   /**
+    * Called when an object ends
+    *
+    * @param depth The depth of the object
+    */
+   void endObject(int depth);
+
+}
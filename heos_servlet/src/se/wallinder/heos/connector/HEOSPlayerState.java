@@ -0,0 +1,96 @@
+package se.wallinder.heos.connector;
+
+/**
+ * The known state of a HEOS player, a value is null (or -1) when not known
+ */
+public class HEOSPlayerState {
+
+   private final String playerID;
+   private volatile String playState = null;
+   private volatile int volume = -1;
+   private volatile Boolean mute = null;
+   private volatile String nowPlaying = null;
+
+   /**
+    * Constructor
+    *
+    * @param playerID The ID of the player
+    */
+   public HEOSPlayerState(String playerID) {
+      this.playerID = playerID;
+   }
+
+   /**
+    * @return The ID of the player
+    */
+   public String getPlayerID() {
+      return playerID;
+   }
+
+   /**
+    * @return The play state (play, pause or stop) or null if not known
+    */
+   public String getPlayState() {
+      return playState;
+   }
+
+   /**
+    * @param playState The play state
+    */
+   void setPlayState(String playState) {
+      this.playState = playState;
+   }
+
+   /**
+    * @return The volume (0 to 100) or -1 if not known
+    */
+   public int getVolume() {
+      return volume;
+   }
+
+   /**
+    * @param volume The volume
+    */
+   void setVolume(int volume) {
+      this.volume = volume;
+   }
+
+   /**
+    * @return True if muted, false if not, null if not known
+    */
+   public Boolean getMute() {
+      return mute;
+   }
+
+   /**
+    * @param mute True if muted
+    */
+   void setMute(Boolean mute) {
+      this.mute = mute;
+   }
+
+   /**
+    * @return The now playing station or song, empty if nothing, null if not known
+    */
+   public String getNowPlaying() {
+      return nowPlaying;
+   }
+
+   /**
+    * @param nowPlaying The now playing station or song
+    */
+   void setNowPlaying(String nowPlaying) {
+      this.nowPlaying = nowPlaying;
+   }
+
+   /**
+    * Forgets everything known about the player
+    */
+   void clear() {
+      playState = null;
+      volume = -1;
+      mute = null;
+      nowPlaying = null;
+   }
+
+}
@@ -0,0 +1,122 @@
+package se.wallinder.heos.connector;
+
+import static se.wallinder.heos.util.ServletConstants.HEOS_EVENT_NOW_PLAYING_CHANGED;
+import static se.wallinder.heos.util.ServletConstants.HEOS_EVENT_PLAYER_STATE_CHANGED;
+import static se.wallinder.heos.util.ServletConstants.HEOS_EVENT_VOLUME_CHANGED;
+import static se.wallinder.heos.util.ServletConstants.HEOS_STATE_PLAY;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory model of the HEOS players, kept up to date by HEOS change events. The model is only enabled while registered for change events,
+ * when disabled nothing is known and all queries must go to the HEOS system.
+ */
+public class HEOSStateCache {
+
+   private final ConcurrentMap<String, HEOSPlayerState> players = new ConcurrentHashMap<>();
+   private volatile boolean enabled = false;
+
+   /**
+    * @return True if the model is kept up to date by change events, false if not
+    */
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   /**
+    * Enables or disables the model, everything known is forgotten
+    *
+    * @param enabled True when registered for change events, false when events may be missed
+    */
+   void setEnabled(boolean enabled) {
+      for (HEOSPlayerState player : players.values()) {
+         player.clear();
+      }
+      this.enabled = enabled;
+   }
+
+   /**
+    * @param playerID The ID of the player
+    * @return The state of the player, null if the model is disabled
+    */
+   public HEOSPlayerState getPlayer(String playerID) {
+      if (!enabled) {
+         return null;
+      }
+      HEOSPlayerState player = players.get(playerID);
+      if (player == null) {
+         HEOSPlayerState newPlayer = new HEOSPlayerState(playerID);
+         player = players.putIfAbsent(playerID, newPlayer);
+         player = player != null ? player : newPlayer;
+      }
+      return player;
+   }
+
+   /**
+    * Applies a play state set by ourselves, without waiting for the change event
+    *
+    * @param playerID The ID of the player
+    * @param playState The play state
+    */
+   void playStateChanged(String playerID, String playState) {
+      HEOSPlayerState player = getPlayer(playerID);
+      if (player != null) {
+         player.setPlayState(playState);
+      }
+   }
+
+   /**
+    * Applies a volume set by ourselves, without waiting for the change event
+    *
+    * @param playerID The ID of the player
+    * @param volume The volume
+    */
+   void volumeChanged(String playerID, int volume) {
+      HEOSPlayerState player = getPlayer(playerID);
+      if (player != null) {
+         player.setVolume(volume);
+      }
+   }
+
+   /**
+    * Applies new media started by ourselves, the player is playing but what is not yet known
+    *
+    * @param playerID The ID of the player
+    */
+   void mediaChanged(String playerID) {
+      HEOSPlayerState player = getPlayer(playerID);
+      if (player != null) {
+         player.setPlayState(HEOS_STATE_PLAY);
+         player.setNowPlaying(null);
+      }
+   }
+
+   /**
+    * Updates the model from a change event
+    *
+    * @param event The event
+    */
+   void update(HEOSMessage event) {
+      String command = event.getCommand();
+      String playerID = event.getMessageValue("pid");
+      HEOSPlayerState player = playerID != null ? getPlayer(playerID) : null;
+      if (player == null) {
+         return;
+      }
+      if (HEOS_EVENT_PLAYER_STATE_CHANGED.equals(command)) {
+         player.setPlayState(event.getPlayState());
+      } else if (HEOS_EVENT_VOLUME_CHANGED.equals(command)) {
+         try {
+            player.setVolume(Integer.parseInt(event.getMessageValue("level")));
+         } catch (NumberFormatException nfe) {
+            player.setVolume(-1);
+         }
+         String mute = event.getMessageValue("mute");
+         player.setMute(mute != null ? "on".equals(mute) : null);
+      } else if (HEOS_EVENT_NOW_PLAYING_CHANGED.equals(command)) {
+         player.setNowPlaying(null);
+      }
+   }
+
+}
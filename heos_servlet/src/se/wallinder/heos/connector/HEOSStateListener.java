@@ -0,0 +1,15 @@
+package se.wallinder.heos.connector;
+
+/**
+ * Receives notifications when the state model of the HEOS system has changed
+ */
+public interface HEOSStateListener {
+
+   /**
+    * Called on the thread updating the model, must not block
+    *
+    * @param version The new version of the model
+    */
+   void stateChanged(long version);
+
+}
@@ -0,0 +1,271 @@
+package se.wallinder.heos.connector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Versioned model of everything known about the HEOS system, for clients asking for the changes since the version they already have. The
+ * model is made of sections (players, stations, playlists) of items with fields, each field remembers the version it was last changed in.
+ * The version only increases when a value really changes.
+ */
+public class HEOSStateModel {
+
+   public final static String PLAYERS = "players";
+   public final static String STATIONS = "stations";
+   public final static String PLAYLISTS = "playlists";
+   private final static int MAX_REMOVED = 1000;
+   private final Map<String, Map<String, Map<String, Value>>> sections = new TreeMap<>();
+   private final Map<String, Map<String, Long>> removed = new TreeMap<>();
+   private final int maxRemoved;
+   private long version;
+   private long oldestVersion;
+   private int removedCount = 0;
+
+   /**
+    * A value and the version it was changed in
+    */
+   private static class Value {
+
+      private final Object value;
+      private final long version;
+
+      Value(Object value, long version) {
+         this.value = value;
+         this.version = version;
+      }
+   }
+
+   /**
+    * Constructor
+    */
+   public HEOSStateModel() {
+      this(MAX_REMOVED);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param maxRemoved The number of removed items remembered, a client with an older version gets everything
+    */
+   HEOSStateModel(int maxRemoved) {
+      this.maxRemoved = maxRemoved;
+      // Start from the clock, so a version from before a restart is older than every version after it
+      this.version = System.currentTimeMillis();
+      this.oldestVersion = version;
+   }
+
+   /**
+    * @return The current version
+    */
+   public synchronized long getVersion() {
+      return version;
+   }
+
+   /**
+    * Gets the changes since a version
+    *
+    * @param sinceVersion The version the client has, 0 (or a version not known) for everything
+    * @return The changes, everything if the changes since the version are no longer known
+    */
+   public synchronized Changes getChanges(long sinceVersion) {
+      boolean full = sinceVersion < oldestVersion || sinceVersion > version;
+      long since = full ? Long.MIN_VALUE : sinceVersion;
+      Map<String, Map<String, Map<String, Object>>> values = new LinkedHashMap<>();
+      for (Map.Entry<String, Map<String, Map<String, Value>>> section : sections.entrySet()) {
+         Map<String, Map<String, Object>> items = new LinkedHashMap<>();
+         for (Map.Entry<String, Map<String, Value>> item : section.getValue().entrySet()) {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            for (Map.Entry<String, Value> field : item.getValue().entrySet()) {
+               if (field.getValue().version > since) {
+                  fields.put(field.getKey(), field.getValue().value);
+               }
+            }
+            if (!fields.isEmpty()) {
+               items.put(item.getKey(), fields);
+            }
+         }
+         if (full || !items.isEmpty()) {
+            values.put(section.getKey(), items);
+         }
+      }
+      Map<String, List<String>> removedItems = new LinkedHashMap<>();
+      if (!full) {
+         for (Map.Entry<String, Map<String, Long>> section : removed.entrySet()) {
+            List<String> items = new ArrayList<>();
+            for (Map.Entry<String, Long> item : section.getValue().entrySet()) {
+               if (item.getValue() > since) {
+                  items.add(item.getKey());
+               }
+            }
+            if (!items.isEmpty()) {
+               removedItems.put(section.getKey(), items);
+            }
+         }
+      }
+      return new Changes(version, full, values, removedItems);
+   }
+
+   /**
+    * Sets a field of an item, the version is increased if the value changed
+    *
+    * @param section The section
+    * @param itemID The ID of the item
+    * @param field The field
+    * @param value The value, null if not known
+    */
+   synchronized void set(String section, String itemID, String field, Object value) {
+      Map<String, Map<String, Value>> items = sections.get(section);
+      if (items == null) {
+         items = new TreeMap<>();
+         sections.put(section, items);
+      }
+      Map<String, Value> fields = items.get(itemID);
+      if (fields == null) {
+         fields = new TreeMap<>();
+         items.put(itemID, fields);
+         Map<String, Long> removedItems = removed.get(section);
+         if (removedItems != null && removedItems.remove(itemID) != null) {
+            removedCount--;
+         }
+      }
+      Value current = fields.get(field);
+      if (current != null && (current.value == null ? value == null : current.value.equals(value))) {
+         return;
+      }
+      fields.put(field, new Value(value, ++version));
+   }
+
+   /**
+    * Sets the name of all items of a section, items not in the section any more are removed
+    *
+    * @param section The section
+    * @param names The names by item ID, null if not known (nothing is changed)
+    * @param field The field of the name
+    */
+   synchronized void setAll(String section, Map<String, String> names, String field) {
+      if (names == null) {
+         return;
+      }
+      for (Map.Entry<String, String> name : names.entrySet()) {
+         set(section, name.getKey(), field, name.getValue());
+      }
+      retain(section, names.keySet());
+   }
+
+   /**
+    * Removes the items of a section not in a collection
+    *
+    * @param section The section
+    * @param itemIDs The ID:s of the items to keep
+    */
+   synchronized void retain(String section, Collection<String> itemIDs) {
+      Map<String, Map<String, Value>> items = sections.get(section);
+      if (items == null) {
+         return;
+      }
+      Set<String> keep = new HashSet<>(itemIDs);
+      for (Iterator<String> iterator = items.keySet().iterator(); iterator.hasNext();) {
+         String itemID = iterator.next();
+         if (keep.contains(itemID)) {
+            continue;
+         }
+         iterator.remove();
+         Map<String, Long> removedItems = removed.get(section);
+         if (removedItems == null) {
+            removedItems = new TreeMap<>();
+            removed.put(section, removedItems);
+         }
+         removedItems.put(itemID, ++version);
+         removedCount++;
+      }
+      forgetRemoved();
+   }
+
+   /**
+    * Forgets the oldest removed items when too many, the changes before them are then no longer known
+    */
+   private void forgetRemoved() {
+      while (removedCount > maxRemoved) {
+         String oldestSection = null;
+         String oldestItem = null;
+         long oldest = Long.MAX_VALUE;
+         for (Map.Entry<String, Map<String, Long>> section : removed.entrySet()) {
+            for (Map.Entry<String, Long> item : section.getValue().entrySet()) {
+               if (item.getValue() < oldest) {
+                  oldestSection = section.getKey();
+                  oldestItem = item.getKey();
+                  oldest = item.getValue();
+               }
+            }
+         }
+         removed.get(oldestSection).remove(oldestItem);
+         removedCount--;
+         oldestVersion = Math.max(oldestVersion, oldest);
+      }
+   }
+
+   /**
+    * The changes since a version
+    */
+   public static class Changes {
+
+      private final long version;
+      private final boolean full;
+      private final Map<String, Map<String, Map<String, Object>>> values;
+      private final Map<String, List<String>> removed;
+
+      /**
+       * Constructor
+       */
+      Changes(long version, boolean full, Map<String, Map<String, Map<String, Object>>> values, Map<String, List<String>> removed) {
+         this.version = version;
+         this.full = full;
+         this.values = Collections.unmodifiableMap(values);
+         this.removed = Collections.unmodifiableMap(removed);
+      }
+
+      /**
+       * @return The version of the model, to ask for the next changes with
+       */
+      public long getVersion() {
+         return version;
+      }
+
+      /**
+       * @return True if everything, false if only the changes
+       */
+      public boolean isFull() {
+         return full;
+      }
+
+      /**
+       * @return True if nothing has changed
+       */
+      public boolean isEmpty() {
+         return !full && values.isEmpty() && removed.isEmpty();
+      }
+
+      /**
+       * @return The changed fields by section and item ID
+       */
+      public Map<String, Map<String, Map<String, Object>>> getValues() {
+         return values;
+      }
+
+      /**
+       * @return The ID:s of the removed items by section
+       */
+      public Map<String, List<String>> getRemoved() {
+         return removed;
+      }
+   }
+
+}
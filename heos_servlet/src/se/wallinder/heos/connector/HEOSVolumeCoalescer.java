@@ -0,0 +1,204 @@
+package se.wallinder.heos.connector;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces volume changes per player. While a volume change is being sent, newer changes replace each other and only the latest is sent
+ * when the previous one is done (and the window has passed), so a burst of slider changes never queues up on the HEOS connection. A volume
+ * pushed to a Fibaro slider can be registered as an expected echo, the matching volume change coming back from the slider is then ignored.
+ */
+class HEOSVolumeCoalescer {
+
+   private final Sender sender;
+   private final long windowInNanos;
+   private final long echoTimeoutInNanos;
+   private final Map<String, Slot> slots = new HashMap<>();
+
+   /**
+    * Sends a volume change to the HEOS system
+    */
+   interface Sender {
+
+      /**
+       * @param playerID The ID of the player
+       * @param volume The volume
+       * @return True if ok, false if not
+       */
+      boolean send(String playerID, int volume);
+   }
+
+   /**
+    * Constructor
+    *
+    * @param sender Sends the volume changes
+    * @param windowInMs The minimum time between two volume changes of a player
+    * @param echoTimeoutInMs The time an expected echo is waited for
+    */
+   HEOSVolumeCoalescer(Sender sender, long windowInMs, long echoTimeoutInMs) {
+      this.sender = sender;
+      this.windowInNanos = TimeUnit.MILLISECONDS.toNanos(windowInMs);
+      this.echoTimeoutInNanos = TimeUnit.MILLISECONDS.toNanos(echoTimeoutInMs);
+   }
+
+   /**
+    * Sets the volume of a player, returns when the volume has been sent or replaced by a newer volume
+    *
+    * @param playerID The ID of the player
+    * @param volume The volume
+    * @param knownVolume The volume the player is known to have, -1 if not known
+    * @return True if ok or replaced by a newer volume, false if not
+    */
+   boolean setVolume(String playerID, int volume, int knownVolume) {
+      Slot slot = slot(playerID);
+      long sequence;
+      slot.lock.lock();
+      try {
+         long now = System.nanoTime();
+         if (slot.echoVolume >= 0 && now - slot.echoDeadline < 0 && slot.echoVolume == volume) {
+            // Our own volume coming back from the slider
+            slot.echoVolume = -1;
+            return true;
+         }
+         slot.echoVolume = -1;
+         if (!slot.sending && slot.latestSequence == slot.sentSequence && volume == knownVolume) {
+            // Nothing to change
+            return true;
+         }
+         sequence = ++slot.latestSequence;
+         slot.latestVolume = volume;
+         if (slot.sending) {
+            // The sending thread will pick it up, wait until sent or replaced
+            while (slot.sentSequence < sequence) {
+               try {
+                  slot.changed.await();
+               } catch (InterruptedException ie) {
+                  Thread.currentThread().interrupt();
+                  return false;
+               }
+            }
+            return slot.lastSentSequence != sequence || slot.lastResult;
+         }
+         slot.sending = true;
+      } finally {
+         slot.lock.unlock();
+      }
+      return sendLatest(playerID, slot, sequence);
+   }
+
+   /**
+    * Registers a volume which has been pushed to a Fibaro slider, so the echo can be ignored
+    *
+    * @param playerID The ID of the player
+    * @param volume The volume
+    */
+   void expectEcho(String playerID, int volume) {
+      Slot slot = slot(playerID);
+      slot.lock.lock();
+      try {
+         slot.echoVolume = volume;
+         slot.echoDeadline = System.nanoTime() + echoTimeoutInNanos;
+      } finally {
+         slot.lock.unlock();
+      }
+   }
+
+   /**
+    * Sends the latest volume until there is no newer volume, only called by the thread owning the slot
+    *
+    * @return The result of the volume with the given sequence, true if replaced
+    */
+   private boolean sendLatest(String playerID, Slot slot, long sequence) {
+      boolean result = true;
+      boolean done = false;
+      try {
+         while (true) {
+            int volume;
+            long sending;
+            slot.lock.lock();
+            try {
+               // Wait for the window to pass, newer volumes may replace the latest meanwhile
+               long wait;
+               while ((wait = slot.lastSent + windowInNanos - System.nanoTime()) > 0) {
+                  slot.changed.awaitNanos(wait);
+               }
+               if (slot.sentSequence == slot.latestSequence) {
+                  slot.sending = false;
+                  done = true;
+                  return result;
+               }
+               volume = slot.latestVolume;
+               sending = slot.latestSequence;
+               slot.lastSent = System.nanoTime();
+            } finally {
+               slot.lock.unlock();
+            }
+            boolean sent = sender.send(playerID, volume);
+            slot.lock.lock();
+            try {
+               slot.sentSequence = sending;
+               slot.lastSentSequence = sending;
+               slot.lastResult = sent;
+               slot.changed.signalAll();
+            } finally {
+               slot.lock.unlock();
+            }
+            if (sending == sequence) {
+               result = sent;
+            }
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         return false;
+      } finally {
+         if (!done) {
+            // Release the waiting threads and give up the slot
+            slot.lock.lock();
+            try {
+               slot.sending = false;
+               slot.sentSequence = slot.latestSequence;
+               slot.lastSentSequence = slot.latestSequence;
+               slot.lastResult = false;
+               slot.changed.signalAll();
+            } finally {
+               slot.lock.unlock();
+            }
+         }
+      }
+   }
+
+   /**
+    * @return The slot of a player, created if needed
+    */
+   private synchronized Slot slot(String playerID) {
+      Slot slot = slots.get(playerID);
+      if (slot == null) {
+         slot = new Slot();
+         slots.put(playerID, slot);
+      }
+      return slot;
+   }
+
+   /**
+    * The volume changes of a player
+    */
+   private static class Slot {
+
+      // Locks instead of monitors, so a waiting virtual thread never pins its carrier
+      private final ReentrantLock lock = new ReentrantLock();
+      private final Condition changed = lock.newCondition();
+      private boolean sending = false;
+      private int latestVolume = -1;
+      private long latestSequence = 0;
+      private long sentSequence = 0;
+      private long lastSentSequence = 0;
+      private boolean lastResult = true;
+      private long lastSent = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+      private int echoVolume = -1;
+      private long echoDeadline = 0;
+   }
+
+}
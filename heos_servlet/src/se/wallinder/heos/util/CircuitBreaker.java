@@ -0,0 +1,322 @@
+package se.wallinder.heos.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A circuit breaker in front of a system the servlet calls. While closed, calls are let through and their outcomes kept for the latest
+ * calls; when too many of them failed or were slow the circuit opens and calls are rejected at once, without waiting for timeouts. When
+ * the circuit has been open for a while one call is let through as a probe, shared by all callers: if it succeeds the circuit closes, if
+ * not it opens again.
+ *
+ * Checking the circuit is a read of a volatile field, outcomes are recorded holding the monitor of the breaker.
+ */
+public class CircuitBreaker {
+
+   /**
+    * The states of a circuit
+    */
+   public static enum State {
+      CLOSED, OPEN, HALF_OPEN;
+   }
+
+   private final static Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+   private final static ServletMetrics.Counter CALLS = ServletMetrics.counter("circuit_breaker_calls_total",
+         "Calls through the circuit breakers, by outcome", "breaker", "result");
+   private final static ServletMetrics.Counter TRANSITIONS = ServletMetrics.counter("circuit_breaker_transitions_total",
+         "State changes of the circuit breakers, by new state", "breaker", "state");
+   private final static int MAX_TRANSITIONS = 10;
+   private final static byte SUCCESS = 0;
+   private final static byte FAILURE = 1;
+   private final static byte SLOW = 2;
+   private final String name;
+   private final int minimumCalls;
+   private final int failureRateThreshold;
+   private final long slowCallInNanos;
+   private final int slowCallRateThreshold;
+   private final long openInNanos;
+   // The outcomes of the latest calls, a ring
+   private final byte[] outcomes;
+   private int next = 0;
+   private int calls = 0;
+   private int failures = 0;
+   private int slowCalls = 0;
+   private final Deque<Transition> transitions = new ArrayDeque<>();
+   private long transitionCount = 0;
+   private volatile State state = State.CLOSED;
+   // When open, the time the probe is let through; when half open, the time a probe not answered is given up
+   private volatile long probeAt = 0;
+
+   /**
+    * Constructor
+    *
+    * @param name The name of the system called, used in the metrics
+    * @param windowSize The number of latest calls the rates are calculated over
+    * @param minimumCalls The number of calls needed before the circuit may open
+    * @param failureRateThreshold The percentage of failed calls which opens the circuit
+    * @param slowCallInMs The time after which a call is slow
+    * @param slowCallRateThreshold The percentage of slow calls which opens the circuit
+    * @param openInMs The time the circuit stays open before a probe is let through
+    */
+   public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold, long slowCallInMs, int slowCallRateThreshold,
+         long openInMs) {
+      LOGGER.setLevel(Level.WARNING);
+      this.name = name;
+      this.outcomes = new byte[Math.max(1, windowSize)];
+      this.minimumCalls = Math.max(1, Math.min(minimumCalls, outcomes.length));
+      this.failureRateThreshold = failureRateThreshold;
+      this.slowCallInNanos = TimeUnit.MILLISECONDS.toNanos(slowCallInMs);
+      this.slowCallRateThreshold = slowCallRateThreshold;
+      this.openInNanos = TimeUnit.MILLISECONDS.toNanos(openInMs);
+   }
+
+   /**
+    * Finds out if a call would be let through, without taking the probe
+    *
+    * @return True if closed, or open and it is time for the probe
+    */
+   public boolean isCallPermitted() {
+      State current = state;
+      return current == State.CLOSED || (current == State.OPEN && System.nanoTime() - probeAt >= 0);
+   }
+
+   /**
+    * Asks to make a call, the outcome of a call let through must be recorded with {@link #onSuccess(long)} or {@link #onFailure()}
+    *
+    * @return True if the call may be made, false if rejected
+    */
+   public boolean tryAcquire() {
+      if (state == State.CLOSED) {
+         return true;
+      }
+      // Open and time for the probe, or the probe never answered
+      if (System.nanoTime() - probeAt >= 0) {
+         synchronized (this) {
+            long now = System.nanoTime();
+            if (state != State.CLOSED && now - probeAt >= 0) {
+               if (state == State.OPEN) {
+                  transition(State.HALF_OPEN, "probing");
+               }
+               probeAt = now + openInNanos;
+               return true;
+            }
+            if (state == State.CLOSED) {
+               return true;
+            }
+         }
+      }
+      CALLS.inc(name, "rejected");
+      return false;
+   }
+
+   /**
+    * Records a call answered
+    *
+    * @param elapsedInNanos The time of the call
+    */
+   public void onSuccess(long elapsedInNanos) {
+      record(elapsedInNanos > slowCallInNanos ? SLOW : SUCCESS);
+   }
+
+   /**
+    * Records a call not answered, e.g. timed out or the connection lost, failed however long it took
+    */
+   public void onFailure() {
+      record(FAILURE);
+   }
+
+   /**
+    * @return The state
+    */
+   public State getState() {
+      return state;
+   }
+
+   /**
+    * @return The time until the probe is let through in seconds, rounded up, 0 if closed
+    */
+   public long getRetryAfterInSeconds() {
+      if (state == State.CLOSED) {
+         return 0;
+      }
+      long remaining = probeAt - System.nanoTime();
+      return remaining > 0 ? (TimeUnit.NANOSECONDS.toMillis(remaining) + 999) / 1000 : 1;
+   }
+
+   /**
+    * @return The number of state changes so far
+    */
+   public synchronized long getTransitionCount() {
+      return transitionCount;
+   }
+
+   /**
+    * @return The latest state changes, oldest first
+    */
+   public synchronized List<Transition> getTransitions() {
+      return new ArrayList<>(transitions);
+   }
+
+   /**
+    * @return The state and the rates of the latest calls, e.g. "closed, 10% failed and 0% slow of 20 calls"
+    */
+   @Override
+   public synchronized String toString() {
+      return state.name().toLowerCase().replace('_', ' ') + ", " + percent(failures) + "% failed and " + percent(slowCalls) + "% slow of " + calls
+            + " calls";
+   }
+
+   /**
+    * Records the outcome of a call, and opens or closes the circuit
+    */
+   private void record(byte outcome) {
+      CALLS.inc(name, outcome == SUCCESS ? "success" : outcome == SLOW ? "slow" : "failure");
+      synchronized (this) {
+         switch (state) {
+         case HALF_OPEN:
+            // The probe, or a call made before the circuit opened, decides
+            if (outcome == SUCCESS) {
+               reset();
+               transition(State.CLOSED, "probe succeeded");
+            } else {
+               open(outcome == SLOW ? "probe slow" : "probe failed");
+            }
+            return;
+         case OPEN:
+            // Calls made before the circuit opened, answered late
+            return;
+         default:
+            break;
+         }
+         if (calls == outcomes.length) {
+            remove(outcomes[next]);
+         } else {
+            calls++;
+         }
+         outcomes[next] = outcome;
+         failures += outcome == FAILURE ? 1 : 0;
+         slowCalls += outcome == SLOW ? 1 : 0;
+         next = (next + 1) % outcomes.length;
+         if (calls < minimumCalls) {
+            return;
+         }
+         if (percent(failures) >= failureRateThreshold) {
+            open(percent(failures) + "% of " + calls + " calls failed");
+         } else if (percent(slowCalls) >= slowCallRateThreshold) {
+            open(percent(slowCalls) + "% of " + calls + " calls slow");
+         }
+      }
+   }
+
+   /**
+    * Opens the circuit, only called holding the monitor
+    */
+   private void open(String reason) {
+      probeAt = System.nanoTime() + openInNanos;
+      reset();
+      transition(State.OPEN, reason);
+   }
+
+   /**
+    * Forgets the outcomes of the latest calls, only called holding the monitor
+    */
+   private void reset() {
+      next = 0;
+      calls = 0;
+      failures = 0;
+      slowCalls = 0;
+   }
+
+   /**
+    * Removes an outcome leaving the window, only called holding the monitor
+    */
+   private void remove(byte outcome) {
+      failures -= outcome == FAILURE ? 1 : 0;
+      slowCalls -= outcome == SLOW ? 1 : 0;
+   }
+
+   /**
+    * Changes the state, only called holding the monitor
+    */
+   private void transition(State to, String reason) {
+      Transition transition = new Transition(System.currentTimeMillis(), state, to, reason);
+      state = to;
+      transitionCount++;
+      transitions.addLast(transition);
+      if (transitions.size() > MAX_TRANSITIONS) {
+         transitions.removeFirst();
+      }
+      TRANSITIONS.inc(name, to.name().toLowerCase());
+      LOGGER.warning("Circuit " + name + " " + transition);
+   }
+
+   /**
+    * @return The percentage of the latest calls, only called holding the monitor
+    */
+   private int percent(int count) {
+      return calls > 0 ? count * 100 / calls : 0;
+   }
+
+   /**
+    * A change of state
+    */
+   public static class Transition {
+
+      private final long time;
+      private final State from;
+      private final State to;
+      private final String reason;
+
+      /**
+       * Constructor
+       */
+      Transition(long time, State from, State to, String reason) {
+         this.time = time;
+         this.from = from;
+         this.to = to;
+         this.reason = reason;
+      }
+
+      /**
+       * @return The time of the change, ms since 1970
+       */
+      public long getTime() {
+         return time;
+      }
+
+      /**
+       * @return The state before
+       */
+      public State getFrom() {
+         return from;
+      }
+
+      /**
+       * @return The state after
+       */
+      public State getTo() {
+         return to;
+      }
+
+      /**
+       * @return Why the state changed
+       */
+      public String getReason() {
+         return reason;
+      }
+
+      /**
+       * @return The change, e.g. "closed to open (60% of 20 calls failed)"
+       */
+      @Override
+      public String toString() {
+         return from.name().toLowerCase().replace('_', ' ') + " to " + to.name().toLowerCase().replace('_', ' ') + " (" + reason + ")";
+      }
+   }
+
+}
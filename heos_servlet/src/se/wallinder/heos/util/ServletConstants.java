@@ -1,64 +1,136 @@
-package se.wallinder.heos.util;
-
-/**
- * This class contains all constants
- *
- */
-public class ServletConstants {
-
-   private ServletConstants() {
-      // Private constructor
-   }
-
-   /***********
-    * SERVLET *
-    ***********/
-
-   // Request parameters
-   public static final String SERVLET_VERSION = "1.2.0";
-   public static final String REQUEST_PARAM_PLAYER = "player";
-   public static final String REQUEST_PARAM_COMMAND = "command";
-   public static final String REQUEST_PARAM_STATION = "station";
-   public static final String REQUEST_PARAM_VOLUME = "volume";
-   public static final String REQUEST_PARAM_INPUT_PLAYER = "inputplayer";
-   public static final String REQUEST_PARAM_INPUT_NAME = "inputname";
-   public static final String REQUEST_PARAM_PLAYLIST = "playlist";
-   public static final String REQUEST_PARAM_VIRTUAL_DEVICE = "vd";
-   public static final String REQUEST_PARAM_LABEL_TEXT = "labeltext";
-
-   /********
-    * HEOS *
-    ********/
-
-   // Enum for HEOS commands
-   public static enum HEOSCommands {
-      PLAY(), STOP(), VOLUME(), STATION(), PLAYLIST(), INPUT(), ALARM(), TRIGGER();
-   }
-
-   // HEOS specifics
-   public static final int HEOS_PORT = 1255;
-   public static final int HEOS_SLEEPTIME_IN_MS = 100;
-   public static final int HEOS_TIMEOUT_IN_MS = 5000;
-   public static final int HEOS_DEFAULT_VOLUME = 10;
-   public static final String HEOS_PLAYLIST_ID = "1025";
-   public static final String HEOS_FAVORITES_ID = "1028";
-   public static final String HEOS_TYPE_STATION = "station";
-   public static final String HEOS_TYPE_PLAYLIST = "playlist";
-
-   // HEOS command results
-   public static final String HEOS_PREFIX = "heos://";
-   public static final String HEOS_RESULT_SIGNED_OUT = "\"message\": \"signed_out\"";
-   public static final String HEOS_RESULT_NO_GROUPS = "\"payload\": []";
-   public static final String HEOS_RESULT_STATE_PLAY = "state=play";
-   public static final String HEOS_RESULT_STATE_STOP = "state=stop";
-   public static final String HEOS_CMD_UNDER_PROCESS = "\"message\": \"command under process";
-   public static final String HEOS_RESULT_SUCCESS = "\"result\": \"success\"";
-
-   /**********
-    * FIBARO *
-    **********/
-
-   // Slider and label
-   public static final String FIBARO_VD_SLIDER_ID = "slider";
-   public static final String FIBARO_VD_LABEL_ID = "label";
-}
+package se.wallinder.heos.util;
+
+/**
+ * This class contains all constants
+ *
+ */
+public class ServletConstants {
+
+   private ServletConstants() {
+      // Private constructor
+   }
+
+   /***********
+    * SERVLET *
+    ***********/
+
+   // Request parameters
+   public static final String SERVLET_VERSION = "1.2.0";
+   public static final int STATUS_REFRESH_IN_MS = 30 * 1000;
+   public static final String REQUEST_PARAM_PLAYER = "player";
+   public static final String REQUEST_PARAM_COMMAND = "command";
+   public static final String REQUEST_PARAM_STATION = "station";
+   public static final String REQUEST_PARAM_VOLUME = "volume";
+   public static final String REQUEST_PARAM_INPUT_PLAYER = "inputplayer";
+   public static final String REQUEST_PARAM_INPUT_NAME = "inputname";
+   public static final String REQUEST_PARAM_PLAYLIST = "playlist";
+   public static final String REQUEST_PARAM_VIRTUAL_DEVICE = "vd";
+   public static final String REQUEST_PARAM_LABEL_TEXT = "labeltext";
+   public static final String REQUEST_PARAM_SCENE = "scene";
+   public static final String REQUEST_PARAM_MEMBERS = "members";
+   public static final String REQUEST_PARAM_REFRESH = "refresh";
+   public static final String REQUEST_PARAM_SINCE = "since";
+   public static final String REQUEST_PARAM_PLAYERS = "players";
+   public static final String REQUEST_PARAM_MODE = "mode";
+   public static final String REQUEST_PARAM_DEADLINE = "deadline";
+
+   // Request paths
+   public static final String REQUEST_PATH_BATCH = "/batch";
+   public static final String REQUEST_PATH_SCENE = "/scene";
+   public static final String REQUEST_PATH_STATE = "/state";
+   public static final String REQUEST_PATH_EVENTS = "/events";
+   public static final String REQUEST_PATH_METRICS = "/metrics";
+
+   // Commands
+   public static final int COMMAND_THREADS = 4;
+   // With virtual threads a thread per command, waiting for the HEOS system is cheap
+   public static final int COMMAND_VIRTUAL_THREADS = 512;
+   public static final int COMMAND_QUEUE_SIZE = 32;
+   public static final int COMMAND_DEADLINE_IN_MS = 20 * 1000;
+   public static final int COMMAND_MAX_DEADLINE_IN_MS = 60 * 1000;
+
+   // Events
+   public static final String EVENTS_MODE_STREAM = "stream";
+   public static final int EVENTS_POLL_TIMEOUT_IN_MS = 25 * 1000;
+   public static final int EVENTS_HEARTBEAT_IN_MS = 15 * 1000;
+   public static final int EVENTS_MAX_SUBSCRIBERS = 1000;
+   public static final int EVENTS_MAX_BUFFERED_BYTES = 64 * 1024;
+
+   // Recording
+   public static final int RECORD_QUEUE_SIZE = 10000;
+
+   // Circuit breakers
+   public static final int CIRCUIT_WINDOW_SIZE = 10;
+   public static final int CIRCUIT_MINIMUM_CALLS = 5;
+   public static final int CIRCUIT_FAILURE_RATE = 50;
+   public static final int CIRCUIT_SLOW_CALL_RATE = 80;
+   public static final int CIRCUIT_OPEN_IN_MS = 10 * 1000;
+
+   /********
+    * HEOS *
+    ********/
+
+   // Enum for HEOS commands
+   public static enum HEOSCommands {
+      PLAY(), STOP(), VOLUME(), STATION(), PLAYLIST(), INPUT(), ALARM(), TRIGGER(), GROUP();
+   }
+
+   // HEOS specifics
+   public static final int HEOS_PORT = 1255;
+   public static final int HEOS_TIMEOUT_IN_MS = 5000;
+   public static final int HEOS_ENDPOINT_COOLDOWN_IN_MS = 30 * 1000;
+   public static final int HEOS_HEALTH_CHECK_IN_MS = 1000;
+   public static final int HEOS_IDLE_HEARTBEAT_IN_MS = 30 * 1000;
+   public static final int HEOS_RECONNECT_MIN_IN_MS = 1000;
+   public static final int HEOS_RECONNECT_MAX_IN_MS = 60 * 1000;
+   public static final int HEOS_SLOW_CALL_IN_MS = 3000;
+   public static final int HEOS_DEFAULT_VOLUME = 10;
+   public static final int HEOS_GROUPS_TTL_IN_MS = 60 * 1000;
+   public static final int HEOS_VOLUME_WINDOW_IN_MS = 150;
+   public static final int HEOS_VOLUME_ECHO_TIMEOUT_IN_MS = 10 * 1000;
+   public static final int HEOS_BATCH_THREADS = 8;
+   public static final String HEOS_PLAYLIST_ID = "1025";
+   public static final String HEOS_FAVORITES_ID = "1028";
+   public static final String HEOS_TYPE_STATION = "station";
+   public static final String HEOS_TYPE_PLAYLIST = "playlist";
+
+   // HEOS command plans
+   public static final String HEOS_PLAN_STATION = "station";
+   public static final String HEOS_PLAN_PLAYLIST = "playlist";
+   public static final String HEOS_PLAN_INPUT = "input";
+
+   // HEOS command results
+   public static final String HEOS_PREFIX = "heos://";
+   public static final String HEOS_SEQUENCE = "SEQUENCE";
+   public static final String HEOS_RESULT_SUCCESS = "success";
+   public static final String HEOS_RESULT_FAIL = "fail";
+   public static final String HEOS_MESSAGE_SIGNED_IN = "signed_in";
+   public static final String HEOS_MESSAGE_SIGNED_OUT = "signed_out";
+   public static final String HEOS_STATE_PLAY = "play";
+   public static final String HEOS_STATE_STOP = "stop";
+   public static final String HEOS_ROLE_LEADER = "leader";
+   public static final String HEOS_CMD_UNDER_PROCESS = "command under process";
+   public static final int HEOS_ERROR_USER_NOT_LOGGED_IN = 8;
+
+   // HEOS change events
+   public static final String HEOS_EVENT_PLAYER_STATE_CHANGED = "event/player_state_changed";
+   public static final String HEOS_EVENT_VOLUME_CHANGED = "event/player_volume_changed";
+   public static final String HEOS_EVENT_NOW_PLAYING_CHANGED = "event/player_now_playing_changed";
+   public static final String HEOS_EVENT_GROUPS_CHANGED = "event/groups_changed";
+   public static final String HEOS_EVENT_USER_CHANGED = "event/user_changed";
+
+   /**********
+    * FIBARO *
+    **********/
+
+   // Slider and label
+   public static final String FIBARO_VD_SLIDER_ID = "slider";
+   public static final String FIBARO_VD_LABEL_ID = "label";
+
+   // Update delivery
+   public static final int FIBARO_QUEUE_SIZE = 100;
+   public static final int FIBARO_MAX_RETRIES = 3;
+   public static final int FIBARO_RETRY_DELAY_IN_MS = 500;
+   public static final int FIBARO_TIMEOUT_IN_MS = 5000;
+   public static final int FIBARO_SLOW_CALL_IN_MS = 2000;
+}
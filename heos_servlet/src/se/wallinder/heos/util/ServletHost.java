@@ -0,0 +1,76 @@
+package se.wallinder.heos.util;
+
+/**
+ * A host and port from the settings: host, host:port, an IPv6 address, or an IPv6 address in brackets with or without port ([::1]:1255).
+ * An IPv6 address without brackets is taken as the host only, since its last part cannot be told from a port.
+ */
+public class ServletHost {
+
+   private final String host;
+   private final int port;
+
+   private ServletHost(String host, int port) {
+      this.host = host;
+      this.port = port;
+   }
+
+   /**
+    * Parses a host with optional port
+    *
+    * @param hostAndPort The host, optionally with port
+    * @param defaultPort The port, unless given with the host
+    * @return The host and port
+    * @throws IllegalArgumentException If the host is empty or the port is not a valid port
+    */
+   public static ServletHost parse(String hostAndPort, int defaultPort) {
+      String value = hostAndPort != null ? hostAndPort.trim() : "";
+      String host = value;
+      String port = null;
+      if (value.startsWith("[")) {
+         int end = value.indexOf(']');
+         if (end < 0 || (end + 1 < value.length() && value.charAt(end + 1) != ':')) {
+            throw new IllegalArgumentException("invalid host: " + hostAndPort);
+         }
+         host = value.substring(1, end);
+         port = end + 1 < value.length() ? value.substring(end + 2) : null;
+      } else if (value.indexOf(':') >= 0 && value.indexOf(':') == value.lastIndexOf(':')) {
+         host = value.substring(0, value.indexOf(':'));
+         port = value.substring(value.indexOf(':') + 1);
+      }
+      if (host.isEmpty()) {
+         throw new IllegalArgumentException("invalid host: " + hostAndPort);
+      }
+      return new ServletHost(host, port != null ? parsePort(port, hostAndPort) : defaultPort);
+   }
+
+   /**
+    * @return The port
+    * @throws IllegalArgumentException If not a number from 1 to 65535
+    */
+   private static int parsePort(String port, String hostAndPort) {
+      try {
+         int value = Integer.parseInt(port);
+         if (value > 0 && value <= 0xFFFF) {
+            return value;
+         }
+      } catch (NumberFormatException nfe) {
+         // Invalid, as out of range
+      }
+      throw new IllegalArgumentException("invalid port in host: " + hostAndPort);
+   }
+
+   /**
+    * @return The host, without brackets
+    */
+   public String getHost() {
+      return host;
+   }
+
+   /**
+    * @return The port
+    */
+   public int getPort() {
+      return port;
+   }
+
+}
@@ -0,0 +1,338 @@
+package se.wallinder.heos.util;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the servlet, written in the Prometheus text format. Recording is a map lookup and a few atomic
+ * increments, nothing is allocated for label values already seen.
+ */
+public class ServletMetrics {
+
+   // Upper bounds of the histogram buckets
+   private final static long[] BUCKETS_IN_NANOS = { micros(1000), micros(2500), micros(5000), micros(10000), micros(25000), micros(50000),
+         micros(100000), micros(250000), micros(500000), micros(1000000), micros(2500000), micros(5000000), micros(10000000) };
+   private final static ConcurrentMap<String, Family<?>> FAMILIES = new ConcurrentSkipListMap<>();
+
+   private ServletMetrics() {
+      // Private constructor
+   }
+
+   /**
+    * Gets a counter, registered the first time
+    *
+    * @param name The name (e.g. heos_reconnects_total)
+    * @param help The description
+    * @param labelNames The names of the labels
+    * @return The counter
+    */
+   public static Counter counter(String name, String help, String... labelNames) {
+      return register(new Counter(name, help, labelNames));
+   }
+
+   /**
+    * Gets a latency histogram, registered the first time
+    *
+    * @param name The name (e.g. heos_command_duration_seconds)
+    * @param help The description
+    * @param labelNames The names of the labels
+    * @return The histogram
+    */
+   public static Histogram histogram(String name, String help, String... labelNames) {
+      return register(new Histogram(name, help, labelNames));
+   }
+
+   /**
+    * Writes all metrics in the Prometheus text format (version 0.0.4)
+    *
+    * @param writer The writer
+    */
+   public static void write(PrintWriter writer) {
+      for (Family<?> family : FAMILIES.values()) {
+         family.write(writer);
+      }
+   }
+
+   /**
+    * Registers a family, the registered one is returned if the name is taken
+    */
+   @SuppressWarnings("unchecked")
+   private static <F extends Family<?>> F register(F family) {
+      Family<?> registered = FAMILIES.putIfAbsent(family.getName(), family);
+      return registered != null ? (F) registered : family;
+   }
+
+   private static long micros(long micros) {
+      return TimeUnit.MICROSECONDS.toNanos(micros);
+   }
+
+   /**
+    * Formats nanoseconds as seconds
+    */
+   private static String seconds(long nanos) {
+      return Double.toString(nanos / 1e9);
+   }
+
+   /**
+    * Metrics of the same name, one child per combination of label values
+    */
+   abstract static class Family<C> {
+
+      private final String name;
+      private final String help;
+      private final String type;
+      private final String[] labelNames;
+      private final ConcurrentMap<String, C> children = new ConcurrentHashMap<>();
+      private final ConcurrentMap<String, String> labels = new ConcurrentHashMap<>();
+
+      Family(String name, String help, String type, String[] labelNames) {
+         this.name = name;
+         this.help = help;
+         this.type = type;
+         this.labelNames = labelNames;
+      }
+
+      /**
+       * @return The child of the label values, created the first time
+       */
+      C child(String[] labelValues) {
+         String key = key(labelValues);
+         C child = children.get(key);
+         if (child == null) {
+            // The labels first, a scrape may write the child as soon as it is published
+            labels.putIfAbsent(key, format(labelValues));
+            C newChild = newChild();
+            child = children.putIfAbsent(key, newChild);
+            if (child == null) {
+               child = newChild;
+            }
+         }
+         return child;
+      }
+
+      /**
+       * @return The child of the label values, null if nothing recorded for them
+       */
+      C existingChild(String[] labelValues) {
+         return children.get(key(labelValues));
+      }
+
+      abstract C newChild();
+
+      abstract void write(PrintWriter writer, String name, String labels, C child);
+
+      void write(PrintWriter writer) {
+         writer.print("# HELP " + name + " " + help + "\n");
+         writer.print("# TYPE " + name + " " + type + "\n");
+         for (Map.Entry<String, C> child : sortedChildren().entrySet()) {
+            write(writer, name, labels.get(child.getKey()), child.getValue());
+         }
+      }
+
+      String getName() {
+         return name;
+      }
+
+      /**
+       * @return The labels of a child, without braces
+       */
+      String getLabels(String key) {
+         return labels.get(key);
+      }
+
+      /**
+       * @return The children sorted by label values
+       */
+      Map<String, C> sortedChildren() {
+         return new ConcurrentSkipListMap<>(children);
+      }
+
+      /**
+       * @return The key of the child of the label values
+       */
+      private static String key(String[] labelValues) {
+         return labelValues.length == 1 ? String.valueOf(labelValues[0]) : join(labelValues);
+      }
+
+      /**
+       * @return The label values as one key
+       */
+      private static String join(String[] labelValues) {
+         StringBuilder key = new StringBuilder();
+         for (String value : labelValues) {
+            key.append(value).append('\u0000');
+         }
+         return key.toString();
+      }
+
+      /**
+       * @return The labels in the Prometheus format, without braces
+       */
+      private String format(String[] labelValues) {
+         StringBuilder formatted = new StringBuilder();
+         for (int i = 0; i < labelNames.length && i < labelValues.length; i++) {
+            String value = labelValues[i] != null ? labelValues[i] : "";
+            formatted.append(i > 0 ? "," : "").append(labelNames[i]).append("=\"")
+                  .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+         }
+         return formatted.toString();
+      }
+
+      /**
+       * @return The labels with an extra label, with braces
+       */
+      static String braces(String labels, String extra) {
+         String all = labels.isEmpty() ? extra : extra.isEmpty() ? labels : labels + "," + extra;
+         return all.isEmpty() ? "" : "{" + all + "}";
+      }
+   }
+
+   /**
+    * A counter
+    */
+   public static class Counter extends Family<AtomicLong> {
+
+      Counter(String name, String help, String[] labelNames) {
+         super(name, help, "counter", labelNames);
+      }
+
+      /**
+       * Increments the counter
+       *
+       * @param labelValues The values of the labels, in the order of the names
+       */
+      public void inc(String... labelValues) {
+         child(labelValues).incrementAndGet();
+      }
+
+      @Override
+      AtomicLong newChild() {
+         return new AtomicLong();
+      }
+
+      @Override
+      void write(PrintWriter writer, String name, String labels, AtomicLong child) {
+         writer.print(name + braces(labels, "") + " " + child.get() + "\n");
+      }
+   }
+
+   /**
+    * A latency histogram, with the maximum as a separate gauge
+    */
+   public static class Histogram extends Family<HistogramChild> {
+
+      Histogram(String name, String help, String[] labelNames) {
+         super(name, help, "histogram", labelNames);
+      }
+
+      /**
+       * Records a latency
+       *
+       * @param elapsedInNanos The latency
+       * @param labelValues The values of the labels, in the order of the names
+       */
+      public void record(long elapsedInNanos, String... labelValues) {
+         child(labelValues).record(elapsedInNanos);
+      }
+
+      /**
+       * Records the latency since a start time
+       *
+       * @param start The start (System.nanoTime)
+       * @param labelValues The values of the labels, in the order of the names
+       */
+      public void recordSince(long start, String... labelValues) {
+         record(System.nanoTime() - start, labelValues);
+      }
+
+      /**
+       * @param labelValues The values of the labels, in the order of the names
+       * @return The number of latencies recorded
+       */
+      public long getCount(String... labelValues) {
+         HistogramChild child = existingChild(labelValues);
+         return child != null ? child.count.get() : 0;
+      }
+
+      /**
+       * @param labelValues The values of the labels, in the order of the names
+       * @return The mean of the latencies recorded, 0 if none
+       */
+      public long getMeanInNanos(String... labelValues) {
+         HistogramChild child = existingChild(labelValues);
+         long count = child != null ? child.count.get() : 0;
+         return count > 0 ? child.sum.get() / count : 0;
+      }
+
+      /**
+       * @param labelValues The values of the labels, in the order of the names
+       * @return The maximum of the latencies recorded, 0 if none
+       */
+      public long getMaxInNanos(String... labelValues) {
+         HistogramChild child = existingChild(labelValues);
+         return child != null ? child.max.get() : 0;
+      }
+
+      @Override
+      HistogramChild newChild() {
+         return new HistogramChild();
+      }
+
+      @Override
+      void write(PrintWriter writer) {
+         super.write(writer);
+         // The maximum is a gauge of its own, histograms only have buckets, sum and count
+         writer.print("# HELP " + getName() + "_max Maximum of " + getName() + "\n");
+         writer.print("# TYPE " + getName() + "_max gauge\n");
+         for (Map.Entry<String, HistogramChild> child : sortedChildren().entrySet()) {
+            writer.print(getName() + "_max" + braces(getLabels(child.getKey()), "") + " " + seconds(child.getValue().max.get()) + "\n");
+         }
+      }
+
+      @Override
+      void write(PrintWriter writer, String name, String labels, HistogramChild child) {
+         long cumulative = 0;
+         for (int i = 0; i < BUCKETS_IN_NANOS.length; i++) {
+            cumulative += child.buckets.get(i);
+            writer.print(name + "_bucket" + braces(labels, "le=\"" + seconds(BUCKETS_IN_NANOS[i]) + "\"") + " " + cumulative + "\n");
+         }
+         // Count from the buckets read, not the counter, so a latency recorded meanwhile never makes +Inf less than the last bucket
+         long count = cumulative + child.buckets.get(BUCKETS_IN_NANOS.length);
+         writer.print(name + "_bucket" + braces(labels, "le=\"+Inf\"") + " " + count + "\n");
+         writer.print(name + "_sum" + braces(labels, "") + " " + seconds(child.sum.get()) + "\n");
+         writer.print(name + "_count" + braces(labels, "") + " " + count + "\n");
+      }
+   }
+
+   /**
+    * The buckets of one combination of label values
+    */
+   static class HistogramChild {
+
+      private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_IN_NANOS.length + 1);
+      private final AtomicLong count = new AtomicLong();
+      private final AtomicLong sum = new AtomicLong();
+      private final AtomicLong max = new AtomicLong();
+
+      void record(long elapsedInNanos) {
+         int bucket = 0;
+         while (bucket < BUCKETS_IN_NANOS.length && elapsedInNanos > BUCKETS_IN_NANOS[bucket]) {
+            bucket++;
+         }
+         buckets.incrementAndGet(bucket);
+         count.incrementAndGet();
+         sum.addAndGet(elapsedInNanos);
+         long current;
+         while (elapsedInNanos > (current = max.get()) && !max.compareAndSet(current, elapsedInNanos)) {
+            // Retry
+         }
+      }
+   }
+
+}
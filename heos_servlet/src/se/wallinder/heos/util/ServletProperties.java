@@ -2,6 +2,8 @@ package se.wallinder.heos.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.logging.Logger;
 
@@ -12,12 +14,17 @@ public class ServletProperties {
 
    // HEOS
    private final String HEOS_HOST = "heos.host";
+   private final String HEOS_HOSTS = "heos.hosts";
    private final String HEOS_USER = "heos.user";
    private final String HEOS_PASSWORD = "heos.password";
    // Fibaro
    private final String FIBARO_HOST = "fibaro.host";
    private final String FIBARO_USER = "fibaro.user";
    private final String FIBARO_PASSWORD = "fibaro.password";
+   private final String FIBARO_CONCURRENCY = "fibaro.concurrency";
+   // Servlet
+   private final String THREADS_VIRTUAL = "threads.virtual";
+   private final String RECORD_FILE = "record.file";
 
    /**
     * Private constructor
@@ -40,6 +47,22 @@ public class ServletProperties {
       return properties.getProperty(HEOS_HOST, "127.0.0.1");
    }
 
+   /**
+    * Gets all HEOS hosts, the property HEOS host first followed by the optional (comma separated) property HEOS hosts
+    * 
+    * @return The HEOS hosts
+    */
+   public List<String> getHeosHosts() {
+      List<String> hosts = new ArrayList<>();
+      hosts.add(getHeosHost());
+      for (String host : properties.getProperty(HEOS_HOSTS, "").split(",")) {
+         if (!host.trim().isEmpty() && !hosts.contains(host.trim())) {
+            hosts.add(host.trim());
+         }
+      }
+      return hosts;
+   }
+
    /**
     * Gets the property HEOS user
     * 
@@ -85,4 +108,47 @@ public class ServletProperties {
       return properties.getProperty(FIBARO_PASSWORD, "abc123");
    }
 
+   /**
+    * Gets the property Fibaro concurrency, the number of updates sent to the Fibaro in parallel
+    * 
+    * @return The property Fibaro concurrency
+    * @throws IllegalArgumentException If not a number of at least 1
+    */
+   public int getFibaroConcurrency() {
+      String value = properties.getProperty(FIBARO_CONCURRENCY, "1").trim();
+      try {
+         int concurrency = Integer.parseInt(value);
+         if (concurrency >= 1) {
+            return concurrency;
+         }
+      } catch (NumberFormatException nfe) {
+         // Invalid, as less than 1
+      }
+      throw new IllegalArgumentException("invalid " + FIBARO_CONCURRENCY + ": " + value);
+   }
+
+   /**
+    * Gets the property virtual threads, true to run commands and HEOS/Fibaro I/O on virtual threads (JDK 21 and later)
+    * 
+    * @return The property virtual threads
+    * @throws IllegalArgumentException If not true or false
+    */
+   public boolean isVirtualThreads() {
+      String value = properties.getProperty(THREADS_VIRTUAL, "false").trim();
+      if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+         throw new IllegalArgumentException("invalid " + THREADS_VIRTUAL + ": " + value);
+      }
+      return Boolean.parseBoolean(value);
+   }
+
+   /**
+    * Gets the property record file, the trace file command requests and their HEOS commands are appended to
+    * 
+    * @return The property record file, null if not recording
+    */
+   public String getRecordFile() {
+      String file = properties.getProperty(RECORD_FILE, "").trim();
+      return file.isEmpty() ? null : file;
+   }
+
 }
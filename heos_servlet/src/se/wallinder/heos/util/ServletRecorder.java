@@ -0,0 +1,242 @@
+package se.wallinder.heos.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the command requests of the servlet, and the HEOS commands each of them caused, to an append-only trace file which can be
+ * replayed against a test setup. One tab separated line per record, times in ms since the start of the recording session:
+ *
+ * <pre>
+ * S  [start, ms since 1970]  [servlet version]
+ * R  [time]  [request]  [method]  [path]  [query or URL encoded body]
+ * A  [time]  [request]  [HTTP status]  [result]  [duration in us]
+ * H  [time sent]  [request, 0 if none]  [HEOS command]  [result]  [duration in us]
+ * </pre>
+ *
+ * HEOS commands are recorded without their arguments, sign in arguments hold the password. Lines are queued and written by a thread of
+ * their own, nothing is written on the request threads and lines are dropped rather than waited for when the queue is full.
+ */
+public class ServletRecorder {
+
+   private final static Logger LOGGER = Logger.getLogger(ServletRecorder.class.getName());
+   private final static ServletMetrics.Counter DROPPED = ServletMetrics.counter("heos_recorder_dropped_total",
+         "Trace lines not recorded since the recorder queue was full");
+   private final static ThreadLocal<Long> CURRENT = new ThreadLocal<>();
+   private static volatile Session session = null;
+
+   private ServletRecorder() {
+      // Private constructor
+   }
+
+   /**
+    * Starts recording, appending to the trace file
+    *
+    * @param file The trace file
+    * @param queueSize The number of lines waiting to be written
+    * @throws IOException If the file could not be opened
+    */
+   public static synchronized void start(String file, int queueSize) throws IOException {
+      LOGGER.setLevel(Level.WARNING);
+      stop();
+      session = new Session(file, queueSize);
+      LOGGER.warning("Recording requests to " + file);
+   }
+
+   /**
+    * Stops recording, the lines queued are written first
+    */
+   public static synchronized void stop() {
+      Session current = session;
+      if (current != null) {
+         session = null;
+         current.close();
+      }
+   }
+
+   /**
+    * @return True if recording
+    */
+   public static boolean isRecording() {
+      return session != null;
+   }
+
+   /**
+    * Records a request and makes it the current request of the thread, call {@link #exit()} when done
+    *
+    * @param method The HTTP method
+    * @param path The servlet path
+    * @param query The query string or body, null if none
+    * @return The ID of the request, 0 if not recording
+    */
+   public static long enter(String method, String path, String query) {
+      Session current = session;
+      long request = current != null ? current.request(method, path, query) : 0;
+      enter(request);
+      return request;
+   }
+
+   /**
+    * Makes a request the current request of the thread, e.g. in a task run for the request, call {@link #exit()} when done
+    *
+    * @param request The ID of the request, 0 if none
+    */
+   public static void enter(long request) {
+      if (request != 0) {
+         CURRENT.set(request);
+      } else {
+         CURRENT.remove();
+      }
+   }
+
+   /**
+    * Ends the current request of the thread
+    */
+   public static void exit() {
+      CURRENT.remove();
+   }
+
+   /**
+    * @return The ID of the current request of the thread, 0 if none
+    */
+   public static long current() {
+      Long request = CURRENT.get();
+      return request != null ? request : 0;
+   }
+
+   /**
+    * Records the answer of a request
+    *
+    * @param request The ID of the request, 0 if not recorded
+    * @param status The HTTP status
+    * @param result The result (e.g. SUCCESS)
+    * @param start The time the request was received (System.nanoTime)
+    */
+   public static void answer(long request, int status, String result, long start) {
+      Session current = session;
+      if (current != null && request != 0) {
+         current.write("A\t" + current.time(System.nanoTime()) + "\t" + request + "\t" + status + "\t" + result + "\t" + micros(start));
+      }
+   }
+
+   /**
+    * Records a HEOS command
+    *
+    * @param request The ID of the request causing the command, 0 if none
+    * @param command The command (e.g. player/set_volume)
+    * @param result The result (success, fail, timeout or closed)
+    * @param sent The time the command was sent (System.nanoTime)
+    */
+   public static void exchange(long request, String command, String result, long sent) {
+      Session current = session;
+      if (current != null) {
+         current.write("H\t" + current.time(sent) + "\t" + request + "\t" + command + "\t" + result + "\t" + micros(sent));
+      }
+   }
+
+   private static long micros(long start) {
+      return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+   }
+
+   /**
+    * A recording session, the trace file and its writer thread
+    */
+   private static class Session implements Runnable {
+
+      private final long start = System.nanoTime();
+      private final AtomicLong requests = new AtomicLong();
+      private final BlockingQueue<String> lines;
+      private final Writer writer;
+      private final Thread thread;
+      private volatile boolean closed = false;
+
+      Session(String file, int queueSize) throws IOException {
+         lines = new ArrayBlockingQueue<>(queueSize);
+         writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+         write("S\t" + System.currentTimeMillis() + "\t" + ServletConstants.SERVLET_VERSION);
+         // Always a platform thread, it blocks in file writes
+         thread = new Thread(this, "HEOS-recorder");
+         thread.setDaemon(true);
+         thread.start();
+      }
+
+      long request(String method, String path, String query) {
+         long request = requests.incrementAndGet();
+         write("R\t" + time(System.nanoTime()) + "\t" + request + "\t" + method + "\t" + path + "\t" + (query != null ? clean(query) : ""));
+         return request;
+      }
+
+      long time(long nanos) {
+         return TimeUnit.NANOSECONDS.toMillis(nanos - start);
+      }
+
+      void write(String line) {
+         if (!lines.offer(line)) {
+            DROPPED.inc();
+         }
+      }
+
+      @Override
+      public void run() {
+         try {
+            while (!closed || !lines.isEmpty()) {
+               String line = lines.poll(1, TimeUnit.SECONDS);
+               if (line != null) {
+                  writer.write(line);
+                  writer.write('\n');
+               }
+               // Flush when idle, bursts are written together
+               if (lines.isEmpty()) {
+                  writer.flush();
+               }
+            }
+         } catch (IOException e) {
+            LOGGER.severe("Could not write the trace file, recording stopped: " + e.getMessage());
+         } catch (InterruptedException ie) {
+            // Stopped
+         } finally {
+            try {
+               writer.close();
+            } catch (IOException e) {
+               LOGGER.severe("Could not close the trace file");
+            }
+         }
+      }
+
+      void close() {
+         closed = true;
+         try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+         }
+         thread.interrupt();
+      }
+
+      /**
+       * @return The text with tabs and line breaks URL encoded, so it stays one field
+       */
+      private static String clean(String text) {
+         if (text.indexOf('\t') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            return text;
+         }
+         try {
+            return URLEncoder.encode(text, "UTF-8");
+         } catch (UnsupportedEncodingException e) {
+            return "";
+         }
+      }
+   }
+
+}
@@ -0,0 +1,163 @@
+package se.wallinder.heos.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads of the servlet, daemon platform threads or, when enabled and the JDK has them (21 and later), virtual threads. Virtual
+ * threads are looked up by reflection so the servlet still runs on older JDK:s.
+ */
+public class ServletThreads {
+
+   private final static Logger LOGGER = Logger.getLogger(ServletThreads.class.getName());
+   private final static Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+   private final static Method BUILDER_NAME = findMethod(findClass("java.lang.Thread$Builder"), "name", String.class);
+   private final static Method BUILDER_UNSTARTED = findMethod(findClass("java.lang.Thread$Builder"), "unstarted", Runnable.class);
+   private static volatile boolean virtual = false;
+
+   private ServletThreads() {
+      // Private constructor
+   }
+
+   /**
+    * Enables or disables virtual threads for threads created from now on
+    *
+    * @param enabled True for virtual threads
+    * @return True if virtual threads are used, false if not enabled or not supported by the JDK
+    */
+   public static boolean setVirtual(boolean enabled) {
+      if (enabled && !isVirtualSupported()) {
+         LOGGER.warning("Virtual threads are not supported by this JDK, using platform threads");
+      }
+      virtual = enabled && isVirtualSupported();
+      return virtual;
+   }
+
+   /**
+    * @return True if virtual threads are used
+    */
+   public static boolean isVirtual() {
+      return virtual;
+   }
+
+   /**
+    * @return True if the JDK has virtual threads
+    */
+   public static boolean isVirtualSupported() {
+      return OF_VIRTUAL != null && BUILDER_NAME != null && BUILDER_UNSTARTED != null;
+   }
+
+   /**
+    * Creates a thread factory, all threads get the same name
+    *
+    * @param name The name of the threads
+    * @return The thread factory
+    */
+   public static ThreadFactory named(final String name) {
+      return new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable runnable) {
+            return create(name, runnable);
+         }
+      };
+   }
+
+   /**
+    * Creates a thread factory, the threads are numbered from 1 (prefix-1, prefix-2...)
+    *
+    * @param prefix The name of the threads before the number
+    * @return The thread factory
+    */
+   public static ThreadFactory numbered(final String prefix) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      return new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable runnable) {
+            return create(prefix + "-" + threadCount.incrementAndGet(), runnable);
+         }
+      };
+   }
+
+   /**
+    * Creates an executor of the current thread mode: a fixed pool of platform threads, or a new virtual thread per task since a pool of
+    * virtual threads would only limit how many tasks may wait at the same time
+    *
+    * @param prefix The name of the threads before the number
+    * @param platformThreads The number of threads when using platform threads
+    * @return The executor
+    */
+   public static ThreadPoolExecutor pool(String prefix, int platformThreads) {
+      if (virtual) {
+         return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), numbered(prefix));
+      }
+      return new ThreadPoolExecutor(platformThreads, platformThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            numbered(prefix));
+   }
+
+   /**
+    * Creates and starts a thread
+    *
+    * @param name The name of the thread
+    * @param runnable The work of the thread
+    * @return The started thread
+    */
+   public static Thread start(String name, Runnable runnable) {
+      Thread thread = create(name, runnable);
+      thread.start();
+      return thread;
+   }
+
+   /**
+    * Creates a thread, not started
+    *
+    * @param name The name of the thread
+    * @param runnable The work of the thread
+    * @return The thread, virtual or a daemon platform thread
+    */
+   private static Thread create(String name, Runnable runnable) {
+      if (virtual) {
+         try {
+            Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+            return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+         } catch (IllegalAccessException | InvocationTargetException e) {
+            LOGGER.warning("Could not create virtual thread " + name + ", using a platform thread");
+         }
+      }
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+   }
+
+   /**
+    * @return The class or null if not found
+    */
+   private static Class<?> findClass(String name) {
+      try {
+         return Class.forName(name);
+      } catch (ClassNotFoundException e) {
+         return null;
+      }
+   }
+
+   /**
+    * @return The public method or null if not found
+    */
+   private static Method findMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+      if (type == null) {
+         return null;
+      }
+      try {
+         return type.getMethod(name, parameterTypes);
+      } catch (NoSuchMethodException e) {
+         return null;
+      }
+   }
+
+}